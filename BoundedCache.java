@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A thread-safe map with a bounded number of entries, for caching
+ * values that are expensive to compute.  When the cache is full, the
+ * oldest entries are evicted first (FIFO).  FIFO eviction is a little
+ * less accurate than LRU eviction, but lookups do not need to update
+ * any shared state, so concurrent readers do not contend.  Insertions,
+ * evictions, and clear are synchronized, so that the total weight
+ * always matches the cached entries.
+ * <p>
+ * Entries may have weights (e.g., their sizes in bytes), in which case
+ * the capacity limits the total weight rather than the number of
+ * entries.  By default, each entry weighs 1.
+ * </p><p>
+ * The cache counts hits and misses so that its effectiveness can be
+ * reported.
+ * </p>
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class BoundedCache<K, V> {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final long capacity;
+    private final ConcurrentHashMap<K, Entry<V>> entries;
+
+    /**
+     * The keys in insertion order, and the total weight of the entries.
+     * They are only changed while the cache is locked.
+     */
+    private final ArrayDeque<K> insertionOrder = new ArrayDeque<K>();
+    private volatile long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A cached value and its weight.
+     */
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        private Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param capacity The maximum number of entries, or the maximum
+     *                 total weight of the entries.
+     * @throws IllegalArgumentException The capacity is not positive.
+     */
+    public BoundedCache(long capacity) throws IllegalArgumentException {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The cache capacity must be positive.");
+        }
+
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<K, Entry<V>>((int) Math.min(capacity, 1024));
+    }
+
+    /**
+     * Remove all entries.  The hit and miss counts are not reset.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.insertionOrder.clear();
+        this.weight = 0;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key The key.
+     * @return The cached value, or null if the key is not cached.
+     */
+    public V get(K key) {
+
+        Entry<V> entry = this.entries.get(key);
+
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            return entry.value;
+        }
+
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return The number of lookups that found a cached value.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return The number of lookups that did not find a cached value.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Cache the value of a key.  If the key is cached already, the
+     * existing value is kept.  If the cache is full, the oldest
+     * entries are evicted.
+     *
+     * @param key   The key.
+     * @param value The value, which must not be null.
+     */
+    public void put(K key, V value) {
+        this.put(key, value, 1);
+    }
+
+    /**
+     * Cache the value of a key.  If the key is cached already, the
+     * existing value is kept.  If the cache is full, the oldest
+     * entries are evicted.  A value that weighs more than the capacity
+     * is not cached.
+     *
+     * @param key    The key.
+     * @param value  The value, which must not be null.
+     * @param weight The weight of the entry.
+     */
+    public synchronized void put(K key, V value, long weight) {
+
+        if (weight > this.capacity) {
+            return;
+        }
+
+        if (this.entries.putIfAbsent(key, new Entry<V>(value, weight)) != null) {
+            return;
+        }
+
+        this.insertionOrder.add(key);
+        this.weight += weight;
+
+        while (this.weight > this.capacity) {
+            K oldest = this.insertionOrder.poll();
+
+            if (oldest == null) {
+                break;
+            }
+
+            Entry<V> evicted = this.entries.remove(oldest);
+
+            if (evicted != null) {
+                this.weight -= evicted.weight;
+            }
+        }
+    }
+
+    /**
+     * @return The total weight of the cached entries.
+     */
+    public long getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+}
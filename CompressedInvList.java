@@ -0,0 +1,443 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A compressed, immutable copy of an inverted list, for caching inverted
+ * lists across queries.  A cached InvList holds a DocPosting object and
+ * a Vector of boxed Integers for every posting, which is many times the
+ * size of the postings themselves, so a compressed cache holds several
+ * times more terms in the same heap.
+ * <p>
+ * Postings are stored in blocks of BLOCK_SIZE.  Each block has the
+ * docid deltas of its postings (the first relative to the last docid of
+ * the previous block), their term frequencies, and the position gaps of
+ * each posting (the first position of each posting is stored as is).
+ * The integers are encoded with a StreamVByte-style group varint codec:
+ * a control byte holds the byte lengths (1-4) of four integers, and the
+ * control bytes precede the integers' little-endian data bytes, so the
+ * decoder does not branch on continuation bits.  The last docid and the
+ * offset of each block form a skip table, so a Cursor can skip whole
+ * blocks without decoding them.
+ * </p><p>
+ * A Cursor decodes one block at a time into reusable buffers.  Query
+ * operators access inverted lists by position (see QryIop), so decode
+ * uses a cursor to rebuild an InvList for each query.
+ * </p><p>
+ * getInvList caches inverted lists when the parameter file has
+ * postingsCacheMB.  Entries are keyed by the reader that they were read
+ * from (see Idx.getCacheKey), so lists from a reopened index are read
+ * again, and entries of old readers are evicted as the cache fills.
+ * </p>
+ */
+public class CompressedInvList {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The number of postings in a block.
+     */
+    public static final int BLOCK_SIZE = 128;
+
+    /**
+     * Inverted lists, keyed by reader, field, and term, or null if
+     * inverted lists are not cached.
+     */
+    private static volatile BoundedCache<String, CompressedInvList> cache = null;
+
+    private final String field;
+    private final int df;
+    private final int ctf;
+
+    /**
+     * The skip table:  the last docid and the data offset of each block.
+     */
+    private final int[] blockLastDocid;
+    private final int[] blockOffset;
+    private final byte[] data;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * Iterates over the postings of a compressed inverted list, decoding
+     * one block at a time.  The buffers are reused from block to block.
+     */
+    public class Cursor {
+
+        private int block = -1;
+        private int n = 0;                          // Postings in the block
+        private int i = 0;                          // Current posting
+        private final int[] values = new int[2 * BLOCK_SIZE];
+        private final int[] docids = new int[BLOCK_SIZE];
+        private final int[] tfs = new int[BLOCK_SIZE];
+        private final int[] positionStarts = new int[BLOCK_SIZE + 1];
+        private int[] positions = new int[4 * BLOCK_SIZE];
+
+        private Cursor() {
+            this.decodeBlock(0);
+        }
+
+        /**
+         * Decode a block into the buffers.
+         *
+         * @param b The block.
+         */
+        private void decodeBlock(int b) {
+
+            this.block = b;
+            this.i = 0;
+
+            if (b >= blockOffset.length) {
+                this.n = 0;
+                return;
+            }
+
+            this.n = Math.min(BLOCK_SIZE, df - b * BLOCK_SIZE);
+
+            //  Docid deltas and term frequencies.
+
+            int offset = readInts(data, blockOffset[b], this.values, 2 * this.n);
+            int docid = (b > 0) ? blockLastDocid[b - 1] : 0;
+            int totalTf = 0;
+
+            for (int j = 0; j < this.n; j++) {
+                docid += this.values[j];
+                this.docids[j] = docid;
+                this.tfs[j] = this.values[this.n + j];
+                this.positionStarts[j] = totalTf;
+                totalTf += this.tfs[j];
+            }
+
+            this.positionStarts[this.n] = totalTf;
+
+            //  Positions.
+
+            if (this.positions.length < totalTf) {
+                this.positions = new int[Math.max(totalTf, 2 * this.positions.length)];
+            }
+
+            readInts(data, offset, this.positions, totalTf);
+
+            for (int j = 0; j < this.n; j++) {
+                for (int k = this.positionStarts[j] + 1; k < this.positionStarts[j + 1]; k++) {
+                    this.positions[k] += this.positions[k - 1];
+                }
+            }
+        }
+
+        /**
+         * @return True if the cursor is on a posting.
+         */
+        public boolean hasMatch() {
+            return this.i < this.n;
+        }
+
+        /**
+         * Move to the next posting.
+         */
+        public void advance() {
+            if (++this.i >= this.n) {
+                this.decodeBlock(this.block + 1);
+            }
+        }
+
+        /**
+         * Move to the first posting whose docid is at least docid.
+         * Blocks whose last docid is smaller are skipped without being
+         * decoded.
+         *
+         * @param docid A docid.
+         */
+        public void advanceTo(int docid) {
+
+            if (!this.hasMatch() || (this.docids[this.n - 1] >= docid)) {
+                while (this.hasMatch() && (this.docids[this.i] < docid)) {
+                    this.i++;
+                }
+                return;
+            }
+
+            int b = this.block + 1;
+
+            while ((b < blockLastDocid.length) && (blockLastDocid[b] < docid)) {
+                b++;
+            }
+
+            this.decodeBlock(b);
+
+            while (this.hasMatch() && (this.docids[this.i] < docid)) {
+                this.i++;
+            }
+        }
+
+        /**
+         * @return The docid of the current posting.
+         */
+        public int getDocid() {
+            return this.docids[this.i];
+        }
+
+        /**
+         * @return The term frequency of the current posting.
+         */
+        public int getTf() {
+            return this.tfs[this.i];
+        }
+
+        /**
+         * @return The positions of the current posting.
+         */
+        public int[] getPositions() {
+            return Arrays.copyOfRange(this.positions,
+                    this.positionStarts[this.i], this.positionStarts[this.i + 1]);
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Compress an inverted list.
+     *
+     * @param list An inverted list.
+     */
+    public CompressedInvList(InvList list) {
+
+        this.field = list.field;
+        this.df = list.postings.size();
+
+        int blocks = (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int ctf = 0;
+        int[] values = new int[2 * BLOCK_SIZE];
+        int[] gaps = new int[4 * BLOCK_SIZE];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        this.blockLastDocid = new int[blocks];
+        this.blockOffset = new int[blocks];
+
+        int prevDocid = 0;
+
+        for (int b = 0; b < blocks; b++) {
+            int first = b * BLOCK_SIZE;
+            int n = Math.min(BLOCK_SIZE, this.df - first);
+            int totalTf = 0;
+
+            for (int j = 0; j < n; j++) {
+                InvList.DocPosting p = list.postings.get(first + j);
+                values[j] = p.docid - prevDocid;
+                values[n + j] = p.tf;
+                prevDocid = p.docid;
+
+                if (gaps.length < totalTf + p.tf) {
+                    gaps = Arrays.copyOf(gaps, Math.max(totalTf + p.tf, 2 * gaps.length));
+                }
+
+                for (int k = 0; k < p.tf; k++) {
+                    gaps[totalTf + k] = p.positions.get(k) - ((k > 0) ? p.positions.get(k - 1) : 0);
+                }
+
+                totalTf += p.tf;
+            }
+
+            this.blockLastDocid[b] = prevDocid;
+            this.blockOffset[b] = out.size();
+            writeInts(values, 2 * n, out);
+            writeInts(gaps, totalTf, out);
+            ctf += totalTf;
+        }
+
+        this.ctf = ctf;
+        this.data = out.toByteArray();
+    }
+
+    /**
+     * Configure the inverted list cache.
+     *
+     * @param bytes The size of the cache in bytes, or 0 if inverted
+     *              lists are not cached.
+     */
+    public static synchronized void setCacheSize(long bytes) {
+
+        if (bytes <= 0) {
+            cache = null;
+            return;
+        }
+
+        cache = new BoundedCache<String, CompressedInvList>(bytes);
+        QryMetrics.registerCache("postings", cache);
+    }
+
+    /**
+     * Get an inverted list from the cache, or from the index of the
+     * current thread if it isn't cached.
+     *
+     * @param termString  The processed (stemmed, lower-cased, etc) term string.
+     * @param fieldString The field that the term occurs in.
+     * @return The inverted list, which the caller may modify.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public static InvList getInvList(String termString, String fieldString)
+            throws IOException {
+
+        BoundedCache<String, CompressedInvList> c = cache;
+
+        if (c == null) {
+            return new InvList(termString, fieldString);
+        }
+
+        String key = Idx.getCacheKey() + "\t" + fieldString + "\t" + termString;
+        CompressedInvList compressed = c.get(key);
+
+        if (compressed != null) {
+            return compressed.decode();
+        }
+
+        InvList list = new InvList(termString, fieldString);
+        compressed = new CompressedInvList(list);
+        c.put(key, compressed, compressed.sizeInBytes());
+        return list;
+    }
+
+    /**
+     * Get a compressed inverted list from the cache, or from the index
+     * of the current thread if it isn't cached.  Callers that read a
+     * list once, in docid order, can iterate over it with a cursor
+     * instead of decoding it.
+     *
+     * @param termString  The processed (stemmed, lower-cased, etc) term string.
+     * @param fieldString The field that the term occurs in.
+     * @return The compressed inverted list.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public static CompressedInvList getCompressedInvList(String termString, String fieldString)
+            throws IOException {
+
+        BoundedCache<String, CompressedInvList> c = cache;
+        String key = Idx.getCacheKey() + "\t" + fieldString + "\t" + termString;
+        CompressedInvList compressed = (c != null) ? c.get(key) : null;
+
+        if (compressed == null) {
+            compressed = new CompressedInvList(new InvList(termString, fieldString));
+
+            if (c != null) {
+                c.put(key, compressed, compressed.sizeInBytes());
+            }
+        }
+
+        return compressed;
+    }
+
+    /**
+     * @return The number of documents in the list.
+     */
+    public int getDf() {
+        return this.df;
+    }
+
+    /**
+     * @return The number of occurrences in the list.
+     */
+    public int getCtf() {
+        return this.ctf;
+    }
+
+    /**
+     * @return A cursor on the first posting.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Decompress the inverted list.
+     *
+     * @return The inverted list.
+     */
+    public InvList decode() {
+
+        InvList list = new InvList(this.field);
+        list.postings.ensureCapacity(this.df);
+
+        for (Cursor c = this.cursor(); c.hasMatch(); c.advance()) {
+            list.postings.add(list.new DocPosting(c.getDocid(), c.getPositions()));
+        }
+
+        list.df = this.df;
+        list.ctf = this.ctf;
+
+        QryMetrics.POSTINGS_DECODED.addAndGet(this.df);
+        QryMetrics.POSTING_BYTES_DECODED.addAndGet(this.data.length);
+        return list;
+    }
+
+    /**
+     * @return The approximate size of the compressed list on the heap.
+     */
+    public long sizeInBytes() {
+        return 64 + this.data.length + 8L * this.blockOffset.length;
+    }
+
+    /**
+     * Encode integers:  control bytes with the 2-bit byte lengths of
+     * four integers each, followed by the integers' data bytes.
+     *
+     * @param values The integers, which must not be negative.
+     * @param count  The number of integers to encode.
+     * @param out    Receives the encoded integers.
+     */
+    private static void writeInts(int[] values, int count, ByteArrayOutputStream out) {
+
+        byte[] control = new byte[(count + 3) / 4];
+        byte[] bytes = new byte[4 * count];
+        int length = 0;
+
+        for (int i = 0; i < count; i++) {
+            int v = values[i];
+            int size = ((v & 0xFFFFFF00) == 0) ? 1 :
+                    ((v & 0xFFFF0000) == 0) ? 2 :
+                    ((v & 0xFF000000) == 0) ? 3 : 4;
+
+            control[i >> 2] |= (size - 1) << ((i & 3) << 1);
+
+            for (int j = 0; j < size; j++) {
+                bytes[length++] = (byte) (v >>> (8 * j));
+            }
+        }
+
+        out.write(control, 0, control.length);
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Decode integers that writeInts encoded.
+     *
+     * @param data   The encoded data.
+     * @param offset The offset of the control bytes.
+     * @param values Receives the integers.
+     * @param count  The number of integers to decode.
+     * @return The offset after the integers' data bytes.
+     */
+    private static int readInts(byte[] data, int offset, int[] values, int count) {
+
+        int d = offset + (count + 3) / 4;
+
+        for (int i = 0; i < count; i++) {
+            int size = (data[offset + (i >> 2)] >>> ((i & 3) << 1)) & 3;
+            int v = data[d++] & 0xFF;
+
+            if (size > 0) {
+                v |= (data[d++] & 0xFF) << 8;
+
+                if (size > 1) {
+                    v |= (data[d++] & 0xFF) << 16;
+
+                    if (size > 2) {
+                        v |= (data[d++] & 0xFF) << 24;
+                    }
+                }
+            }
+
+            values[i] = v;
+        }
+
+        return d;
+    }
+}
@@ -0,0 +1,398 @@
+import java.util.*;
+
+/**
+ * A compressed set of internal docids, in the style of a Roaring
+ * bitmap.  Docids are partitioned into chunks of 65536 by their high 16
+ * bits.  A chunk with at most ARRAY_MAX docids is stored as a sorted
+ * array of their low 16 bits; a denser chunk is stored as a 65536-bit
+ * bitset.  Sparse sets (rare terms) cost 2 bytes per docid, dense sets
+ * (frequent terms) at most 8 KB per chunk, and intersections and unions
+ * of dense chunks are word-at-a-time.
+ * <p>
+ * Bitmaps are built by adding docids in increasing order, and are not
+ * modified after that.  and and or return new bitmaps, which may share
+ * chunks with their inputs, so docids must not be added to them.
+ * </p>
+ */
+public class DocBitmap {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The largest number of docids that a chunk stores as an array.
+     * At this size an array and a bitset take the same space.
+     */
+    private static final int ARRAY_MAX = 4096;
+
+    private static final int BITSET_WORDS = 65536 / 64;
+
+    /**
+     * The high 16 bits of each chunk's docids, in increasing order, and
+     * the chunks.
+     */
+    private int[] keys = new int[4];
+    private Chunk[] chunks = new Chunk[4];
+    private int size = 0;
+
+    /**
+     * The last docid that add added.
+     */
+    private int lastDocid = -1;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The docids of one chunk:  either a sorted array of low 16 bits,
+     * or a bitset.
+     */
+    private static final class Chunk {
+        private int cardinality = 0;
+        private char[] array = null;
+        private long[] bits = null;
+
+        /**
+         * @return An empty array chunk.
+         */
+        private static Chunk newArray(int capacity) {
+            Chunk c = new Chunk();
+            c.array = new char[capacity];
+            return c;
+        }
+
+        /**
+         * @return An empty bitset chunk.
+         */
+        private static Chunk newBitset() {
+            Chunk c = new Chunk();
+            c.bits = new long[BITSET_WORDS];
+            return c;
+        }
+
+        /**
+         * Convert an array chunk to a bitset chunk.
+         */
+        private void toBitset() {
+            this.bits = new long[BITSET_WORDS];
+
+            for (int i = 0; i < this.cardinality; i++) {
+                this.bits[this.array[i] >>> 6] |= 1L << this.array[i];
+            }
+
+            this.array = null;
+        }
+
+        /**
+         * Convert a bitset chunk to an array chunk if it is sparse.
+         */
+        private Chunk compact() {
+
+            if ((this.bits == null) || (this.cardinality > ARRAY_MAX)) {
+                return this;
+            }
+
+            Chunk c = newArray(this.cardinality);
+
+            for (int w = 0; w < BITSET_WORDS; w++) {
+                long word = this.bits[w];
+
+                while (word != 0) {
+                    c.array[c.cardinality++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+
+            return c;
+        }
+
+        /**
+         * Add a low 16 bits value that is larger than the chunk's values.
+         */
+        private void append(char low) {
+
+            if (this.bits != null) {
+                this.bits[low >>> 6] |= 1L << low;
+                this.cardinality++;
+                return;
+            }
+
+            if (this.cardinality == ARRAY_MAX) {
+                this.toBitset();
+                this.append(low);
+                return;
+            }
+
+            if (this.cardinality == this.array.length) {
+                this.array = Arrays.copyOf(this.array, Math.min(ARRAY_MAX, 2 * this.array.length));
+            }
+
+            this.array[this.cardinality++] = low;
+        }
+
+        private boolean contains(char low) {
+            if (this.bits != null) {
+                return (this.bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(this.array, 0, this.cardinality, low) >= 0;
+        }
+
+        private static Chunk and(Chunk a, Chunk b) {
+
+            if ((a.bits != null) && (b.bits != null)) {
+                Chunk c = newBitset();
+
+                for (int w = 0; w < BITSET_WORDS; w++) {
+                    c.bits[w] = a.bits[w] & b.bits[w];
+                    c.cardinality += Long.bitCount(c.bits[w]);
+                }
+
+                return c.compact();
+            }
+
+            if (a.bits != null) {
+                Chunk t = a;
+                a = b;
+                b = t;
+            }
+
+            //  a is an array.  Intersect with b's bitset or array.
+
+            Chunk c = newArray(Math.min(a.cardinality, b.cardinality));
+
+            if (b.bits != null) {
+                for (int i = 0; i < a.cardinality; i++) {
+                    if (b.contains(a.array[i])) {
+                        c.array[c.cardinality++] = a.array[i];
+                    }
+                }
+            } else {
+                int i = 0;
+                int j = 0;
+
+                while ((i < a.cardinality) && (j < b.cardinality)) {
+                    if (a.array[i] < b.array[j]) {
+                        i++;
+                    } else if (a.array[i] > b.array[j]) {
+                        j++;
+                    } else {
+                        c.array[c.cardinality++] = a.array[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+
+            return c;
+        }
+
+        private static Chunk or(Chunk a, Chunk b) {
+
+            if ((a.bits != null) || (b.bits != null) ||
+                    (a.cardinality + b.cardinality > ARRAY_MAX)) {
+                Chunk c = newBitset();
+
+                for (Chunk x : new Chunk[]{a, b}) {
+                    if (x.bits != null) {
+                        for (int w = 0; w < BITSET_WORDS; w++) {
+                            c.bits[w] |= x.bits[w];
+                        }
+                    } else {
+                        for (int i = 0; i < x.cardinality; i++) {
+                            c.bits[x.array[i] >>> 6] |= 1L << x.array[i];
+                        }
+                    }
+                }
+
+                for (int w = 0; w < BITSET_WORDS; w++) {
+                    c.cardinality += Long.bitCount(c.bits[w]);
+                }
+
+                return c.compact();
+            }
+
+            Chunk c = newArray(a.cardinality + b.cardinality);
+            int i = 0;
+            int j = 0;
+
+            while ((i < a.cardinality) || (j < b.cardinality)) {
+                if ((j >= b.cardinality) ||
+                        ((i < a.cardinality) && (a.array[i] < b.array[j]))) {
+                    c.array[c.cardinality++] = a.array[i++];
+                } else if ((i >= a.cardinality) || (a.array[i] > b.array[j])) {
+                    c.array[c.cardinality++] = b.array[j++];
+                } else {
+                    c.array[c.cardinality++] = a.array[i];
+                    i++;
+                    j++;
+                }
+            }
+
+            return c;
+        }
+
+        private long sizeInBytes() {
+            return 32 + ((this.bits != null) ? 8L * BITSET_WORDS : 2L * this.array.length);
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Add a docid that is larger than every docid in the bitmap.
+     *
+     * @param docid An internal docid.
+     * @throws IllegalArgumentException The docid is not larger.
+     */
+    public void add(int docid) throws IllegalArgumentException {
+
+        if (docid <= this.lastDocid) {
+            throw new IllegalArgumentException("Docids must be added in increasing order.");
+        }
+
+        int key = docid >>> 16;
+
+        if ((this.size == 0) || (this.keys[this.size - 1] < key)) {
+            this.appendChunk(key, Chunk.newArray(4));
+        }
+
+        this.chunks[this.size - 1].append((char) docid);
+        this.lastDocid = docid;
+    }
+
+    private void appendChunk(int key, Chunk c) {
+
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+            this.chunks = Arrays.copyOf(this.chunks, 2 * this.size);
+        }
+
+        this.keys[this.size] = key;
+        this.chunks[this.size] = c;
+        this.size++;
+    }
+
+    /**
+     * @param other A bitmap.
+     * @return The docids that are in both bitmaps.
+     */
+    public DocBitmap and(DocBitmap other) {
+
+        DocBitmap result = new DocBitmap();
+        int i = 0;
+        int j = 0;
+
+        while ((i < this.size) && (j < other.size)) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Chunk c = Chunk.and(this.chunks[i], other.chunks[j]);
+
+                if (c.cardinality > 0) {
+                    result.appendChunk(this.keys[i], c);
+                }
+
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param other A bitmap.
+     * @return The docids that are in either bitmap.
+     */
+    public DocBitmap or(DocBitmap other) {
+
+        DocBitmap result = new DocBitmap();
+        int i = 0;
+        int j = 0;
+
+        while ((i < this.size) || (j < other.size)) {
+            if ((j >= other.size) ||
+                    ((i < this.size) && (this.keys[i] < other.keys[j]))) {
+                result.appendChunk(this.keys[i], this.chunks[i]);
+                i++;
+            } else if ((i >= this.size) || (this.keys[i] > other.keys[j])) {
+                result.appendChunk(other.keys[j], other.chunks[j]);
+                j++;
+            } else {
+                result.appendChunk(this.keys[i], Chunk.or(this.chunks[i], other.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param docid An internal docid.
+     * @return True if the docid is in the bitmap.
+     */
+    public boolean contains(int docid) {
+        int i = Arrays.binarySearch(this.keys, 0, this.size, docid >>> 16);
+        return (i >= 0) && this.chunks[i].contains((char) docid);
+    }
+
+    /**
+     * @return The number of docids in the bitmap.
+     */
+    public int cardinality() {
+
+        int n = 0;
+
+        for (int i = 0; i < this.size; i++) {
+            n += this.chunks[i].cardinality;
+        }
+
+        return n;
+    }
+
+    /**
+     * @return The docids in increasing order.
+     */
+    public int[] toArray() {
+
+        int[] docids = new int[this.cardinality()];
+        int n = 0;
+
+        for (int i = 0; i < this.size; i++) {
+            Chunk c = this.chunks[i];
+            int high = this.keys[i] << 16;
+
+            if (c.array != null) {
+                for (int j = 0; j < c.cardinality; j++) {
+                    docids[n++] = high | c.array[j];
+                }
+            } else {
+                for (int w = 0; w < BITSET_WORDS; w++) {
+                    long word = c.bits[w];
+
+                    while (word != 0) {
+                        docids[n++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+
+        return docids;
+    }
+
+    /**
+     * @return The approximate size of the bitmap on the heap.
+     */
+    public long sizeInBytes() {
+
+        long bytes = 32 + 8L * this.keys.length;
+
+        for (int i = 0; i < this.size; i++) {
+            bytes += this.chunks[i].sizeInBytes();
+        }
+
+        return bytes;
+    }
+}
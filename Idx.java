@@ -3,6 +3,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
@@ -19,6 +20,20 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  A thread may override the current index with setThreadIndex, so
+ *  that several threads can search different open indexes (e.g., the
+ *  shards of a federated search) at the same time.  Code that accesses
+ *  the index should use getIndexReader rather than INDEXREADER, so that
+ *  it respects the override.
+ *  </p><p>
+ *  reopen picks up changes to an open index without a restart.  The
+ *  new reader, DocLengthStore, and snapshot replace the old ones
+ *  atomically.  Threads that use an index via setThreadIndex hold a
+ *  reference to its reader, so in-flight queries finish on the old
+ *  reader, which is closed when its last user releases it.  Each
+ *  reader has a generation number, so that caches of index data can
+ *  be scoped to the reader that they were computed from.
  *  </p>
  */
 public class Idx {
@@ -28,14 +43,79 @@ public class Idx {
   /**
    *  The Lucene index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  /**
+   *  The current index, its DocLengthStore, and its snapshot.
+   */
+  private static volatile OpenIndex CURRENT=null;
+
+  /**
+   *  The open indexes, in the order that they were opened.  Access is
+   *  synchronized on Idx.class.
+   */
+  private static HashMap<String,OpenIndex> openIndexes =
+          new LinkedHashMap<String,OpenIndex> ();
+
+  /**
+   *  Every reader that is open, including readers that were replaced
+   *  by reopen but are still in use, so that a segment can be traced
+   *  to its index.  Access is synchronized on Idx.class.
+   */
+  private static IdentityHashMap<IndexReader,OpenIndex> openReaders =
+          new IdentityHashMap<IndexReader,OpenIndex> ();
+
+  /**
+   *  Assigns a generation number to each reader that is opened.
+   */
+  private static final AtomicLong generations = new AtomicLong ();
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-          new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-          new HashMap<String,DocLengthStore> ();
+  /**
+   *  Serializes reopens.
+   */
+  private static final Object reopenLock = new Object ();
+
+  /**
+   *  How open uses snapshots:  off (never), read (if a valid snapshot
+   *  exists), or auto (read, or write a snapshot if there is no valid
+   *  snapshot).
+   */
+  private static String snapshotMode = "read";
+
+  /**
+   *  The index that the current thread uses instead of the current
+   *  index, or null.
+   */
+  private static final ThreadLocal<OpenIndex> threadIndex =
+          new ThreadLocal<OpenIndex> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  An open index reader and its auxiliary data structures.  When an
+   *  index has a valid snapshot (see IdxSnapshot), field lengths,
+   *  external ids, and corpus statistics come from the snapshot, and
+   *  the index has no DocLengthStore.
+   */
+  private static class OpenIndex {
+    private String indexPath;
+    private IndexReader indexReader;
+    private DocLengthStore docLengthStore;
+    private IdxSnapshot snapshot;
+    private IdxForwardIndex forwardIndex;
+    private IdxExternalIdOrder externalIdOrder;
+    private long generation;
+
+    /**
+     *  For a segment (see setThreadSegment), the internal docid of
+     *  the segment's first document in its index.  The snapshot has
+     *  per-document data for the whole index, so it is used only for
+     *  field lengths and external ids.  A thread that uses a segment
+     *  does not hold a reference to the reader.
+     */
+    private boolean segment = false;
+    private int docBase = 0;
+  }
 
   //  --------------- Methods ---------------------------------------
 
@@ -49,10 +129,24 @@ public class Idx {
   public static String getAttribute (String attributeName, int docid)
           throws IOException {
 
-    Document d = Idx.INDEXREADER.document (docid);
+    QryMetrics.STORED_FIELD_READS.incrementAndGet();
+    Document d = getIndexReader ().document (docid);
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the
+   *  number of documents that contain 'apple' in the title field).
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+          throws IOException {
+    return getIndexReader ().docFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -61,7 +155,18 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
           throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    IdxSnapshot snapshot = getSnapshot ();
+    if (snapshot != null)
+      return snapshot.getDocCount (fieldName);
+    return getIndexReader ().getDocCount (fieldName);
+  }
+
+  /**
+   *  @return The DocLengthStore of the current thread's index, or
+   *  null if the index has a snapshot instead.
+   */
+  private static DocLengthStore getDocLengthStore () {
+    return getOpenIndex ().docLengthStore;
   }
 
   /**
@@ -72,7 +177,11 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
+    OpenIndex o = getOpenIndex ();
+    if (o.snapshot != null)
+      return o.snapshot.getExternalDocid(o.docBase + iid);
+    QryMetrics.STORED_FIELD_READS.incrementAndGet();
+    Document d = getIndexReader ().document(iid);
     String eid = d.get("externalId");
     return eid;
   }
@@ -86,7 +195,19 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
           throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    OpenIndex o = getOpenIndex ();
+    if (o.snapshot != null)
+      return o.snapshot.getFieldLength (fieldName, o.docBase + docid);
+    return (int) getDocLengthStore ().getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the index that the current thread uses:  the index set by
+   *  setThreadIndex, or else the current index.
+   *  @return The index reader.
+   */
+  public static IndexReader getIndexReader () {
+    return getOpenIndex ().indexReader;
   }
 
   /**
@@ -102,7 +223,7 @@ public class Idx {
 
     Query q = new TermQuery(new Term("externalId", externalId));
 
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
+    IndexSearcher searcher = new IndexSearcher(getIndexReader ());
     TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
     searcher.search(q, collector);
     ScoreDoc[] hits = collector.topDocs().scoreDocs;
@@ -114,13 +235,139 @@ public class Idx {
     }
   }
 
+  /**
+   *  Get one greater than the largest internal document id in the
+   *  corpus.  Unlike getNumDocs, this includes deleted documents, so
+   *  it is the size of arrays that are indexed by internal docid.
+   *  @return One greater than the largest internal document id.
+   */
+  public static int getMaxDoc () {
+    return getIndexReader ().maxDoc();
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    IdxSnapshot snapshot = getSnapshot ();
+    if (snapshot != null)
+      return snapshot.getNumDocs ();
+    return getIndexReader ().numDocs();
+  }
+
+  /**
+   *  Get the generation of the reader that the current thread uses.
+   *  Each reader that open or reopen opens has a new, larger
+   *  generation, so data computed from a reader can be cached under
+   *  its generation.
+   *  @return The generation.
+   */
+  public static long getGeneration () {
+    return getOpenIndex ().generation;
+  }
+
+  /**
+   *  Get a key that identifies the reader that the current thread
+   *  uses:  its generation, and for a segment, its docBase.  Data
+   *  that is computed from the reader (e.g., inverted lists) can be
+   *  cached under this key.
+   *  @return The cache key.
+   */
+  public static String getCacheKey () {
+    OpenIndex o = getOpenIndex ();
+    return o.segment ? (o.generation + "s" + o.docBase) : String.valueOf (o.generation);
+  }
+
+  /**
+   *  Get the generation of the newest reader of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The generation.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static long getGeneration (String indexPath)
+          throws IllegalArgumentException {
+    return getOpenIndex (indexPath).generation;
+  }
+
+  /**
+   *  Get the path of the index that the current thread uses.
+   *  @return The index path.
+   */
+  public static String getIndexPath () {
+    return getOpenIndex ().indexPath;
+  }
+
+  /**
+   *  @return The index that the current thread uses.
+   */
+  private static OpenIndex getOpenIndex () {
+    OpenIndex o = threadIndex.get ();
+    return (o != null) ? o : Idx.CURRENT;
+  }
+
+  /**
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The newest reader of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  private static synchronized OpenIndex getOpenIndex (String indexPath)
+          throws IllegalArgumentException {
+
+    OpenIndex o = openIndexes.get (indexPath);
+
+    if (o == null) {
+      throw new IllegalArgumentException ("The index " + indexPath + " isn't open");
+    }
+
+    return o;
+  }
+
+  /**
+   *  Get the paths of the open indexes, in the order that they were
+   *  opened.
+   *  @return The index paths.
+   */
+  public static synchronized List<String> getOpenIndexPaths () {
+    return new ArrayList<String> (openIndexes.keySet ());
+  }
+
+  /**
+   *  Get the internal docid in the current thread's index of the first
+   *  document of the reader that the thread uses.
+   *  @return The segment's docBase if the thread uses a segment (see
+   *  setThreadSegment), otherwise 0.
+   */
+  public static int getDocBase () {
+    return getOpenIndex ().docBase;
+  }
+
+  /**
+   *  @return The external id order of the current thread's index, or
+   *  null if the index has no valid snapshot.  Its docids are index
+   *  docids (see getDocBase).
+   */
+  public static IdxExternalIdOrder getExternalIdOrder () {
+    return getOpenIndex ().externalIdOrder;
+  }
+
+  /**
+   *  @return The forward index of the current thread's index, or null
+   *  if the index has no forward index.  Its docids are index docids
+   *  (see getDocBase).
+   */
+  public static IdxForwardIndex getForwardIndex () {
+    return getOpenIndex ().forwardIndex;
+  }
+
+  /**
+   *  @return The snapshot of the current thread's index, or null if
+   *  the index has no snapshot or the thread uses a segment.
+   */
+  private static IdxSnapshot getSnapshot () {
+    OpenIndex o = getOpenIndex ();
+    return o.segment ? null : o.snapshot;
   }
 
   /**
@@ -133,7 +380,10 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
           throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    IdxSnapshot snapshot = getSnapshot ();
+    if (snapshot != null)
+      return snapshot.getSumTotalTermFreq (fieldName);
+    return getIndexReader ().getSumTotalTermFreq (fieldName);
   }
 
 
@@ -148,12 +398,13 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
           throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return getIndexReader ().totalTermFreq (new Term (fieldName, new BytesRef (term)));
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore, or its
+   *  snapshot if it has a valid one.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -162,7 +413,6 @@ public class Idx {
           throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
-    DocLengthStore docLengthStore;
 
     //  Open the Lucene index
 
@@ -173,25 +423,134 @@ public class Idx {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
 
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
+    OpenIndex o = openAuxiliary (indexPath, (DirectoryReader) indexReader);
+
+    //  Keep track of the open indexes.  The current index defaults to
+    //  the first open index.
+
+    synchronized (Idx.class) {
+      openIndexes.put (indexPath, o);
+
+      if (Idx.CURRENT == null) {
+        Idx.CURRENT = o;
+        Idx.INDEXREADER = o.indexReader;
+      }
+    }
+  }
+
+  /**
+   *  Open the DocLengthStore of an index reader, or its snapshot if it
+   *  has a valid one.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param indexReader The index.
+   *  @return The open index.
+   *  @throws IllegalArgumentException Unable to open the DocLengthStore.
+   *  @throws IOException Error accessing the index.
+   */
+  private static OpenIndex openAuxiliary (String indexPath, DirectoryReader indexReader)
+          throws IllegalArgumentException, IOException {
 
-    docLengthStore = new DocLengthStore (indexReader);
+    OpenIndex o = new OpenIndex ();
+    o.indexPath = indexPath;
+    o.indexReader = indexReader;
+    o.generation = generations.incrementAndGet ();
 
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
+    synchronized (Idx.class) {
+      openReaders.put (indexReader, o);
     }
 
-    //  Keep track of the open indexes.
+    indexReader.addReaderClosedListener (new IndexReader.ReaderClosedListener () {
+      @Override
+      public void onClose (IndexReader reader) {
+        synchronized (Idx.class) {
+          openReaders.remove (reader);
+        }
+      }
+    });
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    //  A valid snapshot has field lengths and external ids already.
 
-    //  The current index defaults to the first open index.
+    if (! snapshotMode.equals ("off"))
+      o.snapshot = IdxSnapshot.open (indexPath, indexReader);
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (o.snapshot != null)
+      o.externalIdOrder = new IdxExternalIdOrder (o.snapshot);
+
+    //  A valid forward index replaces Lucene's term vectors.
+
+    o.forwardIndex = IdxForwardIndex.open (indexPath, indexReader);
+
+    if (o.snapshot == null) {
+
+      //  Lucene doesn't store field lengths the way that we want them,
+      //  so we have our own document length store.
+
+      o.docLengthStore = new DocLengthStore (indexReader);
+
+      if (o.docLengthStore == null) {
+        throw new IllegalArgumentException ("Unable to open the document length store.");
+      }
+
+      //  Save the work for next time.  The index may be read-only, so
+      //  failing to write a snapshot is not an error.
+
+      if (snapshotMode.equals ("auto")) {
+        try {
+          IdxSnapshot.write (indexPath, indexReader, o.docLengthStore);
+        } catch (IOException ex) {
+          System.err.println ("Unable to write the snapshot of " + indexPath + ":  " + ex);
+        }
+      }
+    }
+
+    return o;
+  }
+
+  /**
+   *  Reopen an open index if it has changed since it was opened, e.g.,
+   *  because documents were added or deleted.  The new reader and its
+   *  auxiliary data structures replace the old ones atomically; the old
+   *  reader is closed when the threads that use it release it.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return True if the index changed and was reopened.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static boolean reopen (String indexPath)
+          throws IllegalArgumentException, IOException {
+
+    synchronized (reopenLock) {
+
+      OpenIndex old = getOpenIndex (indexPath);
+      DirectoryReader indexReader =
+              DirectoryReader.openIfChanged ((DirectoryReader) old.indexReader);
+
+      if (indexReader == null) {
+        return false;
+      }
+
+      OpenIndex o;
+
+      try {
+        o = openAuxiliary (indexPath, indexReader);
+      } catch (IOException ex) {
+        indexReader.close ();
+        throw ex;
+      }
+
+      synchronized (Idx.class) {
+        openIndexes.put (indexPath, o);
+
+        if (Idx.CURRENT == old) {
+          Idx.CURRENT = o;
+          Idx.INDEXREADER = o.indexReader;
+        }
+      }
+
+      //  Release the reference that Idx held.
+
+      old.indexReader.decRef ();
+      return true;
     }
   }
 
@@ -200,18 +559,116 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
           throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    OpenIndex o = openIndexes.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (o == null) {
       throw new IllegalArgumentException (
               "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENT = o;
+    Idx.INDEXREADER = o.indexReader;
+  }
+
+  /**
+   *  Set how open uses snapshots of the index (see IdxSnapshot).
+   *  @param mode off, read, or auto.
+   *  @throws IllegalArgumentException Unknown mode.
+   */
+  public static void setSnapshotMode (String mode)
+          throws IllegalArgumentException {
+
+    if (! (mode.equals ("off") || mode.equals ("read") || mode.equals ("auto"))) {
+      throw new IllegalArgumentException ("Unknown snapshot mode " + mode);
+    }
+
+    Idx.snapshotMode = mode;
+  }
+
+  /**
+   *  Make the current thread use another open index instead of the
+   *  current index, or stop using one.  The thread holds a reference
+   *  to the index's newest reader until it stops using it, so the
+   *  reader stays open even if the index is reopened meanwhile.  Other
+   *  threads are not affected.
+   *  @param indexPath A directory that contains an open Lucene index,
+   *         or null to use the current index again.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error closing a reader that was reopened.
+   */
+  public static void setThreadIndex (String indexPath)
+          throws IllegalArgumentException, IOException {
+
+    OpenIndex old = threadIndex.get ();
+
+    if (old != null) {
+      threadIndex.remove ();
+
+      if (! old.segment)
+        old.indexReader.decRef ();
+    }
+
+    if (indexPath == null)
+      return;
+
+    //  The reader is closed only after it was replaced, so if it can't
+    //  be referenced, the next attempt gets its replacement.
+
+    while (true) {
+      OpenIndex o = getOpenIndex (indexPath);
+
+      if (o.indexReader.tryIncRef ()) {
+        threadIndex.set (o);
+        return;
+      }
+    }
+  }
+
+  /**
+   *  Make the current thread use one segment (leaf) of an open index
+   *  instead of the current index, so that inverted lists and field
+   *  lengths are read from the segment directly rather than through
+   *  Lucene's composite (Multi*) views.  Internal docids are local to
+   *  the segment.  The segment's reader must stay open while the
+   *  thread uses it, e.g., because another thread holds a reference
+   *  (see setThreadIndex).  Other threads are not affected;
+   *  setThreadIndex (null) stops using the segment.
+   *  @param leaf A segment of an open index.
+   *  @throws IllegalArgumentException The segment's index isn't open.
+   *  @throws IOException Error accessing the segment.
+   */
+  public static void setThreadSegment (AtomicReaderContext leaf)
+          throws IllegalArgumentException, IOException {
+
+    OpenIndex index;
+
+    synchronized (Idx.class) {
+      index = openReaders.get (ReaderUtil.getTopLevelContext (leaf).reader ());
+    }
+
+    if (index == null) {
+      throw new IllegalArgumentException (
+              "An index must be open before a thread can use its segments");
+    }
+
+    setThreadIndex (null);
+
+    OpenIndex o = new OpenIndex ();
+    o.indexPath = index.indexPath;
+    o.indexReader = leaf.reader ();
+    o.snapshot = index.snapshot;
+    o.forwardIndex = index.forwardIndex;
+    o.externalIdOrder = index.externalIdOrder;
+    o.generation = index.generation;
+    o.segment = true;
+    o.docBase = leaf.docBase;
+
+    if (o.snapshot == null)
+      o.docLengthStore = new DocLengthStore (leaf.reader ());
+
+    threadIndex.set (o);
   }
 }
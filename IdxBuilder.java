@@ -0,0 +1,709 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * IdxBuilder builds an index that Idx.open can use from a document
+ * collection in TREC or JSONL format.
+ * <pre>
+ *    java IdxBuilder -index INDEX_PATH -input FILE_OR_DIRECTORY
+ *                    [-format trec|jsonl] [-threads N] [-ramBufferMB N]
+ *                    [-append true|false] [-termVectors true|false]
+ *                    [-snapshot true|false] [-forwardIndex true|false]
+ * </pre>
+ * The input is a file or a directory, which is read recursively; files
+ * whose names end with .gz are decompressed.  Without -format, files
+ * whose names contain .json are read as JSONL, and other files as TREC.
+ * <p>
+ * A TREC document is a &lt;DOC&gt; element.  &lt;DOCNO&gt; is the
+ * external id, and &lt;TITLE&gt;, &lt;URL&gt;, &lt;KEYWORDS&gt;, and
+ * &lt;INLINK&gt; elements are the other fields.  The body is the
+ * &lt;TEXT&gt; or &lt;BODY&gt; elements, or if there are none, the rest
+ * of the document.  Markup is removed.
+ * </p><p>
+ * A JSONL document is a JSON object on one line.  "id" (or "docno",
+ * "externalId") is the external id, and "body" (or "text",
+ * "contents"), "title", "url", "keywords", and "inlink" (or "inlinks")
+ * are the fields.  Array values are joined with spaces.
+ * </p><p>
+ * Documents are analyzed the way that QryParser analyzes queries
+ * (KSTEM, stopwords), and field lengths are stored in the norms by
+ * DocLenStoreSimilarity; see IdxGenerator.createIndexWriterConfig and
+ * createDocument.  One thread reads and parses the input, and several
+ * threads analyze and index the documents.  Memory use is bounded by
+ * the IndexWriter RAM buffer and a bounded queue of parsed documents.
+ * </p>
+ */
+public class IdxBuilder {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String USAGE =
+            "Usage:  java IdxBuilder -index INDEX_PATH -input FILE_OR_DIRECTORY\n" +
+                    "                        [-format trec|jsonl] [-threads N] [-ramBufferMB N]\n" +
+                    "                        [-append true|false] [-termVectors true|false]\n" +
+                    "                        [-snapshot true|false] [-forwardIndex true|false]\n\n";
+
+    public static final String FORMAT_TREC = "trec";
+    public static final String FORMAT_JSONL = "jsonl";
+
+    /**
+     * The indexed fields, and the TREC tags and JSON keys that supply
+     * them.  The first name of each field is the field name.
+     */
+    private static final String[][] FIELD_NAMES = {
+            {"body", "text", "contents"},
+            {"title"},
+            {"url"},
+            {"keywords"},
+            {"inlink", "inlinks"}};
+
+    private static final String[] ID_NAMES = {"docno", "id", "externalid"};
+
+    private static final Pattern TREC_ELEMENT =
+            Pattern.compile("<(DOCNO|TITLE|URL|KEYWORDS|INLINKS?|TEXT|BODY)>(.*?)</\\1>",
+                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>");
+
+    /**
+     * Marks the end of the queue of parsed documents.
+     */
+    private static final String[] END = new String[0];
+
+    String format = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double ramBufferMB = 256;
+    boolean append = false;
+    boolean termVectors = true;
+    boolean snapshot = false;
+    boolean forwardIndex = false;
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args See the usage message.
+     * @throws Exception Error reading the input or writing the index.
+     */
+    public static void main(String[] args) throws Exception {
+
+        IdxBuilder builder = new IdxBuilder();
+        String indexPath = null;
+        String inputPath = null;
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+
+            String value = args[i + 1];
+
+            if (args[i].equals("-index")) {
+                indexPath = value;
+            } else if (args[i].equals("-input")) {
+                inputPath = value;
+            } else if (args[i].equals("-format")) {
+                builder.format = value.toLowerCase();
+            } else if (args[i].equals("-threads")) {
+                builder.threads = Integer.parseInt(value);
+            } else if (args[i].equals("-ramBufferMB")) {
+                builder.ramBufferMB = Double.parseDouble(value);
+            } else if (args[i].equals("-append")) {
+                builder.append = Boolean.parseBoolean(value);
+            } else if (args[i].equals("-termVectors")) {
+                builder.termVectors = Boolean.parseBoolean(value);
+            } else if (args[i].equals("-snapshot")) {
+                builder.snapshot = Boolean.parseBoolean(value);
+            } else if (args[i].equals("-forwardIndex")) {
+                builder.forwardIndex = Boolean.parseBoolean(value);
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+
+        if ((indexPath == null) || (inputPath == null) ||
+                ((builder.format != null) &&
+                        !(builder.format.equals(FORMAT_TREC) || builder.format.equals(FORMAT_JSONL)))) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        long start = System.nanoTime();
+
+        builder.writeIndex(new File(indexPath), new File(inputPath));
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Indexed %d documents in %.1f s (%.0f docs/s)",
+                builder.documents.get(), seconds, builder.documents.get() / seconds));
+
+        if (builder.skipped.get() > 0) {
+            System.out.println("Skipped " + builder.skipped.get() + " documents without an external id");
+        }
+    }
+
+    /**
+     * Add the value of a field to a parsed document.  Repeated fields
+     * are concatenated.
+     *
+     * @param fields The parsed document:  the external id, then the
+     *               field texts in FIELD_NAMES order.
+     * @param name   A TREC tag or JSON key, in lower case.
+     * @param value  The value.
+     */
+    private static void addField(String[] fields, String name, String value) {
+
+        for (String id : ID_NAMES) {
+            if (name.equals(id)) {
+                fields[0] = value.trim();
+                return;
+            }
+        }
+
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            for (String n : FIELD_NAMES[f]) {
+                if (name.equals(n)) {
+                    fields[f + 1] = (fields[f + 1] == null) ? value : fields[f + 1] + " " + value;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index a parsed document.
+     *
+     * @param writer The index.
+     * @param fields The parsed document (see addField).
+     * @throws IOException Error writing the index.
+     */
+    private void addDocument(IndexWriter writer, String[] fields) throws IOException {
+
+        if ((fields[0] == null) || (fields[0].length() == 0)) {
+            this.skipped.incrementAndGet();
+            return;
+        }
+
+        List<String> namedFields = new ArrayList<String>();
+
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            if (fields[f + 1] != null) {
+                namedFields.add(FIELD_NAMES[f][0]);
+                namedFields.add(fields[f + 1]);
+            }
+        }
+
+        Document d = IdxGenerator.createDocument(fields[0],
+                namedFields.toArray(new String[namedFields.size()]), this.termVectors);
+        writer.addDocument(d);
+
+        long n = this.documents.incrementAndGet();
+
+        if (n % 100000 == 0) {
+            System.out.println("  " + n + " documents");
+        }
+    }
+
+    /**
+     * Find the input files.
+     *
+     * @param input A file or directory.
+     * @param files Receives the files, in name order.
+     */
+    private static void listFiles(File input, List<File> files) {
+
+        if (!input.isDirectory()) {
+            files.add(input);
+            return;
+        }
+
+        File[] children = input.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        Arrays.sort(children);
+
+        for (File child : children) {
+            if (!child.isHidden()) {
+                listFiles(child, files);
+            }
+        }
+    }
+
+    /**
+     * Open an input file, decompressing it if necessary.
+     *
+     * @param file The file.
+     * @return A reader of the file.
+     * @throws IOException Error opening the file.
+     */
+    private static BufferedReader open(File file) throws IOException {
+
+        InputStream input = new FileInputStream(file);
+
+        if (file.getName().endsWith(".gz")) {
+            input = new GZIPInputStream(input, 1 << 16);
+        }
+
+        return new BufferedReader(new InputStreamReader(input, "UTF-8"), 1 << 16);
+    }
+
+    /**
+     * Parse a JSONL document.
+     *
+     * @param line A JSON object.
+     * @return The parsed document (see addField).
+     * @throws IOException The line isn't a JSON object.
+     */
+    static String[] parseJson(String line) throws IOException {
+
+        String[] fields = new String[FIELD_NAMES.length + 1];
+        Object value = new JsonParser(line).parse();
+
+        if (!(value instanceof Map)) {
+            throw new IOException("A JSONL document must be an object");
+        }
+
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            String text = JsonParser.toText(e.getValue());
+
+            if (text != null) {
+                addField(fields, ((String) e.getKey()).toLowerCase(), text);
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Parse a TREC document.
+     *
+     * @param doc The text between &lt;DOC&gt; and &lt;/DOC&gt;.
+     * @return The parsed document (see addField).
+     */
+    static String[] parseTrec(String doc) {
+
+        String[] fields = new String[FIELD_NAMES.length + 1];
+        StringBuilder rest = new StringBuilder();
+        Matcher m = TREC_ELEMENT.matcher(doc);
+        int end = 0;
+
+        while (m.find()) {
+            rest.append(doc, end, m.start()).append(' ');
+            end = m.end();
+            addField(fields, m.group(1).toLowerCase(),
+                    MARKUP.matcher(m.group(2)).replaceAll(" "));
+        }
+
+        rest.append(doc, end, doc.length());
+
+        //  Without <TEXT> or <BODY>, the body is the rest of the document.
+
+        if (fields[1] == null) {
+            fields[1] = MARKUP.matcher(rest).replaceAll(" ");
+        }
+
+        return fields;
+    }
+
+    /**
+     * Read documents from a file and queue them for indexing.
+     *
+     * @param file  The file.
+     * @param queue The queue of parsed documents.
+     * @throws IOException Error reading the file.
+     * @throws InterruptedException Interrupted while waiting for the queue.
+     */
+    private void readFile(File file, BlockingQueue<String[]> queue)
+            throws IOException, InterruptedException {
+
+        String fileFormat = this.format;
+
+        if (fileFormat == null) {
+            fileFormat = file.getName().contains(".json") ? FORMAT_JSONL : FORMAT_TREC;
+        }
+
+        BufferedReader input = open(file);
+
+        try {
+            String line;
+            int lineNumber = 0;
+
+            if (fileFormat.equals(FORMAT_JSONL)) {
+                while ((line = input.readLine()) != null) {
+                    lineNumber++;
+
+                    if (line.trim().length() > 0) {
+                        try {
+                            queue.put(parseJson(line));
+                        } catch (IOException ex) {
+                            throw new IOException(file + ":" + lineNumber + ":  " + ex.getMessage());
+                        }
+                    }
+                }
+            } else {
+                StringBuilder doc = null;
+
+                while ((line = input.readLine()) != null) {
+                    String tag = line.trim().toUpperCase();
+
+                    if (tag.startsWith("<DOC>")) {
+                        doc = new StringBuilder();
+                    } else if (tag.startsWith("</DOC>")) {
+                        if (doc != null) {
+                            queue.put(parseTrec(doc.toString()));
+                        }
+                        doc = null;
+                    } else if (doc != null) {
+                        doc.append(line).append('\n');
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Build the index.
+     *
+     * @param dir   The index directory.  Unless append is true, an
+     *              existing index is replaced.
+     * @param input The input file or directory.
+     * @throws IOException Error reading the input or writing the index.
+     */
+    void writeIndex(File dir, File input) throws IOException {
+
+        List<File> files = new ArrayList<File>();
+        listFiles(input, files);
+
+        if (files.isEmpty()) {
+            throw new FileNotFoundException("No input files in " + input);
+        }
+
+        IndexWriterConfig config = IdxGenerator.createIndexWriterConfig(this.ramBufferMB);
+
+        if (this.append) {
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        }
+
+        final IndexWriter writer = new IndexWriter(FSDirectory.open(dir), config);
+        final BlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(1024);
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+        Thread[] workers = new Thread[Math.max(1, this.threads)];
+
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        String[] fields;
+                        while ((fields = queue.take()) != END) {
+                            if (error.get() == null) {
+                                addDocument(writer, fields);
+                            }
+                        }
+                    } catch (IOException ex) {
+                        fail(ex);
+                    } catch (RuntimeException ex) {
+                        fail(new IOException("Indexing failed:  " + ex, ex));
+                    } catch (Error ex) {
+                        fail(new IOException("Indexing failed:  " + ex, ex));
+                        throw ex;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                /**
+                 * Record an error, and keep taking documents until the
+                 * end, so that the reader isn't blocked.
+                 *
+                 * @param ex The error.
+                 */
+                private void fail(IOException ex) {
+
+                    error.compareAndSet(null, ex);
+
+                    try {
+                        while (queue.take() != END) {
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        try {
+            try {
+                for (File file : files) {
+                    if (error.get() != null) {
+                        break;
+                    }
+                    readFile(file, queue);
+                }
+            } catch (IOException ex) {
+                error.compareAndSet(null, ex);
+            } finally {
+                for (Thread worker : workers) {
+                    queue.put(END);
+                }
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            error.compareAndSet(null, new InterruptedIOException("Indexing was interrupted."));
+        }
+
+        if (error.get() != null) {
+            writer.rollback();
+            throw error.get();
+        }
+
+        writer.close();
+
+        if (this.snapshot || this.forwardIndex) {
+            DirectoryReader reader = DirectoryReader.open(FSDirectory.open(dir));
+
+            try {
+                if (this.snapshot) {
+                    IdxSnapshot.write(dir.getPath(), reader, new DocLengthStore(reader));
+                }
+                if (this.forwardIndex) {
+                    IdxForwardIndex.write(dir.getPath(), reader);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A minimal JSON parser for JSONL documents.  Objects become Maps,
+     * arrays become Lists, strings become Strings, numbers become
+     * Doubles, and true, false, and null become Booleans and null.
+     */
+    static class JsonParser {
+
+        private final String text;
+        private int pos = 0;
+
+        /**
+         * @param text A JSON value.
+         */
+        JsonParser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Convert a field value to text.
+         *
+         * @param value A parsed JSON value.
+         * @return Strings, numbers, and arrays of them as text, or null
+         * for other values.
+         */
+        static String toText(Object value) {
+
+            if (value instanceof String) {
+                return (String) value;
+            } else if (value instanceof Double) {
+                return value.toString();
+            } else if (value instanceof List) {
+                StringBuilder text = new StringBuilder();
+
+                for (Object v : (List<?>) value) {
+                    String t = toText(v);
+
+                    if (t != null) {
+                        text.append(t).append(' ');
+                    }
+                }
+
+                return text.toString();
+            }
+
+            return null;
+        }
+
+        /**
+         * @return The parsed value.
+         * @throws IOException Syntax error.
+         */
+        Object parse() throws IOException {
+
+            Object value = this.parseValue();
+            this.skipWhitespace();
+
+            if (this.pos < this.text.length()) {
+                throw this.error("Unexpected text after the value");
+            }
+
+            return value;
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at column " + (this.pos + 1));
+        }
+
+        private void expect(char c) throws IOException {
+            this.skipWhitespace();
+
+            if ((this.pos >= this.text.length()) || (this.text.charAt(this.pos) != c)) {
+                throw this.error("Expected '" + c + "'");
+            }
+
+            this.pos++;
+        }
+
+        private char peek() throws IOException {
+            this.skipWhitespace();
+
+            if (this.pos >= this.text.length()) {
+                throw this.error("Unexpected end of line");
+            }
+
+            return this.text.charAt(this.pos);
+        }
+
+        private void skipWhitespace() {
+            while ((this.pos < this.text.length()) &&
+                    Character.isWhitespace(this.text.charAt(this.pos))) {
+                this.pos++;
+            }
+        }
+
+        private Object parseValue() throws IOException {
+
+            char c = this.peek();
+
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<String, Object>();
+                this.pos++;
+
+                if (this.peek() == '}') {
+                    this.pos++;
+                    return object;
+                }
+
+                do {
+                    this.skipWhitespace();
+                    String key = this.parseString();
+                    this.expect(':');
+                    object.put(key, this.parseValue());
+                } while (this.skipComma());
+
+                this.expect('}');
+                return object;
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<Object>();
+                this.pos++;
+
+                if (this.peek() == ']') {
+                    this.pos++;
+                    return array;
+                }
+
+                do {
+                    array.add(this.parseValue());
+                } while (this.skipComma());
+
+                this.expect(']');
+                return array;
+            } else if (c == '"') {
+                return this.parseString();
+            } else if (this.text.startsWith("true", this.pos)) {
+                this.pos += 4;
+                return Boolean.TRUE;
+            } else if (this.text.startsWith("false", this.pos)) {
+                this.pos += 5;
+                return Boolean.FALSE;
+            } else if (this.text.startsWith("null", this.pos)) {
+                this.pos += 4;
+                return null;
+            }
+
+            int start = this.pos;
+
+            while ((this.pos < this.text.length()) &&
+                    ("+-.eE".indexOf(this.text.charAt(this.pos)) >= 0 ||
+                            Character.isDigit(this.text.charAt(this.pos)))) {
+                this.pos++;
+            }
+
+            try {
+                return Double.valueOf(this.text.substring(start, this.pos));
+            } catch (NumberFormatException ex) {
+                this.pos = start;
+                throw this.error("Invalid value");
+            }
+        }
+
+        private String parseString() throws IOException {
+
+            this.expect('"');
+            StringBuilder s = new StringBuilder();
+
+            while (this.pos < this.text.length()) {
+                char c = this.text.charAt(this.pos++);
+
+                if (c == '"') {
+                    return s.toString();
+                } else if (c != '\\') {
+                    s.append(c);
+                } else if (this.pos < this.text.length()) {
+                    c = this.text.charAt(this.pos++);
+
+                    switch (c) {
+                        case 'b':  s.append('\b');  break;
+                        case 'f':  s.append('\f');  break;
+                        case 'n':  s.append('\n');  break;
+                        case 'r':  s.append('\r');  break;
+                        case 't':  s.append('\t');  break;
+                        case 'u':
+                            if (this.pos + 4 > this.text.length()) {
+                                throw this.error("Invalid escape");
+                            }
+                            try {
+                                s.append((char) Integer.parseInt(
+                                        this.text.substring(this.pos, this.pos + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw this.error("Invalid escape");
+                            }
+                            this.pos += 4;
+                            break;
+                        default:   s.append(c);     break;
+                    }
+                }
+            }
+
+            throw this.error("Unterminated string");
+        }
+
+        private boolean skipComma() throws IOException {
+
+            if (this.peek() == ',') {
+                this.pos++;
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
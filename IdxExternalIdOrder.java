@@ -0,0 +1,95 @@
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * The documents of an index in external id order, which is the order
+ * of documents that have the same score after ScoreList.sort.
+ * <p>
+ * Every unranked Boolean match scores 1.0, so the top results of an
+ * unranked Boolean query are the matches with the smallest external
+ * ids.  Sorting the matches needs the external id of every match, which
+ * is a stored field read per match.  With the documents presorted by
+ * external id, first selects the top matches by comparing integer
+ * ranks, and reads no external ids at all.
+ * </p><p>
+ * The order is sorted when the index snapshot is written, and is
+ * memory-mapped with the rest of the snapshot (see IdxSnapshot), so it
+ * costs nothing per query.  An index without a valid snapshot has no
+ * order (see Idx.getExternalIdOrder).
+ * </p>
+ */
+public class IdxExternalIdOrder {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The docids of the whole index in external id order, and the rank
+     * of each docid in that order.
+     */
+    private final IntBuffer docids;
+    private final IntBuffer ranks;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param snapshot The snapshot of an index.
+     */
+    public IdxExternalIdOrder(IdxSnapshot snapshot) {
+        this.docids = snapshot.getExternalIdOrder();
+        this.ranks = snapshot.getExternalIdRanks();
+    }
+
+    /**
+     * Get the documents of a set that have the smallest external ids.
+     * <p>
+     * When the set is dense, the documents are scanned in external id
+     * order until n of them are in the set, which takes about
+     * n * maxDoc / |matches| membership tests.  Otherwise, the ranks of
+     * the set's documents are sorted.
+     * </p>
+     *
+     * @param matches A set of documents of the current thread's index,
+     *                which may be a segment (see Idx.setThreadSegment).
+     * @param n       The number of documents to get.
+     * @return Up to n docids, in external id order.
+     */
+    public int[] first(DocBitmap matches, int n) {
+
+        int docBase = Idx.getDocBase();
+        int maxDoc = Idx.getMaxDoc();
+        int size = this.docids.capacity();
+        int m = matches.cardinality();
+
+        if ((m > n) && ((long) n * size < (long) m * m)) {
+            int[] top = new int[n];
+            int found = 0;
+
+            for (int i = 0; (i < size) && (found < n); i++) {
+                int docid = this.docids.get(i) - docBase;
+
+                if ((docid >= 0) && (docid < maxDoc) && matches.contains(docid)) {
+                    top[found++] = docid;
+                }
+            }
+
+            return (found == n) ? top : Arrays.copyOf(top, found);
+        }
+
+        int[] docids = matches.toArray();
+        int[] ranks = new int[docids.length];
+
+        for (int i = 0; i < docids.length; i++) {
+            ranks[i] = this.ranks.get(docBase + docids[i]);
+        }
+
+        Arrays.sort(ranks);
+
+        int[] top = new int[Math.min(n, ranks.length)];
+
+        for (int i = 0; i < top.length; i++) {
+            top[i] = this.docids.get(ranks[i]) - docBase;
+        }
+
+        return top;
+    }
+}
@@ -0,0 +1,643 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A forward index:  for each document and field, the document's terms
+ * as ids in a global, per-field term dictionary, their frequencies, and
+ * the sequence of terms at each position.  TermVector reads it instead
+ * of Lucene's term vectors when it exists, so building term vectors for
+ * thousands of documents (e.g., for relevance feedback or feature
+ * extraction) does not decode and re-walk Lucene term vector files or
+ * allocate a Term and String per term.  The forward index is a file
+ * next to the index (INDEX_PATH.forward) whose sections are
+ * memory-mapped, like IdxSnapshot.
+ * <pre>
+ *    java IdxForwardIndex INDEX_PATH      (writes or rewrites the forward index)
+ * </pre>
+ * The file layout (big-endian) is:
+ * <pre>
+ *    long   MAGIC
+ *    int    VERSION
+ *    long   index commit generation
+ *    long   index version
+ *    int    maxDoc
+ *    int    number of fields
+ *    for each field:
+ *      UTF  field name
+ *      int  number of terms
+ *      long offset of the term offsets section (int[terms + 1])
+ *      long offset of the term section (UTF-8 bytes, in term order)
+ *      long length of the term section
+ *      long offset of the df section (int[terms])
+ *      long offset of the ctf section (long[terms])
+ *      long offset of the document offsets section (int[maxDoc + 1])
+ *      long offset of the document section
+ *      long length of the document section
+ *    padding to a multiple of 8 bytes, followed by the sections
+ * </pre>
+ * Term ids are assigned in Lucene's term order, so a document's term
+ * ids are in the same order as its term vector.  Each document record
+ * in a document section is a sequence of ints:
+ * <pre>
+ *    int   number of terms in the document (n)
+ *    int   number of positions (the last position + 1, or 0)
+ *    int[n] term ids
+ *    int[n] term frequencies
+ *    int[positions] the term at each position, as an index into the
+ *          document's term ids starting at 1; 0 is a stopword
+ * </pre>
+ * The df and ctf of each term are Lucene's, i.e., they include deleted
+ * documents, as TermVector.stemDf and totalStemFreq always have.
+ * A forward index is valid only for the index commit that it was
+ * written from, and each section must be smaller than 2GB, as with
+ * IdxSnapshot.
+ */
+public class IdxForwardIndex {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final long MAGIC = 0x5152594657443031L;    // "QRYFWD01"
+    private static final int VERSION = 1;
+
+    public static final String SUFFIX = ".forward";
+
+    private Map<String, Field> fields = new HashMap<String, Field>();
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The mapped sections of one field.
+     */
+    private static class Field {
+        private int numTerms;
+        private IntBuffer termOffsets;
+        private ByteBuffer terms;
+        private IntBuffer df;
+        private LongBuffer ctf;
+        private IntBuffer docOffsets;
+        private IntBuffer docs;
+    }
+
+    /**
+     * The data of one field while the forward index is written.
+     */
+    private static class FieldData {
+        private String name;
+        private int numTerms;
+        private int[] termOffsets;
+        private ByteArrayOutputStream terms = new ByteArrayOutputStream();
+        private int[] df;
+        private long[] ctf;
+        private int[] docOffsets;
+        private ByteArrayOutputStream docs = new ByteArrayOutputStream();
+
+        private long[] sectionSizes() {
+            return new long[]{4L * this.termOffsets.length, this.terms.size(),
+                    4L * this.df.length, 8L * this.ctf.length,
+                    4L * this.docOffsets.length, this.docs.size()};
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Use open to create a forward index.
+     */
+    private IdxForwardIndex() {
+    }
+
+    /**
+     * Write the forward index of an index.
+     *
+     * @param args The index path.
+     * @throws IOException Error reading the index or writing the forward index.
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage:  java IdxForwardIndex INDEX_PATH\n\n");
+        }
+
+        long start = System.currentTimeMillis();
+        DirectoryReader reader = DirectoryReader.open(
+                org.apache.lucene.store.FSDirectory.open(new File(args[0])));
+
+        try {
+            write(args[0], reader);
+        } finally {
+            reader.close();
+        }
+
+        System.out.println("Wrote " + getFile(args[0]) + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @param indexPath A directory that contains a Lucene index.
+     * @return The forward index file of the index.
+     */
+    public static File getFile(String indexPath) {
+        File index = new File(indexPath).getAbsoluteFile();
+        return new File(index.getParentFile(), index.getName() + SUFFIX);
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @return True if the forward index has the field.
+     */
+    public boolean hasField(String fieldName) {
+        return this.fields.containsKey(fieldName);
+    }
+
+    /**
+     * @param f     A field.
+     * @param docid An internal document id.
+     * @return The offset of the document's record in the document section.
+     */
+    private static int getDocOffset(Field f, int docid) {
+        return f.docOffsets.get(docid);
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param docid     An internal document id.
+     * @return The ids of the terms in the field of the document, in
+     * increasing order.
+     */
+    public int[] getTermIds(String fieldName, int docid) {
+        Field f = this.fields.get(fieldName);
+        int offset = getDocOffset(f, docid);
+        return read(f.docs, offset + 2, f.docs.get(offset));
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param docid     An internal document id.
+     * @return The frequencies of the terms in the field of the document,
+     * in the order of getTermIds.
+     */
+    public int[] getTermFreqs(String fieldName, int docid) {
+        Field f = this.fields.get(fieldName);
+        int offset = getDocOffset(f, docid);
+        int n = f.docs.get(offset);
+        return read(f.docs, offset + 2 + n, n);
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param docid     An internal document id.
+     * @return The term at each position of the field of the document, as
+     * an index into getTermIds starting at 1, or 0 for a stopword.
+     */
+    public int[] getPositions(String fieldName, int docid) {
+        Field f = this.fields.get(fieldName);
+        int offset = getDocOffset(f, docid);
+        int n = f.docs.get(offset);
+        return read(f.docs, offset + 2 + 2 * n, f.docs.get(offset + 1));
+    }
+
+    /**
+     * Read ints from a section.
+     */
+    private static int[] read(IntBuffer section, int offset, int length) {
+        int[] values = new int[length];
+        IntBuffer b = section.duplicate();
+        b.position(offset);
+        b.get(values);
+        return values;
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param termId    A term id.
+     * @return The term.
+     */
+    public String getTerm(String fieldName, int termId) {
+
+        Field f = this.fields.get(fieldName);
+        int start = f.termOffsets.get(termId);
+        byte[] bytes = new byte[f.termOffsets.get(termId + 1) - start];
+
+        ByteBuffer b = f.terms.duplicate();
+        b.position(start);
+        b.get(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Find the id of a term by binary search of the term dictionary,
+     * which is in UTF-8 byte order.
+     *
+     * @param fieldName The field name, which must be in the forward index.
+     * @param term      A term.
+     * @return The term id, or -1 if the field does not contain the term.
+     */
+    public int getTermId(String fieldName, String term) {
+
+        Field f = this.fields.get(fieldName);
+        byte[] key;
+
+        try {
+            key = term.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        int low = 0;
+        int high = f.numTerms - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = f.termOffsets.get(mid);
+            int end = f.termOffsets.get(mid + 1);
+            int c = 0;
+
+            for (int i = 0; (c == 0) && (i < Math.min(key.length, end - start)); i++) {
+                c = (f.terms.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            }
+
+            if (c == 0) {
+                c = (end - start) - key.length;
+            }
+
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param termId    A term id.
+     * @return The number of documents that contain the term.
+     */
+    public int getDf(String fieldName, int termId) {
+        return this.fields.get(fieldName).df.get(termId);
+    }
+
+    /**
+     * @param fieldName The field name, which must be in the forward index.
+     * @param termId    A term id.
+     * @return The number of occurrences of the term.
+     */
+    public long getCtf(String fieldName, int termId) {
+        return this.fields.get(fieldName).ctf.get(termId);
+    }
+
+    /**
+     * Map a forward index, if it exists and matches the index.
+     *
+     * @param indexPath A directory that contains a Lucene index.
+     * @param reader    The open index.
+     * @return The forward index, or null if there is no valid forward index.
+     * @throws IOException Error reading the forward index.
+     */
+    public static IdxForwardIndex open(String indexPath, DirectoryReader reader)
+            throws IOException {
+
+        File file = getFile(indexPath);
+
+        if (!file.canRead()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            DataInputStream header = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(raf.getFD())));
+
+            if ((header.readLong() != MAGIC) ||
+                    (header.readInt() != VERSION) ||
+                    (header.readLong() != reader.getIndexCommit().getGeneration()) ||
+                    (header.readLong() != reader.getVersion()) ||
+                    (header.readInt() != reader.maxDoc())) {
+                return null;
+            }
+
+            IdxForwardIndex forward = new IdxForwardIndex();
+            FileChannel channel = raf.getChannel();
+            int maxDoc = reader.maxDoc();
+            int numFields = header.readInt();
+
+            for (int i = 0; i < numFields; i++) {
+                String name = header.readUTF();
+                Field f = new Field();
+
+                f.numTerms = header.readInt();
+                f.termOffsets = map(channel, header.readLong(), 4L * (f.numTerms + 1)).asIntBuffer();
+                f.terms = map(channel, header.readLong(), header.readLong());
+                f.df = map(channel, header.readLong(), 4L * f.numTerms).asIntBuffer();
+                f.ctf = map(channel, header.readLong(), 8L * f.numTerms).asLongBuffer();
+                f.docOffsets = map(channel, header.readLong(), 4L * (maxDoc + 1)).asIntBuffer();
+                f.docs = map(channel, header.readLong(), header.readLong()).asIntBuffer();
+
+                forward.fields.put(name, f);
+            }
+
+            return forward;
+        } catch (EOFException ex) {
+            return null;                        // A truncated forward index
+        } finally {
+            raf.close();                        // Mappings stay valid
+        }
+    }
+
+    /**
+     * Map a section of the forward index.
+     *
+     * @param channel The forward index file.
+     * @param offset  The offset of the section.
+     * @param size    The size of the section.
+     * @return The mapped section.
+     * @throws IOException Error mapping the file, or the section is too big.
+     */
+    private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+
+        if ((size > Integer.MAX_VALUE) || (offset + size > channel.size())) {
+            throw new IOException("Invalid forward index section at offset " + offset);
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * Build the forward index of one field from its term dictionary and
+     * term vectors.
+     *
+     * @param reader The index.
+     * @param name   The field name.
+     * @return The field's data, or null if no document has a term
+     * vector for the field.
+     * @throws IOException Error accessing the index.
+     */
+    private static FieldData build(IndexReader reader, String name) throws IOException {
+
+        Terms dictionary = MultiFields.getTerms(reader, name);
+
+        if (dictionary == null) {
+            return null;
+        }
+
+        //  Assign term ids in term order.
+
+        FieldData f = new FieldData();
+        Map<String, Integer> termIds = new HashMap<String, Integer>();
+        List<Integer> termOffsets = new ArrayList<Integer>();
+        List<Integer> df = new ArrayList<Integer>();
+        List<Long> ctf = new ArrayList<Long>();
+        TermsEnum te = dictionary.iterator(null);
+        BytesRef term;
+
+        termOffsets.add(0);
+
+        while ((term = te.next()) != null) {
+            termIds.put(term.utf8ToString(), termIds.size());
+            f.terms.write(term.bytes, term.offset, term.length);
+            termOffsets.add(f.terms.size());
+            df.add(te.docFreq());
+            ctf.add(te.totalTermFreq());
+        }
+
+        f.name = name;
+        f.numTerms = termIds.size();
+        f.termOffsets = new int[termOffsets.size()];
+        f.df = new int[f.numTerms];
+        f.ctf = new long[f.numTerms];
+
+        for (int i = 0; i < f.numTerms; i++) {
+            f.df[i] = df.get(i);
+            f.ctf[i] = ctf.get(i);
+        }
+
+        for (int i = 0; i < termOffsets.size(); i++) {
+            f.termOffsets[i] = termOffsets.get(i);
+        }
+
+        //  Encode each document's term vector.
+
+        int maxDoc = reader.maxDoc();
+        boolean hasVectors = false;
+        DataOutputStream docs = new DataOutputStream(f.docs);
+        f.docOffsets = new int[maxDoc + 1];
+
+        for (int docid = 0; docid < maxDoc; docid++) {
+            Terms vector = reader.getTermVector(docid, name);
+            List<Integer> ids = new ArrayList<Integer>();
+            List<Integer> tfs = new ArrayList<Integer>();
+            int[] positions = new int[0];
+
+            if (vector != null) {
+                hasVectors = true;
+                te = vector.iterator(null);
+
+                while ((term = te.next()) != null) {
+                    ids.add(termIds.get(term.utf8ToString()));
+                    tfs.add((int) te.totalTermFreq());
+
+                    DocsAndPositionsEnum p = te.docsAndPositions(null, null);
+                    p.nextDoc();
+
+                    for (int j = 0; j < p.freq(); j++) {
+                        int position = p.nextPosition();
+
+                        if (position >= positions.length) {
+                            positions = Arrays.copyOf(positions,
+                                    Math.max(position + 1, 2 * positions.length));
+                        }
+
+                        positions[position] = ids.size();
+                    }
+                }
+
+                //  Trim to the last position.
+
+                int length = positions.length;
+
+                while ((length > 0) && (positions[length - 1] == 0)) {
+                    length--;
+                }
+
+                positions = Arrays.copyOf(positions, length);
+            }
+
+            docs.writeInt(ids.size());
+            docs.writeInt(positions.length);
+
+            for (int id : ids) {
+                docs.writeInt(id);
+            }
+            for (int tf : tfs) {
+                docs.writeInt(tf);
+            }
+            for (int position : positions) {
+                docs.writeInt(position);
+            }
+
+            f.docOffsets[docid + 1] = f.docs.size() / 4;
+        }
+
+        return hasVectors ? f : null;
+    }
+
+    /**
+     * Write the header.  The header has the same length no matter what
+     * the offsets are, so it can be written once to learn its length.
+     *
+     * @param output       The header.
+     * @param reader       The index.
+     * @param fields       The fields.
+     * @param firstSection The offset of the first section.
+     * @throws IOException Error accessing the index.
+     */
+    private static void writeHeader(DataOutputStream output, DirectoryReader reader,
+                                    List<FieldData> fields, long firstSection)
+            throws IOException {
+
+        long offset = firstSection;
+
+        output.writeLong(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(reader.getIndexCommit().getGeneration());
+        output.writeLong(reader.getVersion());
+        output.writeInt(reader.maxDoc());
+        output.writeInt(fields.size());
+
+        for (FieldData f : fields) {
+            long[] sizes = f.sectionSizes();
+
+            output.writeUTF(f.name);
+            output.writeInt(f.numTerms);
+
+            for (int i = 0; i < sizes.length; i++) {
+                output.writeLong(offset);
+
+                if ((i == 1) || (i == 5)) {            // Variable-length sections
+                    output.writeLong(sizes[i]);
+                }
+
+                offset += (sizes[i] + 7) & ~7L;
+            }
+        }
+    }
+
+    /**
+     * Write the forward index of an index.  The forward index is written
+     * to a temporary file and renamed, so a partial forward index is
+     * never used.
+     *
+     * @param indexPath A directory that contains a Lucene index.
+     * @param reader    The open index.
+     * @throws IOException Error reading the index or writing the forward index.
+     */
+    public static void write(String indexPath, DirectoryReader reader) throws IOException {
+
+        List<String> names = new ArrayList<String>(MultiFields.getIndexedFields(reader));
+        List<FieldData> fields = new ArrayList<FieldData>();
+
+        Collections.sort(names);
+
+        for (String name : names) {
+            FieldData f = build(reader, name);
+
+            if (f != null) {
+                fields.add(f);
+            }
+        }
+
+        //  Measure the header, and pad it so that sections are aligned.
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(header), reader, fields, 0);
+        long firstSection = (header.size() + 7) & ~7L;
+
+        File file = getFile(indexPath);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+        try {
+            writeHeader(output, reader, fields, firstSection);
+            pad(output, header.size(), firstSection);
+
+            for (FieldData f : fields) {
+                long[] sizes = f.sectionSizes();
+
+                for (int offset : f.termOffsets) {
+                    output.writeInt(offset);
+                }
+                pad(output, sizes[0]);
+
+                f.terms.writeTo(output);
+                pad(output, sizes[1]);
+
+                for (int df : f.df) {
+                    output.writeInt(df);
+                }
+                pad(output, sizes[2]);
+
+                for (long ctf : f.ctf) {
+                    output.writeLong(ctf);
+                }
+
+                for (int offset : f.docOffsets) {
+                    output.writeInt(offset);
+                }
+                pad(output, sizes[4]);
+
+                f.docs.writeTo(output);
+                pad(output, sizes[5]);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Pad a section to a multiple of 8 bytes.
+     *
+     * @param output The output.
+     * @param size   The size of the section.
+     * @throws IOException Error writing the output.
+     */
+    private static void pad(DataOutputStream output, long size) throws IOException {
+        pad(output, size, (size + 7) & ~7L);
+    }
+
+    /**
+     * Pad a section to a size.
+     *
+     * @param output The output.
+     * @param size   The size of the section.
+     * @param padded The padded size.
+     * @throws IOException Error writing the output.
+     */
+    private static void pad(DataOutputStream output, long size, long padded) throws IOException {
+        for (long i = size; i < padded; i++) {
+            output.writeByte(0);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * IdxGenerator writes a synthetic Lucene index that Idx.open can use,
+ * so that benchmarks and load tests can run without the real corpus,
+ * and a query file whose terms occur in the index.
+ * <pre>
+ *    java IdxGenerator -index INDEX_PATH -docs N [-queries QUERY_FILE]
+ *                      [-numQueries N] [-vocabulary N] [-zipf S]
+ *                      [-bodyLength N] [-lengthSigma S] [-threads N]
+ *                      [-ramBufferMB N] [-seed N]
+ * </pre>
+ * Documents have the same fields as the real corpus:  body, title,
+ * url, keywords, and inlink are tokenized fields with term vectors, and
+ * externalId is a stored, untokenized field.  Documents are analyzed
+ * the way QryParser analyzes queries, and field lengths are stored in
+ * the norms by DocLenStoreSimilarity.
+ * <p>
+ * Term frequencies follow a Zipf distribution:  the probability of the
+ * word with rank r (starting from 1) is proportional to 1/r^s.  Body
+ * lengths follow a lognormal distribution with the specified mean; the
+ * other fields are shorter.  Each document is generated from its own
+ * random number generator, so the index contents depend only on the
+ * parameters, not on the number of threads.  Documents are indexed by
+ * several threads, and memory use is bounded by the IndexWriter RAM
+ * buffer, so tens of millions of documents can be generated on one
+ * machine.
+ * </p><p>
+ * Queries have 1-4 terms chosen from the middle of the Zipf
+ * distribution, where terms are neither stopword-like nor too rare;
+ * some terms are restricted to the title field.
+ * </p>
+ */
+public class IdxGenerator {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String USAGE =
+            "Usage:  java IdxGenerator -index INDEX_PATH -docs N [-queries QUERY_FILE]\n" +
+                    "                          [-numQueries N] [-vocabulary N] [-zipf S]\n" +
+                    "                          [-bodyLength N] [-lengthSigma S] [-threads N]\n" +
+                    "                          [-ramBufferMB N] [-seed N]\n\n";
+
+    /**
+     * Words are made of consonant-vowel syllables, which the stemmer
+     * leaves alone.
+     */
+    private static final String CONSONANTS = "bdfgklmnprtvz";
+    private static final String VOWELS = "aiou";
+
+    int numDocs = 100000;
+    int vocabularySize = 100000;
+    double zipfExponent = 1.0;
+    int bodyLength = 400;
+    double lengthSigma = 0.8;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double ramBufferMB = 256;
+    long seed = 1;
+    boolean termVectors = true;
+
+    /**
+     * The cumulative Zipf distribution over word ranks, and the words.
+     */
+    private double[] cumulative;
+    private String[] words;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args See the usage message.
+     * @throws Exception Error writing the index or query file.
+     */
+    public static void main(String[] args) throws Exception {
+
+        IdxGenerator generator = new IdxGenerator();
+        String indexPath = null;
+        String queryPath = null;
+        int numQueries = 100;
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+
+            String value = args[i + 1];
+
+            if (args[i].equals("-index")) {
+                indexPath = value;
+            } else if (args[i].equals("-docs")) {
+                generator.numDocs = Integer.parseInt(value);
+            } else if (args[i].equals("-queries")) {
+                queryPath = value;
+            } else if (args[i].equals("-numQueries")) {
+                numQueries = Integer.parseInt(value);
+            } else if (args[i].equals("-vocabulary")) {
+                generator.vocabularySize = Integer.parseInt(value);
+            } else if (args[i].equals("-zipf")) {
+                generator.zipfExponent = Double.parseDouble(value);
+            } else if (args[i].equals("-bodyLength")) {
+                generator.bodyLength = Integer.parseInt(value);
+            } else if (args[i].equals("-lengthSigma")) {
+                generator.lengthSigma = Double.parseDouble(value);
+            } else if (args[i].equals("-threads")) {
+                generator.threads = Integer.parseInt(value);
+            } else if (args[i].equals("-ramBufferMB")) {
+                generator.ramBufferMB = Double.parseDouble(value);
+            } else if (args[i].equals("-seed")) {
+                generator.seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+
+        if (indexPath == null) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        long start = System.nanoTime();
+
+        generator.writeIndex(new File(indexPath), true);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Indexed %d documents in %.1f s (%.0f docs/s)",
+                generator.numDocs, seconds, generator.numDocs / seconds));
+
+        if (queryPath != null) {
+            generator.writeQueries(new File(queryPath), numQueries);
+        }
+    }
+
+    /**
+     * Create the analyzer that QryParser uses to analyze queries, so
+     * that documents are indexed the same way.
+     *
+     * @return The analyzer.
+     */
+    static EnglishAnalyzerConfigurable createAnalyzer() {
+        EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
+        analyzer.setLowercase(true);
+        analyzer.setStopwordRemoval(true);
+        analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+        return analyzer;
+    }
+
+    /**
+     * Create a configuration for writing a new index that Idx.open can
+     * read.
+     *
+     * @param ramBufferMB The size of the indexing RAM buffer.
+     * @return The configuration.
+     */
+    static IndexWriterConfig createIndexWriterConfig(double ramBufferMB) {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, createAnalyzer());
+        config.setSimilarity(new DocLenStoreSimilarity());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(ramBufferMB);
+        config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        return config;
+    }
+
+    /**
+     * Create a document.
+     *
+     * @param externalId The external document id.
+     * @param fields     Alternating field names and field texts.
+     * @param vectors    If true, store term vectors with positions.
+     * @return The document.
+     */
+    static Document createDocument(String externalId, String[] fields, boolean vectors) {
+
+        FieldType type = new FieldType(TextField.TYPE_NOT_STORED);
+        type.setStoreTermVectors(vectors);
+        type.setStoreTermVectorPositions(vectors);
+        type.freeze();
+
+        Document d = new Document();
+        d.add(new StringField("externalId", externalId, Field.Store.YES));
+
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            d.add(new Field(fields[i], fields[i + 1], type));
+        }
+
+        return d;
+    }
+
+    /**
+     * Get the synthetic word with the specified frequency rank.  Rank 0
+     * is the most frequent word.
+     *
+     * @param rank The rank of the word.
+     * @return The word.
+     */
+    static String getWord(int rank) {
+
+        StringBuilder word = new StringBuilder();
+        int syllables = CONSONANTS.length() * VOWELS.length();
+
+        for (int i = 0; i < 2 || rank > 0; i++) {
+            int s = rank % syllables;
+            word.append(CONSONANTS.charAt(s / VOWELS.length()));
+            word.append(VOWELS.charAt(s % VOWELS.length()));
+            rank /= syllables;
+        }
+
+        return word.toString();
+    }
+
+    /**
+     * Generate the document with the specified sequence number.
+     *
+     * @param n The sequence number.
+     * @return The document.
+     */
+    Document createDocument(long n) {
+
+        Random random = new Random((this.seed << 32) ^ (n * 0x9E3779B97F4A7C15L));
+        String body = randomText(random, randomLength(random, this.bodyLength));
+
+        String url = "http://www." + randomWord(random) + ".com/" +
+                randomWord(random) + "/" + n + ".html";
+
+        String[] fields = {
+                "body", body,
+                "title", randomText(random, randomLength(random, 6)),
+                "url", url,
+                "keywords", randomText(random, random.nextInt(8)),
+                "inlink", randomText(random, (random.nextInt(4) == 0) ? randomLength(random, 30) : 0)};
+
+        return createDocument(String.format("synthetic-%010d", n), fields, this.termVectors);
+    }
+
+    /**
+     * Choose a document length.
+     *
+     * @param random A source of random numbers.
+     * @param mean   The mean length.
+     * @return A length of at least 1 from a lognormal distribution.
+     */
+    private int randomLength(Random random, int mean) {
+        double sigma = this.lengthSigma;
+        double length = mean * Math.exp(sigma * random.nextGaussian() - sigma * sigma / 2);
+        return Math.max(1, (int) Math.round(length));
+    }
+
+    /**
+     * Generate text from the Zipf distribution.
+     *
+     * @param random A source of random numbers.
+     * @param length The number of words.
+     * @return The text.
+     */
+    private String randomText(Random random, int length) {
+
+        StringBuilder text = new StringBuilder(length * 8);
+
+        for (int i = 0; i < length; i++) {
+            text.append(randomWord(random));
+            text.append(' ');
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Choose a word from the Zipf distribution.
+     *
+     * @param random A source of random numbers.
+     * @return The word.
+     */
+    private String randomWord(Random random) {
+
+        if (this.cumulative == null) {
+            double[] c = new double[this.vocabularySize];
+            double total = 0;
+
+            for (int r = 0; r < c.length; r++) {
+                total += 1.0 / Math.pow(r + 1, this.zipfExponent);
+                c[r] = total;
+            }
+
+            String[] w = new String[this.vocabularySize];
+
+            for (int r = 0; r < c.length; r++) {
+                c[r] /= total;
+                w[r] = getWord(r);
+            }
+
+            this.words = w;
+            this.cumulative = c;
+        }
+
+        int rank = Arrays.binarySearch(this.cumulative, random.nextDouble());
+        rank = (rank >= 0) ? rank : Math.min(-rank - 1, this.cumulative.length - 1);
+        return this.words[rank];
+    }
+
+    /**
+     * Write the index.
+     *
+     * @param dir     The index directory.  An existing index is replaced.
+     * @param verbose If true, report progress.
+     * @throws IOException Error writing the index.
+     */
+    void writeIndex(File dir, final boolean verbose) throws IOException {
+
+        randomWord(new Random(this.seed));        // Initialize the distribution
+
+        final IndexWriter writer =
+                new IndexWriter(FSDirectory.open(dir), createIndexWriterConfig(this.ramBufferMB));
+        final AtomicLong next = new AtomicLong();
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        final long start = System.currentTimeMillis();
+
+        Thread[] workers = new Thread[Math.max(1, this.threads)];
+
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long n;
+                    while (error.get() == null && (n = next.getAndIncrement()) < numDocs) {
+                        try {
+                            writer.addDocument(createDocument(n));
+                        } catch (IOException ex) {
+                            error.compareAndSet(null, ex);
+                        }
+
+                        if (verbose && n > 0 && n % 1000000 == 0) {
+                            double seconds = (System.currentTimeMillis() - start) / 1000.0;
+                            System.out.println(String.format("  %d documents (%.0f docs/s)",
+                                    n, n / seconds));
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            error.compareAndSet(null, new InterruptedIOException("Indexing was interrupted."));
+        }
+
+        if (error.get() != null) {
+            writer.rollback();
+            throw error.get();
+        }
+
+        writer.close();
+    }
+
+    /**
+     * Write a query file in the format that QryEval reads.
+     *
+     * @param file       The query file.
+     * @param numQueries The number of queries.
+     * @throws IOException Error writing the query file.
+     */
+    void writeQueries(File file, int numQueries) throws IOException {
+
+        Random random = new Random(this.seed);
+        int minRank = Math.min(10, this.vocabularySize - 1);
+        int maxRank = Math.max(minRank + 1, this.vocabularySize / 10);
+        PrintWriter output = new PrintWriter(new FileWriter(file));
+
+        try {
+            for (int qid = 1; qid <= numQueries; qid++) {
+                StringBuilder query = new StringBuilder();
+                int terms = 1 + random.nextInt(4);
+
+                for (int i = 0; i < terms; i++) {
+
+                    //  Choose ranks uniformly on a log scale.
+
+                    double x = Math.log(minRank) + random.nextDouble() *
+                            (Math.log(maxRank) - Math.log(minRank));
+                    query.append(getWord((int) Math.exp(x)));
+
+                    if (random.nextInt(5) == 0) {
+                        query.append(".title");
+                    }
+
+                    query.append(' ');
+                }
+
+                output.println(qid + ":" + query.toString().trim());
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
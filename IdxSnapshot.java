@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ * A snapshot of the auxiliary data structures that Idx derives from a
+ * Lucene index:  field lengths, external document ids, and corpus
+ * statistics, and the order of the documents by external id (see
+ * IdxExternalIdOrder).  The snapshot is a file next to the index
+ * (INDEX_PATH.snapshot) whose sections are memory-mapped, so opening
+ * a large index takes milliseconds instead of reading every norm and
+ * stored externalId field.
+ * <pre>
+ *    java IdxSnapshot INDEX_PATH      (writes or rewrites the snapshot)
+ * </pre>
+ * The file layout (big-endian) is:
+ * <pre>
+ *    long   MAGIC
+ *    int    VERSION
+ *    long   index commit generation
+ *    long   index version
+ *    int    maxDoc
+ *    int    numDocs
+ *    int    number of fields
+ *    for each field:
+ *      UTF  field name
+ *      int  docCount
+ *      long sumTotalTermFreq
+ *      long offset of the field length section (int[maxDoc])
+ *    long   offset of the external id offsets section (int[maxDoc + 1])
+ *    long   offset of the external id section (UTF-8 bytes)
+ *    long   length of the external id section
+ *    long   offset of the external id order section (int[maxDoc])
+ *    long   offset of the external id rank section (int[maxDoc])
+ *    padding to a multiple of 8 bytes, followed by the sections
+ * </pre>
+ * A snapshot is valid only for the index commit that it was written
+ * from.  open checks the format version, the commit generation, the
+ * index version, and maxDoc, and returns null if any of them differ,
+ * so a stale snapshot is never used.  Each section must be smaller than
+ * 2GB, the limit of a single memory map.
+ */
+public class IdxSnapshot {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final long MAGIC = 0x515259534E415031L;    // "QRYSNAP1"
+    private static final int VERSION = 2;
+
+    public static final String SUFFIX = ".snapshot";
+
+    private int maxDoc;
+    private int numDocs;
+    private Map<String, IntBuffer> fieldLengths = new HashMap<String, IntBuffer>();
+    private Map<String, Integer> docCounts = new HashMap<String, Integer>();
+    private Map<String, Long> sumTotalTermFreqs = new HashMap<String, Long>();
+    private IntBuffer externalIdOffsets;
+    private ByteBuffer externalIds;
+    private IntBuffer externalIdOrder;
+    private IntBuffer externalIdRanks;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Use open to create a snapshot.
+     */
+    private IdxSnapshot() {
+    }
+
+    /**
+     * Write the snapshot of an index.
+     *
+     * @param args The index path.
+     * @throws IOException Error reading the index or writing the snapshot.
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage:  java IdxSnapshot INDEX_PATH\n\n");
+        }
+
+        long start = System.currentTimeMillis();
+        IndexReader reader = DirectoryReader.open(
+                org.apache.lucene.store.FSDirectory.open(new File(args[0])));
+
+        write(args[0], (DirectoryReader) reader, new DocLengthStore(reader));
+        reader.close();
+
+        System.out.println("Wrote " + getFile(args[0]) + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @return The number of documents that contain the field.
+     */
+    public int getDocCount(String fieldName) {
+        Integer docCount = this.docCounts.get(fieldName);
+        return (docCount == null) ? 0 : docCount;
+    }
+
+    /**
+     * @param docid An internal document id.
+     * @return The external document id.
+     */
+    public String getExternalDocid(int docid) {
+
+        int start = this.externalIdOffsets.get(docid);
+        int end = this.externalIdOffsets.get(docid + 1);
+        byte[] bytes = new byte[end - start];
+
+        ByteBuffer b = this.externalIds.duplicate();
+        b.position(start);
+        b.get(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return The internal document ids in external id order.
+     */
+    public IntBuffer getExternalIdOrder() {
+        return this.externalIdOrder.duplicate();
+    }
+
+    /**
+     * @return The rank of each internal document id in external id
+     * order.
+     */
+    public IntBuffer getExternalIdRanks() {
+        return this.externalIdRanks.duplicate();
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @param docid     An internal document id.
+     * @return The length of the field in the document.
+     * @throws IllegalArgumentException The field has no lengths.
+     */
+    public int getFieldLength(String fieldName, int docid) {
+
+        IntBuffer lengths = this.fieldLengths.get(fieldName);
+
+        if (lengths == null) {
+            throw new IllegalArgumentException("The snapshot has no lengths for field " + fieldName);
+        }
+
+        return lengths.get(docid);
+    }
+
+    /**
+     * @param indexPath A directory that contains a Lucene index.
+     * @return The snapshot file of the index.
+     */
+    public static File getFile(String indexPath) {
+        File index = new File(indexPath).getAbsoluteFile();
+        return new File(index.getParentFile(), index.getName() + SUFFIX);
+    }
+
+    /**
+     * @return The fields that have lengths in the snapshot.
+     */
+    public Set<String> getFields() {
+        return this.fieldLengths.keySet();
+    }
+
+    /**
+     * @return The number of documents in the index, excluding deleted
+     * documents.
+     */
+    public int getNumDocs() {
+        return this.numDocs;
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @return The total number of term occurrences in the field.
+     */
+    public long getSumTotalTermFreq(String fieldName) {
+        Long sum = this.sumTotalTermFreqs.get(fieldName);
+        return (sum == null) ? 0 : sum;
+    }
+
+    /**
+     * Map a snapshot, if it exists and matches the index.
+     *
+     * @param indexPath A directory that contains a Lucene index.
+     * @param reader    The open index.
+     * @return The snapshot, or null if there is no valid snapshot.
+     * @throws IOException Error reading the snapshot.
+     */
+    public static IdxSnapshot open(String indexPath, DirectoryReader reader) throws IOException {
+
+        File file = getFile(indexPath);
+
+        if (!file.canRead()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            DataInputStream header = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(raf.getFD())));
+
+            if ((header.readLong() != MAGIC) ||
+                    (header.readInt() != VERSION) ||
+                    (header.readLong() != reader.getIndexCommit().getGeneration()) ||
+                    (header.readLong() != reader.getVersion()) ||
+                    (header.readInt() != reader.maxDoc())) {
+                return null;
+            }
+
+            IdxSnapshot snapshot = new IdxSnapshot();
+            FileChannel channel = raf.getChannel();
+
+            snapshot.maxDoc = reader.maxDoc();
+            snapshot.numDocs = header.readInt();
+
+            int numFields = header.readInt();
+            long lengthsSize = 4L * snapshot.maxDoc;
+
+            for (int i = 0; i < numFields; i++) {
+                String field = header.readUTF();
+                snapshot.docCounts.put(field, header.readInt());
+                snapshot.sumTotalTermFreqs.put(field, header.readLong());
+                snapshot.fieldLengths.put(field,
+                        map(channel, header.readLong(), lengthsSize).asIntBuffer());
+            }
+
+            long offsetsOffset = header.readLong();
+            long idsOffset = header.readLong();
+            long idsSize = header.readLong();
+            long orderOffset = header.readLong();
+            long ranksOffset = header.readLong();
+
+            snapshot.externalIdOffsets =
+                    map(channel, offsetsOffset, 4L * (snapshot.maxDoc + 1)).asIntBuffer();
+            snapshot.externalIds = map(channel, idsOffset, idsSize);
+            snapshot.externalIdOrder =
+                    map(channel, orderOffset, 4L * snapshot.maxDoc).asIntBuffer();
+            snapshot.externalIdRanks =
+                    map(channel, ranksOffset, 4L * snapshot.maxDoc).asIntBuffer();
+
+            return snapshot;
+        } catch (EOFException ex) {
+            return null;                        // A truncated snapshot
+        } finally {
+            raf.close();                        // Mappings stay valid
+        }
+    }
+
+    /**
+     * Map a section of the snapshot.
+     *
+     * @param channel The snapshot file.
+     * @param offset  The offset of the section.
+     * @param size    The size of the section.
+     * @return The mapped section.
+     * @throws IOException Error mapping the file, or the section is too big.
+     */
+    private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+
+        if ((size > Integer.MAX_VALUE) || (offset + size > channel.size())) {
+            throw new IOException("Invalid snapshot section at offset " + offset);
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * Write the header.  The header has the same length no matter what
+     * the offsets are, so it can be written once to learn its length.
+     *
+     * @param output       The header.
+     * @param reader       The index.
+     * @param fields       The fields that have lengths.
+     * @param firstSection The offset of the first section.
+     * @param idsSize      The size of the external id section.
+     * @throws IOException Error accessing the index.
+     */
+    private static void writeHeader(DataOutputStream output, DirectoryReader reader,
+                                    List<String> fields, long firstSection, long idsSize)
+            throws IOException {
+
+        long lengthsSize = 4L * reader.maxDoc();
+        long offset = firstSection;
+
+        output.writeLong(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(reader.getIndexCommit().getGeneration());
+        output.writeLong(reader.getVersion());
+        output.writeInt(reader.maxDoc());
+        output.writeInt(reader.numDocs());
+        output.writeInt(fields.size());
+
+        for (String field : fields) {
+            output.writeUTF(field);
+            output.writeInt(reader.getDocCount(field));
+            output.writeLong(reader.getSumTotalTermFreq(field));
+            output.writeLong(offset);
+            offset += lengthsSize;
+        }
+
+        long orderOffset = offset + 4L * (reader.maxDoc() + 1);
+        long ranksOffset = orderOffset + 4L * reader.maxDoc();
+
+        output.writeLong(offset);                            // External id offsets
+        output.writeLong(ranksOffset + 4L * reader.maxDoc()); // External ids
+        output.writeLong(idsSize);
+        output.writeLong(orderOffset);
+        output.writeLong(ranksOffset);
+    }
+
+    /**
+     * Write the snapshot of an index.  The snapshot is written to a
+     * temporary file and renamed, so a partial snapshot is never used.
+     *
+     * @param indexPath      A directory that contains a Lucene index.
+     * @param reader         The open index.
+     * @param docLengthStore The index's field lengths.
+     * @throws IOException Error reading the index or writing the snapshot.
+     */
+    public static void write(String indexPath, DirectoryReader reader,
+                             DocLengthStore docLengthStore) throws IOException {
+
+        int maxDoc = reader.maxDoc();
+
+        //  Fields that have norms have lengths.
+
+        List<String> fields = new ArrayList<String>();
+
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            if (MultiDocValues.getNormValues(reader, field) != null) {
+                fields.add(field);
+            }
+        }
+
+        Collections.sort(fields);
+
+        //  Encode the external ids.
+
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        int[] idOffsets = new int[maxDoc + 1];
+        final String[] externalIds = new String[maxDoc];
+        Integer[] order = new Integer[maxDoc];
+
+        for (int docid = 0; docid < maxDoc; docid++) {
+            String eid = reader.document(docid).get("externalId");
+            externalIds[docid] = (eid == null) ? "" : eid;
+            order[docid] = docid;
+            ids.write(externalIds[docid].getBytes("UTF-8"));
+            idOffsets[docid + 1] = ids.size();
+        }
+
+        //  Sort the documents by external id.  Documents that have the
+        //  same external id are in docid order, as after a stable sort
+        //  of docid-ordered results.
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = externalIds[a].compareTo(externalIds[b]);
+                return (c != 0) ? c : Integer.compare(a, b);
+            }
+        });
+
+        int[] ranks = new int[maxDoc];
+
+        for (int i = 0; i < maxDoc; i++) {
+            ranks[order[i]] = i;
+        }
+
+        //  Measure the header, and pad it so that sections are aligned.
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(header), reader, fields, 0, 0);
+        long firstSection = (header.size() + 7) & ~7L;
+
+        File file = getFile(indexPath);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+        try {
+            writeHeader(output, reader, fields, firstSection, ids.size());
+
+            while (output.size() < firstSection) {
+                output.writeByte(0);
+            }
+
+            for (String field : fields) {
+                for (int docid = 0; docid < maxDoc; docid++) {
+                    output.writeInt((int) docLengthStore.getDocLength(field, docid));
+                }
+            }
+
+            for (int offset : idOffsets) {
+                output.writeInt(offset);
+            }
+
+            for (int docid : order) {
+                output.writeInt(docid);
+            }
+
+            for (int rank : ranks) {
+                output.writeInt(rank);
+            }
+
+            ids.writeTo(output);
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Corpus statistics aggregated over several indexes (the shards of a
+ * federated search), so that every shard scores documents as if the
+ * shards were one index.  Without them, each shard computes BM25's N
+ * and df and Indri's ctf and field length sums from its own documents,
+ * and scores from different shards are not comparable.
+ * <p>
+ * gather looks up the statistics of the inverted lists that a query
+ * scores in every shard in parallel and adds them up.  Index-level
+ * statistics (the number of documents, and each field's docCount and
+ * total length) are gathered once per shard.  The df and ctf of a term
+ * are read from the shard's index.  The df and ctf of a derived list
+ * (e.g., #NEAR, #SYN) are known only after it is evaluated, so each
+ * shard parses the query again and evaluates the query's derived lists
+ * in a second pass.  List statistics are cached, so repeated terms and
+ * derived lists are looked up in the shards only once.
+ * </p><p>
+ * QrySopScore uses the statistics of the current thread (see
+ * setThreadStatistics) instead of the statistics of its index.  A list
+ * is scored either with global statistics only, or, if it has none,
+ * with the statistics of its shard only.
+ * </p><p>
+ * Cached statistics are keyed by the generation of the shards' readers
+ * (see Idx.reopen), so a reopened shard's statistics are gathered again.
+ * The caches are cleared when a newer generation is first seen, possibly
+ * while another query is gathering statistics of an older generation;
+ * that query adds up the values that it found or looked up itself, and
+ * does not look them up in the caches again.
+ * </p>
+ */
+public class IdxStatistics {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The statistics that QrySopScore uses in the current thread, or
+     * null to use the statistics of the current index.
+     */
+    private static final ThreadLocal<IdxStatistics> threadStatistics =
+            new ThreadLocal<IdxStatistics>();
+
+    private final List<String> shards;
+    private final ExecutorService executor;
+
+    /**
+     * Per-shard index-level statistics:  numDocs, and for each field,
+     * {docCount, sumOfFieldLengths}.
+     */
+    private final Map<String, Long> shardNumDocs = new ConcurrentHashMap<String, Long>();
+    private final Map<String, long[]> shardFields = new ConcurrentHashMap<String, long[]>();
+
+    /**
+     * Aggregated list statistics, {df, ctf}, keyed by field and list
+     * (see getListKey).
+     */
+    private final BoundedCache<String, long[]> terms;
+
+    /**
+     * The newest reader generation that has been seen.
+     */
+    private long generation = 0;
+
+    /**
+     * The statistics of one query:  the totals of the index-level
+     * statistics, and the statistics of the query's scored lists.
+     */
+    private long numDocs;
+    private final Map<String, long[]> fields = new HashMap<String, long[]>();
+    private final Map<String, long[]> queryLists = new HashMap<String, long[]>();
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The statistics of one shard:  numDocs, {docCount, sumOfFieldLengths}
+     * of each field, and {df, ctf} of each list.
+     */
+    private static class ShardStatistics {
+        private long numDocs;
+        private long[][] fields;
+        private long[][] lists;
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param shards    The paths of the shards, which must be open.
+     * @param executor  Looks up statistics in the shards, or null to look
+     *                  them up in the calling thread's index, which must
+     *                  be the only shard.
+     * @param cacheSize The number of term statistics that are cached.
+     */
+    public IdxStatistics(List<String> shards, ExecutorService executor, int cacheSize) {
+        this.shards = new ArrayList<String>(shards);
+        this.executor = executor;
+        this.terms = new BoundedCache<String, long[]>(cacheSize);
+    }
+
+    /**
+     * The statistics of one query share the shard-level caches of the
+     * statistics that gathered them.
+     *
+     * @param parent The statistics that gathered the query's statistics.
+     */
+    private IdxStatistics(IdxStatistics parent) {
+        this.shards = parent.shards;
+        this.executor = parent.executor;
+        this.terms = parent.terms;
+    }
+
+    /**
+     * Find the inverted lists that a query scores:  the arguments of
+     * its SCORE operators.
+     *
+     * @param q     A query.
+     * @param lists Receives the lists.
+     */
+    private static void collectLists(Qry q, List<QryIop> lists) {
+
+        if (q instanceof QrySopScore) {
+            lists.add((QryIop) q.args.get(0));
+            return;
+        }
+
+        for (Qry q_i : q.args) {
+            collectLists(q_i, lists);
+        }
+    }
+
+    /**
+     * Get the key of an inverted list's statistics:  its field and its
+     * term, or for a derived list, its operator and arguments.  The
+     * arguments of operators whose list does not depend on argument
+     * order (#SYN, #WINDOW) are sorted, because QryPlanner may reorder
+     * them differently in each shard.
+     *
+     * @param q An inverted list operator.
+     * @return The key.
+     */
+    static String getListKey(QryIop q) {
+
+        if (q instanceof QryIopTerm) {
+            return q.getField() + "\t" + ((QryIopTerm) q).getTerm();
+        }
+
+        return q.getField() + "\t" + getListName(q);
+    }
+
+    /**
+     * @param q An inverted list operator.
+     * @return The name of the list, with sorted arguments if their
+     * order does not matter.
+     */
+    private static String getListName(Qry q) {
+
+        if (q instanceof QryIopTerm) {
+            return q.toString();
+        }
+
+        List<String> args = new ArrayList<String>();
+
+        for (Qry q_i : q.args) {
+            args.add(getListName(q_i));
+        }
+
+        if (!(q instanceof QryIopNear)) {
+            Collections.sort(args);
+        }
+
+        StringBuilder name = new StringBuilder(q.getDisplayName().toLowerCase()).append("(");
+
+        for (String arg : args) {
+            name.append(' ').append(arg);
+        }
+
+        return name.append(" )").toString();
+    }
+
+    /**
+     * Gather the global statistics of the inverted lists that a query
+     * scores.
+     *
+     * @param q     A parsed query.
+     * @param query The query string that q was parsed from.  Shards
+     *              parse it again to evaluate the query's derived
+     *              lists.
+     * @return The statistics of the query.
+     * @throws IOException Error accessing a shard.
+     */
+    public IdxStatistics gather(Qry q, final String query) throws IOException {
+
+        //  Cache keys start with the reader generation.
+
+        final String generation = this.getReaderGeneration() + "\t";
+
+        List<QryIop> qLists = new ArrayList<QryIop>();
+        collectLists(q, qLists);
+
+        //  Find what isn't known yet.
+
+        final Set<String> fieldNames = new TreeSet<String>();
+        final Map<String, QryIop> missing = new LinkedHashMap<String, QryIop>();
+        IdxStatistics s = new IdxStatistics(this);
+
+        for (QryIop l : qLists) {
+            String key = generation + getListKey(l);
+            long[] cached = this.terms.get(key);
+
+            fieldNames.add(l.getField());
+
+            if (cached != null) {
+                s.queryLists.put(key.substring(generation.length()), cached);
+            } else {
+                missing.put(key, l);
+            }
+        }
+
+        //  Keep the index-level statistics that are cached now, in case
+        //  another thread clears the caches meanwhile.
+
+        final List<String> fieldList = new ArrayList<String>(fieldNames);
+        int numShards = this.shards.size();
+        long[] shardDocs = new long[numShards];
+        long[][][] shardFieldStats = new long[numShards][fieldList.size()][];
+        boolean fieldsKnown = true;
+
+        for (int i = 0; i < numShards; i++) {
+            String shard = generation + this.shards.get(i);
+            Long docs = this.shardNumDocs.get(shard);
+
+            fieldsKnown &= (docs != null);
+            shardDocs[i] = (docs == null) ? 0 : docs;
+
+            for (int j = 0; j < fieldList.size(); j++) {
+                shardFieldStats[i][j] = this.shardFields.get(shard + "\t" + fieldList.get(j));
+                fieldsKnown &= (shardFieldStats[i][j] != null);
+            }
+        }
+
+        //  Look up the missing statistics in every shard in parallel.
+
+        if (!missing.isEmpty() || !fieldsKnown) {
+            List<ShardStatistics> results = new ArrayList<ShardStatistics>();
+
+            if (this.executor == null) {
+                results.add(gatherShard(generation + this.shards.get(0), fieldList,
+                        missing.values(), query));
+            } else {
+                List<Future<ShardStatistics>> futures = new ArrayList<Future<ShardStatistics>>();
+                final QryMetrics.QueryResources resources = QryMetrics.getQueryResources();
+
+                for (final String shard : this.shards) {
+                    futures.add(this.executor.submit(new Callable<ShardStatistics>() {
+                        @Override
+                        public ShardStatistics call() throws IOException {
+                            Idx.setThreadIndex(shard);
+                            QryMetrics.joinQuery(resources);
+                            try {
+                                return gatherShard(generation + shard, fieldList,
+                                        missing.values(), query);
+                            } finally {
+                                QryMetrics.leaveQuery();
+                                Idx.setThreadIndex(null);
+                            }
+                        }
+                    }));
+                }
+
+                for (Future<ShardStatistics> f : futures) {
+                    results.add(get(f));
+                }
+            }
+
+            long[][] totals = new long[missing.size()][2];
+
+            for (int i = 0; i < results.size(); i++) {
+                ShardStatistics shardStats = results.get(i);
+
+                shardDocs[i] = shardStats.numDocs;
+                shardFieldStats[i] = shardStats.fields;
+
+                for (int j = 0; j < totals.length; j++) {
+                    totals[j][0] += shardStats.lists[j][0];
+                    totals[j][1] += shardStats.lists[j][1];
+                }
+            }
+
+            int i = 0;
+
+            for (String key : missing.keySet()) {
+                this.terms.put(key, totals[i]);
+                s.queryLists.put(key.substring(generation.length()), totals[i]);
+                i++;
+            }
+        }
+
+        //  Add up the index-level statistics.
+
+        for (int i = 0; i < numShards; i++) {
+            s.numDocs += shardDocs[i];
+
+            for (int j = 0; j < fieldList.size(); j++) {
+                long[] total = s.fields.get(fieldList.get(j));
+
+                if (total == null) {
+                    total = new long[2];
+                    s.fields.put(fieldList.get(j), total);
+                }
+
+                total[0] += shardFieldStats[i][j][0];
+                total[1] += shardFieldStats[i][j][1];
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * Get the generation of the shards' readers, and clear the caches
+     * when it is newer than any that has been seen.
+     *
+     * @return The generation of the shards' readers:  the largest
+     * generation of their newest readers, or with no executor, the
+     * generation of the calling thread's reader.
+     */
+    private long getReaderGeneration() {
+
+        long g = 0;
+
+        if (this.executor == null) {
+            g = Idx.getGeneration();
+        } else {
+            for (String shard : this.shards) {
+                g = Math.max(g, Idx.getGeneration(shard));
+            }
+        }
+
+        synchronized (this) {
+            if (g > this.generation) {
+                this.terms.clear();
+                this.shardNumDocs.clear();
+                this.shardFields.clear();
+                this.generation = g;
+            }
+        }
+
+        return g;
+    }
+
+    /**
+     * Look up statistics in the current thread's index.
+     *
+     * @param shard      The cache key of the index:  the reader
+     *                   generation and the index path.
+     * @param fieldNames Fields whose statistics are needed.
+     * @param lists      Lists whose statistics are needed.  They are
+     *                   not initialized; derived lists are evaluated in
+     *                   the query's own parse.
+     * @param query      The query string that the lists are from.
+     * @return The statistics of the index, the fields, and the lists,
+     * in the order of fieldNames and lists.
+     * @throws IOException Error accessing the index.
+     */
+    private ShardStatistics gatherShard(String shard, List<String> fieldNames,
+                                        Collection<QryIop> lists, String query)
+            throws IOException {
+
+        ShardStatistics shardStats = new ShardStatistics();
+        shardStats.numDocs = Idx.getNumDocs();
+        shardStats.fields = new long[fieldNames.size()][];
+        this.shardNumDocs.put(shard, shardStats.numDocs);
+
+        for (int j = 0; j < fieldNames.size(); j++) {
+            String field = fieldNames.get(j);
+            shardStats.fields[j] = new long[]{
+                    Idx.getDocCount(field), Idx.getSumOfFieldLengths(field)};
+            this.shardFields.put(shard + "\t" + field, shardStats.fields[j]);
+        }
+
+        //  Lucene's term statistics count deleted documents, but the
+        //  df and ctf of an inverted list do not, so if the shard has
+        //  deletions, the live postings are counted instead.
+
+        IndexReader reader = Idx.getIndexReader();
+        long[][] stats = new long[lists.size()][];
+        Map<String, QryIop> derived = null;
+        int i = 0;
+
+        for (QryIop l : lists) {
+            if (l instanceof QryIopTerm) {
+                QryIopTerm t = (QryIopTerm) l;
+
+                if (reader.hasDeletions()) {
+                    stats[i++] = countLivePostings(reader, t.getField(), t.getTerm());
+                } else {
+                    stats[i++] = new long[]{
+                            Idx.getDocFreq(t.getField(), t.getTerm()),
+                            Idx.getTotalTermFreq(t.getField(), t.getTerm())};
+                }
+                continue;
+            }
+
+            //  Query nodes can't be shared by threads, so evaluate the
+            //  derived list in this thread's own parse of the query.
+
+            if (derived == null) {
+                derived = new HashMap<String, QryIop>();
+                List<QryIop> shardLists = new ArrayList<QryIop>();
+                collectLists(QryParser.getQuery(query), shardLists);
+
+                for (QryIop shardList : shardLists) {
+                    derived.put(getListKey(shardList), shardList);
+                }
+            }
+
+            QryIop shardList = derived.get(getListKey(l));
+            shardList.initialize(null);        // The model is ignored
+            stats[i++] = new long[]{shardList.getDf(), shardList.getCtf()};
+        }
+
+        shardStats.lists = stats;
+        return shardStats;
+    }
+
+    /**
+     * Count the postings of a term in documents that are not deleted.
+     *
+     * @param reader    The index.
+     * @param fieldName The field name.
+     * @param term      The term.
+     * @return {df, ctf} of the term.
+     * @throws IOException Error accessing the index.
+     */
+    private static long[] countLivePostings(IndexReader reader, String fieldName, String term)
+            throws IOException {
+
+        long[] stats = new long[2];
+        DocsEnum postings = MultiFields.getTermDocsEnum(reader,
+                MultiFields.getLiveDocs(reader), fieldName, new BytesRef(term),
+                DocsEnum.FLAG_FREQS);
+
+        if (postings != null) {
+            while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                stats[0]++;
+                stats[1] += postings.freq();
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Wait for a shard's result.
+     *
+     * @param f The shard's result.
+     * @return The result.
+     * @throws IOException The shard failed or the wait was interrupted.
+     */
+    private static ShardStatistics get(Future<ShardStatistics> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Gathering statistics was interrupted.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * @param q An inverted list that the query scores.
+     * @return The global df and ctf of the list, {df, ctf}, or null if
+     * the query does not score the list.
+     */
+    public long[] getListStatistics(QryIop q) {
+        return this.queryLists.get(getListKey(q));
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @return The number of documents that contain the field in all shards.
+     */
+    public long getDocCount(String fieldName) {
+        long[] f = this.fields.get(fieldName);
+        return (f == null) ? 0 : f[0];
+    }
+
+    /**
+     * @return The number of documents in all shards.
+     */
+    public long getNumDocs() {
+        return this.numDocs;
+    }
+
+    /**
+     * @param fieldName The field name.
+     * @return The total length of the field in all shards.
+     */
+    public long getSumOfFieldLengths(String fieldName) {
+        long[] f = this.fields.get(fieldName);
+        return (f == null) ? 0 : f[1];
+    }
+
+    /**
+     * @return The term statistics cache, so that its effectiveness can
+     * be reported.
+     */
+    public BoundedCache<String, long[]> getTermCache() {
+        return this.terms;
+    }
+
+    /**
+     * @return The statistics that the current thread uses, or null.
+     */
+    public static IdxStatistics getThreadStatistics() {
+        return threadStatistics.get();
+    }
+
+    /**
+     * Set the statistics that the current thread uses instead of the
+     * statistics of its index.
+     *
+     * @param statistics The statistics of the current query, or null
+     *                   to use the statistics of the index.
+     */
+    public static void setThreadStatistics(IdxStatistics statistics) {
+        if (statistics == null) {
+            threadStatistics.remove();
+        } else {
+            threadStatistics.set(statistics);
+        }
+    }
+}
@@ -115,14 +115,16 @@ public class InvList {
         BytesRef termBytes = new BytesRef(termString);
         Term term = new Term(fieldString, termBytes);
 
-        if (Idx.INDEXREADER.docFreq(term) < 1)
+        IndexReader reader = Idx.getIndexReader();
+
+        if (reader.docFreq(term) < 1)
             return;
 
         //  Lookup the inverted list.
 
         DocsAndPositionsEnum iList =
-                MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-                        MultiFields.getLiveDocs(Idx.INDEXREADER),
+                MultiFields.getTermPositionsEnum(reader,
+                        MultiFields.getLiveDocs(reader),
                         fieldString, termBytes);
 
         //  Copy from Lucene inverted list format to our inverted list
@@ -130,18 +132,29 @@ public class InvList {
         //  operators such as #SYN and #NEAR/n to be insulated from the
         //  details of Lucene inverted list implementations.
 
+        long bytes = 0;
+        int prevDocid = 0;
+
         while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
             int tf = iList.freq();
             int[] positions = new int[tf];
 
-            for (int j = 0; j < tf; j++)
+            for (int j = 0; j < tf; j++) {
                 positions[j] = iList.nextPosition();
+                bytes += QryMetrics.vIntSize(positions[j] - ((j > 0) ? positions[j - 1] : 0));
+            }
+
+            bytes += QryMetrics.vIntSize(iList.docID() - prevDocid) + QryMetrics.vIntSize(tf);
+            prevDocid = iList.docID();
 
             this.postings.add(new DocPosting(iList.docID(), positions));
             this.df++;
             this.ctf += tf;
         }
+
+        QryMetrics.POSTINGS_DECODED.addAndGet(this.df);
+        QryMetrics.POSTING_BYTES_DECODED.addAndGet(bytes);
     }
 
     /**
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * A thread-safe latency histogram in the style of HdrHistogram.
+ * Values (nanoseconds, or other non-negative quantities such as
+ * allocated bytes) are counted in log-linear buckets:  each power
+ * of two is divided into SUB_BUCKETS equal buckets, so any recorded
+ * value can be reported with a relative error below 1%, in a fixed
+ * amount of memory, no matter how many values are recorded.  Values
+ * below 2 * SUB_BUCKETS are counted exactly.
+ * <p>
+ * Percentiles are reported as the largest value that is equivalent to
+ * the bucket that contains the percentile (but no more than the
+ * largest recorded value), so they never understate latency.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Get the bucket that counts a value.
+     *
+     * @param value A non-negative value.
+     * @return The index of the bucket.
+     */
+    private static int bucketIndex(long value) {
+
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the largest value that is counted by a bucket.
+     *
+     * @param index The index of the bucket.
+     * @return The largest value in the bucket.
+     */
+    private static long bucketMax(int index) {
+
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return The largest recorded value, or 0.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0.
+     */
+    public double getMean() {
+        long n = this.count.get();
+        return (n == 0) ? 0 : this.sum.get() / (double) n;
+    }
+
+    /**
+     * @return The sum of the recorded values.
+     */
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    /**
+     * Get the value at a percentile.
+     *
+     * @param percentile A percentile between 0 and 100.
+     * @return The value, or 0 if no values were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long n = this.count.get();
+
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketMax(i), this.max.get());
+            }
+        }
+
+        return this.max.get();
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value A value.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+
+        value = Math.max(0, value);
+
+        this.counts.incrementAndGet(bucketIndex(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long m = this.max.get();
+        while ((value > m) && !this.max.compareAndSet(m, value)) {
+            m = this.max.get();
+        }
+    }
+}
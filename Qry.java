@@ -108,6 +108,12 @@ public abstract class Qry {
 
     protected double weight;
 
+    /**
+     * Profile counters, or null if the query is not being profiled.
+     * See QryProfile.
+     */
+    protected QryProfile profile = null;
+
     //  --------------- Methods ---------------------------------------
 
     /**
@@ -260,6 +266,19 @@ public abstract class Qry {
      * @return True if the query matches, otherwise false.
      */
     protected boolean docIteratorHasMatchAll(RetrievalModel r) {
+        long start = this.profileStart();
+        boolean found = this.docIteratorFindMatchAll(r);
+        this.profileHasMatch(start);
+        return found;
+    }
+
+    /**
+     * Find the next document that matches all query arguments.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return True if the query matches, otherwise false.
+     */
+    private boolean docIteratorFindMatchAll(RetrievalModel r) {
 
         boolean matchFound = false;
 
@@ -317,6 +336,19 @@ public abstract class Qry {
      * @return True if the query matches, otherwise false.
      */
     protected boolean docIteratorHasMatchFirst(RetrievalModel r) {
+        long start = this.profileStart();
+        boolean found = this.docIteratorFindMatchFirst(r);
+        this.profileHasMatch(start);
+        return found;
+    }
+
+    /**
+     * Find the next document that matches the first query argument.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return True if the query matches, otherwise false.
+     */
+    private boolean docIteratorFindMatchFirst(RetrievalModel r) {
 
         Qry q_0 = this.args.get(0);
 
@@ -339,6 +371,19 @@ public abstract class Qry {
      * @return True if the query matches, otherwise false.
      */
     protected boolean docIteratorHasMatchMin(RetrievalModel r) {
+        long start = this.profileStart();
+        boolean found = this.docIteratorFindMatchMin(r);
+        this.profileHasMatch(start);
+        return found;
+    }
+
+    /**
+     * Find the next document that matches at least one query argument.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return True if the query matches, otherwise false.
+     */
+    private boolean docIteratorFindMatchMin(RetrievalModel r) {
 
         int minDocid = Qry.INVALID_DOCID;
 
@@ -412,6 +457,31 @@ public abstract class Qry {
      */
     public abstract void initialize(RetrievalModel r) throws IOException;
 
+    /**
+     * Record a docIteratorHasMatch call in the profile.  The time is
+     * recorded only for QrySop operators; QryIop operators call
+     * docIteratorHasMatch while they are evaluated, and that time is
+     * part of their evaluate time.
+     *
+     * @param start The value of profileStart when the call began.
+     */
+    protected void profileHasMatch(long start) {
+        if (this.profile != null) {
+            this.profile.hasMatchCalls++;
+            if (this instanceof QrySop) {
+                this.profile.evaluateNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * @return The current time in nanoseconds if the query is being
+     * profiled, otherwise 0.
+     */
+    protected long profileStart() {
+        return (this.profile != null) ? System.nanoTime() : 0;
+    }
+
     /**
      * Removes an argument from the list of query operator arguments.
      *
@@ -0,0 +1,374 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Microbenchmarks for the retrieval hot paths:  InvList construction,
+ * QryIop.docIteratorAdvanceTo, QryIopNear/QryIopWindow/QryIopSyn
+ * evaluation, QrySopScore scoring with BM25 and Indri, ScoreList.sort,
+ * and QryParser.getQuery.
+ * <pre>
+ *    java QryBenchmark [-index INDEX_PATH] [-docs N] [-iterations N]
+ *                      [-seconds N] [-filter REGEX]
+ * </pre>
+ * By default a small synthetic index is built by IdxGenerator in a
+ * temporary directory, so that the benchmarks can run anywhere; -index uses an
+ * existing index instead (the benchmark terms must occur in it).
+ * <p>
+ * Each benchmark follows the usual microbenchmark discipline:  warmup
+ * iterations (so that the JIT compiler has optimized the code) are
+ * followed by measurement iterations, and the results of every
+ * invocation are consumed so that the JIT compiler can't discard the
+ * work.  Per-invocation setup, such as creating a fresh query operator
+ * whose iterators have not been consumed, is not timed.
+ * </p>
+ */
+public class QryBenchmark {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String USAGE =
+            "Usage:  java QryBenchmark [-index INDEX_PATH] [-docs N] [-iterations N]\n" +
+                    "                          [-seconds N] [-filter REGEX]\n\n";
+
+    /**
+     * Benchmark terms:  the two most frequent words of the synthetic
+     * index, and a less frequent word.
+     */
+    private static final String FREQUENT1 = IdxGenerator.getWord(0);
+    private static final String FREQUENT2 = IdxGenerator.getWord(1);
+    private static final String MEDIUM = IdxGenerator.getWord(100);
+
+    private static final RetrievalModel BM25 = new RetrievalModelBM25(1.2, 0.75, 0.0);
+    private static final RetrievalModel INDRI = new RetrievalModelIndri(2500, 0.4);
+
+    /**
+     * Prevents the JIT compiler from discarding benchmark results.
+     */
+    private static long sink = 0;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A benchmark.  setup prepares one invocation (untimed), and run
+     * is the invocation that is timed.
+     */
+    private static abstract class Benchmark {
+
+        private String name;
+
+        private Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepare one invocation of run.
+         *
+         * @throws Exception Error preparing the invocation.
+         */
+        void setup() throws Exception {
+        }
+
+        /**
+         * The code being measured.
+         *
+         * @return A value that depends on the work that was done.
+         * @throws Exception Error running the benchmark.
+         */
+        abstract long run() throws Exception;
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args See the usage message.
+     * @throws Exception Error building or accessing the index.
+     */
+    public static void main(String[] args) throws Exception {
+
+        String indexPath = null;
+        int docs = 20000;
+        int iterations = 5;
+        int seconds = 1;
+        Pattern filter = Pattern.compile(".*");
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            } else if (args[i].equals("-index")) {
+                indexPath = args[i + 1];
+            } else if (args[i].equals("-docs")) {
+                docs = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-iterations")) {
+                iterations = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-filter")) {
+                filter = Pattern.compile(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+
+        File tempDir = null;
+
+        if (indexPath == null) {
+            File dir = createTempDirectory();
+            tempDir = dir;
+            System.out.println("Building a synthetic index of " + docs + " documents in " + dir);
+            IdxGenerator generator = new IdxGenerator();
+            generator.numDocs = docs;
+            generator.vocabularySize = 10000;
+            generator.bodyLength = 150;
+            generator.termVectors = false;
+            generator.writeIndex(dir, false);
+            indexPath = dir.getPath();
+        }
+
+        Idx.open(indexPath);
+
+        System.out.println(String.format("%-36s %14s %14s %14s",
+                "Benchmark", "ns/op (mean)", "ns/op (min)", "ops/s"));
+
+        for (Benchmark b : createBenchmarks()) {
+            if (filter.matcher(b.name).find()) {
+                measure(b, iterations, seconds * 1000000000L);
+            }
+        }
+
+        System.out.println("(" + sink + ")");
+
+        if (tempDir != null) {
+            for (File f : tempDir.listFiles()) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Create the benchmarks.
+     *
+     * @return The benchmarks.
+     */
+    private static List<Benchmark> createBenchmarks() {
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("InvList(frequent.body)") {
+            long run() throws Exception {
+                return new InvList(FREQUENT1, "body").df;
+            }
+        });
+
+        benchmarks.add(new Benchmark("InvList(medium.body)") {
+            long run() throws Exception {
+                return new InvList(MEDIUM, "body").df;
+            }
+        });
+
+        benchmarks.add(new Benchmark("QryIop.docIteratorAdvanceTo") {
+            private QryIopTerm term;
+            private int[] targets;
+
+            void setup() throws Exception {
+                this.term = (QryIopTerm) createTerm(FREQUENT1, "body", null);
+                this.term.initialize(BM25);
+
+                if (this.targets == null) {
+                    InvList rare = new InvList(MEDIUM, "body");
+                    this.targets = new int[rare.df];
+                    for (int i = 0; i < rare.df; i++) {
+                        this.targets[i] = rare.getDocid(i);
+                    }
+                }
+            }
+
+            long run() {
+                long matches = 0;
+                for (int docid : this.targets) {
+                    this.term.docIteratorAdvanceTo(docid);
+                    if (!this.term.docIteratorHasMatch(null)) {
+                        break;
+                    }
+                    matches += this.term.docIteratorGetMatch();
+                }
+                return matches;
+            }
+        });
+
+        benchmarks.add(new IopEvaluateBenchmark("QryIopNear.evaluate #near/3", new QryIopNear(3)));
+        benchmarks.add(new IopEvaluateBenchmark("QryIopWindow.evaluate #window/8", new QryIopWindow(8)));
+        benchmarks.add(new IopEvaluateBenchmark("QryIopSyn.evaluate", new QryIopSyn()));
+
+        benchmarks.add(new ScoreBenchmark("QrySopScore.getScore BM25", BM25));
+        benchmarks.add(new ScoreBenchmark("QrySopScore.getScore Indri", INDRI));
+
+        benchmarks.add(new Benchmark("ScoreList.sort (10000 entries)") {
+            private ScoreList scores;
+            private ScoreList template;
+
+            void setup() throws Exception {
+                if (this.template == null) {
+                    Random random = new Random(1);
+                    int maxDoc = Idx.getMaxDoc();
+                    this.template = new ScoreList();
+                    for (int i = 0; i < 10000; i++) {
+                        this.template.add(random.nextInt(maxDoc), random.nextInt(1000) / 100.0);
+                    }
+                }
+                this.scores = new ScoreList();
+                for (int i = 0; i < this.template.size(); i++) {
+                    this.scores.add(this.template.getDocid(i), this.template.getDocidScore(i));
+                }
+            }
+
+            long run() {
+                this.scores.sort();
+                return this.scores.getDocid(0);
+            }
+        });
+
+        String[] vocabulary = new String[1000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = IdxGenerator.getWord(i);
+        }
+
+        final String query = QryParserBenchmark.createWideQuery(
+                new Random(1), vocabulary, 50, true);
+
+        benchmarks.add(new Benchmark("QryParser.getQuery (50 terms)") {
+            long run() throws Exception {
+                return QryParser.getQuery(query).args.size();
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * Create a TERM operator.  The operator may share its inverted list
+     * with other operators, so that initializing it again only resets
+     * its iterators.
+     *
+     * @param term   The term.
+     * @param field  The field.
+     * @param shared The shared inverted list, or null.
+     * @return The TERM operator.
+     */
+    private static QryIop createTerm(String term, String field, QryIop.SharedInvList shared) {
+        QryIopTerm t = new QryIopTerm(term, field);
+        t.sharedInvList = shared;
+        return t;
+    }
+
+    /**
+     * @return A new, empty temporary directory.
+     * @throws IOException Unable to create the directory.
+     */
+    private static File createTempDirectory() throws IOException {
+        File dir = File.createTempFile("QryBenchmark", "");
+        if (!(dir.delete() && dir.mkdir())) {
+            throw new IOException("Unable to create a temporary directory.");
+        }
+        dir.deleteOnExit();     // After main deletes the index files
+        return dir;
+    }
+
+    /**
+     * Run a benchmark.  Each iteration runs for about the same amount
+     * of time.
+     *
+     * @param b          The benchmark.
+     * @param iterations The number of warmup and measurement iterations.
+     * @param nanos      The length of each iteration.
+     * @throws Exception Error running the benchmark.
+     */
+    private static void measure(Benchmark b, int iterations, long nanos) throws Exception {
+
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+
+        for (int i = 0; i < 2 * iterations; i++) {
+            long ops = 0;
+            long elapsed = 0;
+            long stop = System.nanoTime() + nanos;
+
+            while (System.nanoTime() < stop) {
+                b.setup();
+                long start = System.nanoTime();
+                sink += b.run();
+                elapsed += System.nanoTime() - start;
+                ops++;
+            }
+
+            if (i >= iterations) {        // The first half are warmup iterations
+                double nsPerOp = elapsed / (double) ops;
+                mean += nsPerOp / iterations;
+                min = Math.min(min, nsPerOp);
+            }
+        }
+
+        System.out.println(String.format("%-36s %14.1f %14.1f %14.1f",
+                b.name, mean, min, 1e9 / mean));
+    }
+
+    /**
+     * Measures QryIop.evaluate for a proximity or synonym operator over
+     * two frequent terms.  The argument inverted lists are fetched once;
+     * setup only resets their iterators.
+     */
+    private static class IopEvaluateBenchmark extends Benchmark {
+
+        private QryIop operator;
+        private QryIop.SharedInvList[] lists = {
+                new QryIop.SharedInvList(), new QryIop.SharedInvList()};
+
+        private IopEvaluateBenchmark(String name, QryIop operator) {
+            super(name);
+            this.operator = operator;
+            this.operator.appendArg(createTerm(FREQUENT1, "body", this.lists[0]));
+            this.operator.appendArg(createTerm(FREQUENT2, "body", this.lists[1]));
+        }
+
+        void setup() throws Exception {
+            for (Qry q_i : this.operator.args) {
+                q_i.initialize(BM25);
+            }
+        }
+
+        long run() throws Exception {
+            this.operator.evaluate();
+            return this.operator.invertedList.df;
+        }
+    }
+
+    /**
+     * Measures QrySopScore.getScore over every document in a frequent
+     * term's inverted list.
+     */
+    private static class ScoreBenchmark extends Benchmark {
+
+        private RetrievalModel model;
+        private QrySopScore score = new QrySopScore();
+
+        private ScoreBenchmark(String name, RetrievalModel model) {
+            super(name);
+            this.model = model;
+            this.score.appendArg(createTerm(FREQUENT1, "body", new QryIop.SharedInvList()));
+        }
+
+        void setup() throws Exception {
+            this.score.initialize(this.model);
+        }
+
+        long run() throws Exception {
+            double total = 0;
+            while (this.score.docIteratorHasMatch(this.model)) {
+                int docid = this.score.docIteratorGetMatch();
+                total += this.score.getScore(this.model);
+                this.score.docIteratorAdvancePast(docid);
+            }
+            return (long) total;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Bitmap evaluation of unranked Boolean queries.
+ * <p>
+ * The unranked Boolean model only decides which documents match; every
+ * match scores 1.0.  Document-at-a-time evaluation nevertheless reads
+ * each term's full inverted list, with positions, and steps through
+ * the lists one document at a time.  QryBitmap instead turns each term
+ * into a compressed docid set (see DocBitmap), read from Lucene without
+ * frequencies or positions, and evaluates #AND and #OR as intersections
+ * and unions of the sets.
+ * </p><p>
+ * Positions are read only where they are needed:  #NEAR and #WINDOW
+ * (and any other inverted list operator whose matches depend on
+ * positions) are evaluated as usual, and their inverted lists are
+ * converted to docid sets.  #SYN is the union of its arguments' sets.
+ * </p><p>
+ * Term docid sets may be cached (bitmap:cacheMB), keyed by the reader
+ * that they were read from (see Idx.getCacheKey).
+ * </p>
+ */
+public class QryBitmap {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * Term docid sets, keyed by reader, field, and term, or null if they
+     * are not cached.
+     */
+    private BoundedCache<String, DocBitmap> cache = null;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param cacheBytes The size of the term docid set cache in bytes,
+     *                   or 0 if term docid sets are not cached.
+     */
+    public QryBitmap(long cacheBytes) {
+
+        if (cacheBytes > 0) {
+            this.cache = new BoundedCache<String, DocBitmap>(cacheBytes);
+            QryMetrics.registerCache("termBitmaps", this.cache);
+        }
+    }
+
+    /**
+     * Decide whether a query can be evaluated with docid sets.
+     *
+     * @param q A parsed query.
+     * @param r The retrieval model.
+     * @return True if the model is unranked Boolean, and the query's
+     * score operators are #AND, #OR, and #SCORE.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+        return (r instanceof RetrievalModelUnrankedBoolean) && isSupported(q);
+    }
+
+    /**
+     * @param q A query.
+     * @return True if the query's score operators are supported.
+     */
+    private static boolean isSupported(Qry q) {
+
+        if (q instanceof QryIop) {
+            return true;
+        }
+
+        if (!((q instanceof QrySopAnd) || (q instanceof QrySopOr) ||
+                (q instanceof QrySopScore))) {
+            return false;
+        }
+
+        for (Qry q_i : q.args) {
+            if (!isSupported(q_i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluate a parsed, uninitialized query.
+     *
+     * @param q A query that canEvaluate accepts.
+     * @param r The retrieval model.
+     * @return The matching documents, each with score 1.0, in docid order.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public ScoreList evaluate(Qry q, RetrievalModel r) throws IOException {
+
+        ScoreList result = new ScoreList();
+
+        for (int docid : this.getMatches(q, r).toArray()) {
+            result.add(docid, 1.0);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the documents that a parsed, uninitialized query matches.
+     *
+     * @param q A query that canEvaluate accepts.
+     * @param r The retrieval model.
+     * @return The matching documents.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public DocBitmap getMatches(Qry q, RetrievalModel r) throws IOException {
+        return this.getBitmap(q, r);
+    }
+
+    /**
+     * Get the docid set of a query.
+     *
+     * @param q A query.
+     * @param r The retrieval model.
+     * @return The documents that the query matches.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private DocBitmap getBitmap(Qry q, RetrievalModel r) throws IOException {
+
+        if (q instanceof QryIopTerm) {
+            QryIopTerm t = (QryIopTerm) q;
+            return this.getTermBitmap(t.getTerm(), t.getField());
+        }
+
+        if (q instanceof QryIopSyn) {
+            DocBitmap union = new DocBitmap();
+
+            for (Qry q_i : q.args) {
+                union = union.or(this.getBitmap(q_i, r));
+            }
+
+            return union;
+        }
+
+        if (q instanceof QryIop) {
+
+            //  The operator needs positions, so evaluate its inverted list.
+
+            q.initialize(r);
+            InvList list = ((QryIop) q).invertedList;
+            DocBitmap b = new DocBitmap();
+
+            for (int i = 0; i < list.df; i++) {
+                b.add(list.getDocid(i));
+            }
+
+            return b;
+        }
+
+        if (q.args.isEmpty()) {
+            return new DocBitmap();
+        }
+
+        if (q instanceof QrySopScore) {
+            return this.getBitmap(q.args.get(0), r);
+        }
+
+        if (q instanceof QrySopOr) {
+            DocBitmap union = new DocBitmap();
+
+            for (Qry q_i : q.args) {
+                union = union.or(this.getBitmap(q_i, r));
+            }
+
+            return union;
+        }
+
+        //  #AND.  Intersect the smallest sets first, so that the
+        //  intermediate results stay small, and stop if one is empty.
+
+        List<DocBitmap> sets = new ArrayList<DocBitmap>();
+
+        for (Qry q_i : q.args) {
+            DocBitmap b = this.getBitmap(q_i, r);
+
+            if (b.cardinality() == 0) {
+                return b;
+            }
+
+            sets.add(b);
+        }
+
+        Collections.sort(sets, new Comparator<DocBitmap>() {
+            @Override
+            public int compare(DocBitmap a, DocBitmap b) {
+                return Integer.compare(a.cardinality(), b.cardinality());
+            }
+        });
+
+        DocBitmap intersection = sets.get(0);
+
+        for (int i = 1; (i < sets.size()) && (intersection.cardinality() > 0); i++) {
+            intersection = intersection.and(sets.get(i));
+        }
+
+        return intersection;
+    }
+
+    /**
+     * Get the docid set of a term in the current thread's index, from
+     * the cache if possible.
+     *
+     * @param termString  The processed term string.
+     * @param fieldString The field that the term occurs in.
+     * @return The documents that contain the term.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private DocBitmap getTermBitmap(String termString, String fieldString)
+            throws IOException {
+
+        String key = null;
+
+        if (this.cache != null) {
+            key = Idx.getCacheKey() + "\t" + fieldString + "\t" + termString;
+            DocBitmap cached = this.cache.get(key);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        //  Read docids only, not frequencies or positions.
+
+        IndexReader reader = Idx.getIndexReader();
+        DocBitmap b = new DocBitmap();
+        DocsEnum docs = MultiFields.getTermDocsEnum(reader,
+                MultiFields.getLiveDocs(reader), fieldString, new BytesRef(termString),
+                DocsEnum.FLAG_NONE);
+
+        if (docs != null) {
+            long postings = 0;
+
+            while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                b.add(docs.docID());
+                postings++;
+            }
+
+            QryMetrics.POSTINGS_DECODED.addAndGet(postings);
+        }
+
+        if (this.cache != null) {
+            this.cache.put(key, b, b.sizeInBytes());
+        }
+
+        return b;
+    }
+}
@@ -33,6 +33,97 @@ public class QryEval {
     private static final String[] TEXT_FIELDS =
             {"body", "title", "url", "inlink"};
 
+    /**
+     * How queries are evaluated:  daat (document-at-a-time), taat
+     * (term-at-a-time when the query shape allows it), auto
+     * (term-at-a-time for short queries that allow it, and docid sets
+     * for unranked Boolean queries), compiled (document-at-a-time with
+     * a compiled QryProgram), or bitmap (docid sets for unranked
+     * Boolean queries that allow it).
+     */
+    private static String evaluation = "daat";
+
+    /**
+     * The docid set evaluator, if evaluation is bitmap or auto.
+     */
+    private static QryBitmap bitmap = null;
+
+    /**
+     * The number of unranked Boolean results to find, or 0 to find all
+     * matches.  Every match scores 1.0, so the results are the matches
+     * with the smallest external ids (see IdxExternalIdOrder).  Off
+     * unless unrankedBoolean:earlyTermination is true.
+     */
+    private static int unrankedResults = 0;
+
+    /**
+     * The top-k evaluator for ranked Boolean queries, if
+     * rankedBoolean:pruning is maxscore.
+     */
+    private static QryMaxScore maxScore = null;
+
+    /**
+     * The term-at-a-time evaluator, if evaluation is taat or auto.
+     */
+    private static QryTaat taat = null;
+
+    /**
+     * In auto mode, the longest query evaluated term-at-a-time.
+     */
+    private static int taatMaxTerms = 4;
+
+    /**
+     * Whether QryPlanner reorders query arguments before evaluation,
+     * and whether the chosen plan is displayed.
+     */
+    private static boolean queryPlanner = true;
+    private static boolean queryPlannerDisplay = false;
+
+    /**
+     * Whether each query is profiled (see QryProfile).  Profiled
+     * queries are evaluated document-at-a-time, so that the profile
+     * describes the query tree.
+     */
+    private static boolean profile = false;
+
+    /**
+     * Where and how QryMetrics are written, or null if they are not.
+     */
+    private static String metricsPath = null;
+    private static String metricsFormat = QryMetrics.FORMAT_JSON;
+
+    /**
+     * Queries that allocate more bytes than this are reported, or 0 for
+     * no limit.
+     */
+    private static long allocationBudget = 0;
+
+    /**
+     * Searches every open index when searchMode is federated, or null
+     * if queries are evaluated against the current index only.
+     */
+    private static QryFederation federation = null;
+
+    /**
+     * Searches each segment of the current index when searchMode is
+     * segments, or null.
+     */
+    private static QrySegmentSearch segmentSearch = null;
+
+    /**
+     * Expands each query with pseudo-relevance feedback when fb is
+     * true, or null.
+     */
+    private static QryExpansion expansion = null;
+
+    /**
+     * Extracts learning-to-rank features of the top rerankDepth results
+     * when ltr:featureVectorsPath is set, or null.
+     */
+    private static QryFeatures features = null;
+    private static String featureVectorsPath = null;
+    private static int rerankDepth = 100;
+
 
     //  --------------- Methods ---------------------------------------
 
@@ -63,8 +154,28 @@ public class QryEval {
 
         //  Open the index and initialize the retrieval model.
 
-        Idx.open(parameters.get("indexPath"));
+        if (parameters.containsKey("snapshot")) {
+            Idx.setSnapshotMode(parameters.get("snapshot").toLowerCase());
+        }
+
+        for (String indexPath : parameters.get("indexPath").split(",")) {
+            Idx.open(indexPath.trim());
+        }
+
         RetrievalModel model = initializeRetrievalModel(parameters);
+        initializeEvaluation(parameters);
+        initializeMetrics(parameters);
+        initializeSearchMode(parameters);
+        initializeFeedback(parameters, model);
+        initializeFeatures(parameters);
+
+        //  In server mode, answer queries from clients until the server
+        //  is stopped.
+
+        if ("server".equalsIgnoreCase(parameters.get("mode"))) {
+            new QryServer(parameters, model).run();
+            return;
+        }
 
         //  Perform experiments.
         int trecEvalOutputLength = 0;
@@ -77,6 +188,10 @@ public class QryEval {
 
         //  Clean up.
 
+        if (metricsPath != null) {
+            QryMetrics.stopPeriodicExport();
+            QryMetrics.write(metricsPath, metricsFormat);
+        }
 
         timer.stop();
         System.out.println("Time:  " + timer);
@@ -117,21 +232,338 @@ public class QryEval {
     }
 
     /**
-     * Print a message indicating the amount of memory used. The caller can
-     * indicate whether garbage collection should be performed, which slows the
-     * program but reduces memory usage.
+     * Configure how queries are evaluated using parameters from the
+     * parameter file.
+     *
+     * @param parameters The parameters from the parameter file.
+     */
+    private static void initializeEvaluation(Map<String, String> parameters) {
+
+        if (parameters.containsKey("queryPlanner")) {
+            queryPlanner = Boolean.parseBoolean(parameters.get("queryPlanner"));
+        }
+        if (parameters.containsKey("queryPlanner:display")) {
+            queryPlannerDisplay = Boolean.parseBoolean(parameters.get("queryPlanner:display"));
+        }
+
+        if (parameters.containsKey("profile")) {
+            profile = Boolean.parseBoolean(parameters.get("profile"));
+        }
+
+        if (parameters.containsKey("evaluation")) {
+            evaluation = parameters.get("evaluation").toLowerCase();
+        }
+
+        if (parameters.containsKey("rankedBoolean:pruning")) {
+            String pruning = parameters.get("rankedBoolean:pruning").toLowerCase();
+
+            if (pruning.equals("maxscore")) {
+                int topK = 100;
+
+                if (parameters.containsKey("trecEvalOutputLength")) {
+                    topK = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+                }
+
+                maxScore = new QryMaxScore(topK);
+            } else if (!pruning.equals("none")) {
+                throw new IllegalArgumentException
+                        ("Unknown rankedBoolean:pruning " + parameters.get("rankedBoolean:pruning"));
+            }
+        }
+
+        if (Boolean.parseBoolean(parameters.get("unrankedBoolean:earlyTermination"))) {
+            unrankedResults = 100;
+
+            if (parameters.containsKey("trecEvalOutputLength")) {
+                unrankedResults = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+            }
+        }
+
+        if (parameters.containsKey("postingsCacheMB")) {
+            CompressedInvList.setCacheSize((long) (Double.parseDouble(
+                    parameters.get("postingsCacheMB")) * 1024 * 1024));
+        }
+
+        if (evaluation.equals("bitmap") || evaluation.equals("auto")) {
+            double cacheMB = 0;
+
+            if (parameters.containsKey("bitmap:cacheMB")) {
+                cacheMB = Double.parseDouble(parameters.get("bitmap:cacheMB"));
+            }
+
+            bitmap = new QryBitmap((long) (cacheMB * 1024 * 1024));
+        }
+
+        if (evaluation.equals("daat") || evaluation.equals("compiled") ||
+                evaluation.equals("bitmap")) {
+            return;
+        } else if (!(evaluation.equals("taat") || evaluation.equals("auto"))) {
+            throw new IllegalArgumentException
+                    ("Unknown evaluation strategy " + parameters.get("evaluation"));
+        }
+
+        String accumulators = "auto";
+        String pruning = QryTaat.PRUNING_NONE;
+        int maxAccumulators = 0;
+
+        if (parameters.containsKey("taat:accumulators")) {
+            accumulators = parameters.get("taat:accumulators").toLowerCase();
+        }
+        if (parameters.containsKey("taat:pruning")) {
+            pruning = parameters.get("taat:pruning").toLowerCase();
+        }
+        if (parameters.containsKey("taat:maxAccumulators")) {
+            maxAccumulators = Integer.parseInt(parameters.get("taat:maxAccumulators"));
+        }
+        if (parameters.containsKey("taat:maxTerms")) {
+            taatMaxTerms = Integer.parseInt(parameters.get("taat:maxTerms"));
+        }
+
+        taat = new QryTaat(accumulators, pruning, maxAccumulators);
+    }
+
+    /**
+     * Configure whether queries search the current index, each segment
+     * of the current index, or every open index (federated search)
+     * using parameters from the parameter file.
+     * indexPath may list several indexes, separated by commas; the
+     * first one is the current index.
      *
-     * @param gc If true, run the garbage collector before reporting.
+     * @param parameters The parameters from the parameter file.
      */
-    public static void printMemoryUsage(boolean gc) {
+    private static void initializeSearchMode(Map<String, String> parameters) {
+
+        String searchMode = "single";
 
-        Runtime runtime = Runtime.getRuntime();
+        if (parameters.containsKey("searchMode")) {
+            searchMode = parameters.get("searchMode").toLowerCase();
+        }
+
+        if (searchMode.equals("single")) {
+            return;
+        } else if (searchMode.equals("segments")) {
+            initializeSegmentSearch(parameters);
+            return;
+        } else if (!searchMode.equals("federated")) {
+            throw new IllegalArgumentException
+                    ("Unknown search mode " + parameters.get("searchMode"));
+        }
+
+        List<String> shards = Idx.getOpenIndexPaths();
+        int topK = 100;
+        int threads = shards.size();
+        int statisticsCacheSize = 10000;
 
-        if (gc)
-            runtime.gc();
+        if (parameters.containsKey("trecEvalOutputLength")) {
+            topK = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        }
+        if (parameters.containsKey("federation:threads")) {
+            threads = Integer.parseInt(parameters.get("federation:threads"));
+        }
+
+        if (parameters.containsKey("federation:statisticsCacheSize")) {
+            statisticsCacheSize = Integer.parseInt(parameters.get("federation:statisticsCacheSize"));
+        }
+        if (parameters.containsKey("federation:statistics")) {
+            String statistics = parameters.get("federation:statistics").toLowerCase();
+
+            if (statistics.equals("local")) {
+                statisticsCacheSize = 0;
+            } else if (!statistics.equals("global")) {
+                throw new IllegalArgumentException
+                        ("Unknown federation:statistics " + parameters.get("federation:statistics"));
+            }
+        }
 
-        System.out.println("Memory used:  "
-                + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
+        federation = new QryFederation(shards, topK, threads, statisticsCacheSize);
+    }
+
+    /**
+     * Configure per-segment evaluation using parameters from the
+     * parameter file.
+     *
+     * @param parameters The parameters from the parameter file.
+     */
+    private static void initializeSegmentSearch(Map<String, String> parameters) {
+
+        int topK = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int statisticsCacheSize = 10000;
+
+        if (parameters.containsKey("trecEvalOutputLength")) {
+            topK = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        }
+        if (parameters.containsKey("segments:threads")) {
+            threads = Integer.parseInt(parameters.get("segments:threads"));
+        }
+        if (parameters.containsKey("segments:statisticsCacheSize")) {
+            statisticsCacheSize = Integer.parseInt(parameters.get("segments:statisticsCacheSize"));
+        }
+
+        segmentSearch = new QrySegmentSearch(topK, threads, statisticsCacheSize);
+    }
+
+    /**
+     * Configure pseudo-relevance feedback using parameters from the
+     * parameter file.
+     *
+     * @param parameters The parameters from the parameter file.
+     * @param model      The retrieval model.
+     */
+    private static void initializeFeedback(Map<String, String> parameters, RetrievalModel model) {
+
+        if (!Boolean.parseBoolean(parameters.get("fb"))) {
+            return;
+        }
+
+        if (!(model instanceof RetrievalModelIndri)) {
+            throw new IllegalArgumentException("Feedback needs the Indri retrieval model.");
+        }
+        if (federation != null) {
+            throw new IllegalArgumentException("Feedback is not supported in federated search.");
+        }
+
+        int fbDocs = 10;
+        int fbTerms = 10;
+        double fbMu = 0;
+        double fbOrigWeight = 0.5;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 100000;
+
+        if (parameters.containsKey("fbDocs")) {
+            fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+        }
+        if (parameters.containsKey("fbTerms")) {
+            fbTerms = Integer.parseInt(parameters.get("fbTerms"));
+        }
+        if (parameters.containsKey("fbMu")) {
+            fbMu = Double.parseDouble(parameters.get("fbMu"));
+        }
+        if (parameters.containsKey("fbOrigWeight")) {
+            fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+        }
+        if (parameters.containsKey("fb:threads")) {
+            threads = Integer.parseInt(parameters.get("fb:threads"));
+        }
+        if (parameters.containsKey("fb:statisticsCacheSize")) {
+            cacheSize = Integer.parseInt(parameters.get("fb:statisticsCacheSize"));
+        }
+
+        expansion = new QryExpansion(fbDocs, fbTerms, fbMu, fbOrigWeight, threads, cacheSize);
+    }
+
+    /**
+     * Configure learning-to-rank feature extraction using parameters
+     * from the parameter file.  The BM25 and Indri features use the
+     * BM25 and Indri parameters, or the usual defaults.
+     *
+     * @param parameters The parameters from the parameter file.
+     */
+    private static void initializeFeatures(Map<String, String> parameters) {
+
+        if (!parameters.containsKey("ltr:featureVectorsPath")) {
+            return;
+        }
+
+        if (federation != null) {
+            throw new IllegalArgumentException
+                    ("Feature extraction is not supported in federated search.");
+        }
+
+        double k_1 = 1.2;
+        double b = 0.75;
+        double k_3 = 0;
+        int mu = 2500;
+        double lambda = 0.4;
+
+        if (parameters.containsKey("BM25:k_1")) {
+            k_1 = Double.parseDouble(parameters.get("BM25:k_1"));
+        }
+        if (parameters.containsKey("BM25:b")) {
+            b = Double.parseDouble(parameters.get("BM25:b"));
+        }
+        if (parameters.containsKey("BM25:k_3")) {
+            k_3 = Double.parseDouble(parameters.get("BM25:k_3"));
+        }
+        if (parameters.containsKey("Indri:mu")) {
+            mu = Integer.parseInt(parameters.get("Indri:mu"));
+        }
+        if (parameters.containsKey("Indri:lambda")) {
+            lambda = Double.parseDouble(parameters.get("Indri:lambda"));
+        }
+        if (parameters.containsKey("ltr:rerankDepth")) {
+            rerankDepth = Integer.parseInt(parameters.get("ltr:rerankDepth"));
+        }
+
+        featureVectorsPath = parameters.get("ltr:featureVectorsPath");
+        features = new QryFeatures(new RetrievalModelBM25(k_1, b, k_3),
+                new RetrievalModelIndri(mu, lambda));
+
+        //  Each query's feature vectors are appended to the file.
+
+        new File(featureVectorsPath).delete();
+    }
+
+    /**
+     * Configure QryMetrics exports using parameters from the parameter
+     * file.
+     *
+     * @param parameters The parameters from the parameter file.
+     */
+    private static void initializeMetrics(Map<String, String> parameters) {
+
+        if (parameters.containsKey("allocationBudgetMB")) {
+            allocationBudget = (long) (Double.parseDouble(parameters.get("allocationBudgetMB")) *
+                    1024 * 1024);
+        }
+
+        if (!parameters.containsKey("metricsPath")) {
+            return;
+        }
+
+        metricsPath = parameters.get("metricsPath");
+
+        if (parameters.containsKey("metricsFormat")) {
+            metricsFormat = parameters.get("metricsFormat").toLowerCase();
+        }
+
+        if (!(metricsFormat.equals(QryMetrics.FORMAT_JSON) ||
+                metricsFormat.equals(QryMetrics.FORMAT_PROMETHEUS))) {
+            throw new IllegalArgumentException
+                    ("Unknown metrics format " + parameters.get("metricsFormat"));
+        }
+
+        if (parameters.containsKey("metricsInterval")) {
+            long seconds = Long.parseLong(parameters.get("metricsInterval"));
+
+            if (seconds > 0) {
+                QryMetrics.startPeriodicExport(metricsPath, metricsFormat, seconds);
+            }
+        }
+    }
+
+    /**
+     * Decide whether an initialized query is evaluated term-at-a-time.
+     *
+     * @param q     An initialized query.
+     * @param model The retrieval model.
+     * @return True if the query should be evaluated term-at-a-time.
+     */
+    private static boolean useTaat(Qry q, RetrievalModel model) {
+
+        if ((taat == null) || !QryTaat.canEvaluate(q, model)) {
+            return false;
+        }
+
+        return evaluation.equals("taat") || (q.args.size() <= taatMaxTerms);
+    }
+
+    /**
+     * @return The allocation budget of a query in bytes, or 0 for no
+     * limit.
+     */
+    static long getAllocationBudget() {
+        return allocationBudget;
     }
 
     /**
@@ -144,6 +576,94 @@ public class QryEval {
      */
     static ScoreList processQuery(String qString, RetrievalModel model)
             throws IOException {
+        return processQuery(qString, model, true);
+    }
+
+    /**
+     * Process one query.  processQuery may be called by several threads
+     * at once.  In federated search mode, the query is evaluated against
+     * every open index, and in segments mode, against each segment of
+     * the current index; the results are merged.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param display If true, display the query, its plan, and its profile.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, boolean display)
+            throws IOException {
+
+        if (federation != null) {
+            if (display) {
+                System.out.println("    --> federated:  " + qString);
+            }
+            return federation.search(qString, model);
+        }
+
+        //  Hold a reference to the current reader, so that the query
+        //  finishes on it even if the index is reopened meanwhile.
+
+        Idx.setThreadIndex(Idx.getIndexPath());
+
+        try {
+            ScoreList r = search(qString, model, display);
+
+            //  With feedback, search again with the expanded query.  The
+            //  same reader is used, so the feedback documents match.
+
+            if ((expansion != null) && (r != null)) {
+                String expanded = expansion.expand(qString, r, model);
+
+                if (expanded != null) {
+                    if (display) {
+                        System.out.println("    --> expanded:  " + expanded);
+                    }
+                    r = search(expanded, model, false);
+                }
+            }
+
+            return r;
+        } finally {
+            Idx.setThreadIndex(null);
+        }
+    }
+
+    /**
+     * Search the current thread's index, or each of its segments in
+     * segments mode.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param display If true, display the query, its plan, and its profile.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    private static ScoreList search(String qString, RetrievalModel model, boolean display)
+            throws IOException {
+
+        if (segmentSearch != null) {
+            if (display) {
+                System.out.println("    --> segments:  " + qString);
+            }
+            return segmentSearch.search(qString, model);
+        }
+
+        return evaluateQuery(qString, model, display);
+    }
+
+    /**
+     * Evaluate one query against the current thread's index (see
+     * Idx.setThreadIndex).
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param display If true, display the query, its plan, and its profile.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList evaluateQuery(String qString, RetrievalModel model, boolean display)
+            throws IOException {
 
         String defaultOp = model.defaultQrySopName();
         qString = defaultOp + "(" + qString + ")";
@@ -151,7 +671,9 @@ public class QryEval {
 
         // Show the query that is evaluated
 
-        System.out.println("    --> " + q);
+        if (display) {
+            System.out.println("    --> " + q);
+        }
 
         if (q != null) {
 
@@ -159,14 +681,60 @@ public class QryEval {
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                if (profile) {
+                    QryProfile.enable(q);
+                }
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                if (queryPlanner) {
+                    String plan = QryPlanner.plan(q, model);
+
+                    if (queryPlannerDisplay && display) {
+                        System.out.print(plan);
+                    }
                 }
+
+                QryProgram program = null;
+                boolean useBitmap = (bitmap != null) && !profile &&
+                        QryBitmap.canEvaluate(q, model);
+                boolean earlyTermination = (unrankedResults > 0) && !profile &&
+                        QryBitmap.canEvaluate(q, model);
+                boolean useMaxScore = (maxScore != null) && !profile &&
+                        QryMaxScore.canEvaluate(q, model);
+
+                if (!useBitmap) {
+                    q.initialize(model);
+
+                    if (evaluation.equals("compiled") && !profile && !earlyTermination &&
+                            !useMaxScore) {
+                        program = QryProgram.compile(q, model);
+                    }
+                }
+
+                if (earlyTermination) {
+                    r = firstUnrankedMatches(useBitmap ? bitmap.getMatches(q, model) :
+                            getMatches(q, model));
+                } else if (useMaxScore) {
+                    r = maxScore.evaluate(q, model);
+                } else if (useBitmap) {
+                    r = bitmap.evaluate(q, model);
+                } else if (program != null) {
+                    r = program.evaluate();
+                } else if (!profile && useTaat(q, model)) {
+                    r = taat.evaluate(q, model);
+                } else {
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = ((QrySop) q).getScore(model);
+                        r.add(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
+                }
+
+                if (profile && display) {
+                    System.out.print(QryProfile.format(q, "    "));
+                }
+
+                QryMetrics.DOCUMENTS_SCORED.addAndGet(r.size());
             }
             r.sort();
             return r;
@@ -174,6 +742,52 @@ public class QryEval {
             return null;
     }
 
+    /**
+     * Find the documents that an initialized query matches, without
+     * scoring them.
+     *
+     * @param q     An initialized query.
+     * @param model The retrieval model.
+     * @return The matching documents.
+     * @throws IOException Error accessing the index
+     */
+    private static DocBitmap getMatches(Qry q, RetrievalModel model) throws IOException {
+
+        DocBitmap matches = new DocBitmap();
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+            matches.add(docid);
+            q.docIteratorAdvancePast(docid);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Get the unranked Boolean results of a query:  the matches with
+     * the smallest external ids, each with score 1.0.  If the index has
+     * no external id order, every match is a result, and the caller's
+     * sort orders them.
+     *
+     * @param matches The documents that the query matches.
+     * @return The results.
+     * @throws IOException Error accessing the index
+     */
+    private static ScoreList firstUnrankedMatches(DocBitmap matches) throws IOException {
+
+        ScoreList r = new ScoreList();
+        IdxExternalIdOrder order = Idx.getExternalIdOrder();
+        int[] docids = (order != null) ? order.first(matches, unrankedResults) :
+                matches.toArray();
+
+        for (int docid : docids) {
+            r.add(docid, 1.0);
+        }
+
+        return r;
+    }
+
     /**
      * Process the query file.
      *
@@ -205,8 +819,6 @@ public class QryEval {
                             ("Syntax error:  Missing ':' in query line.");
                 }
 
-                printMemoryUsage(false);
-
                 String qid = qLine.substring(0, d);
                 String query = qLine.substring(d + 1);
 
@@ -214,11 +826,37 @@ public class QryEval {
 
                 ScoreList r = null;
 
-                r = processQuery(query, model);
+                long start = System.nanoTime();
+                QryMetrics.QueryResources resources = QryMetrics.beginQuery();
+
+                try {
+                    r = processQuery(query, model);
+                } finally {
+                    QryMetrics.leaveQuery();
+                }
+
+                QryMetrics.recordQuery(System.nanoTime() - start);
+                QryMetrics.recordQueryResources(
+                        resources, (r == null) ? 0 : r.size(), allocationBudget);
+
+                long allocated = resources.getAllocatedBytes();
+                long peakInvList = resources.getPeakInvList();
+
+                if ((allocationBudget > 0) && (allocated > allocationBudget)) {
+                    System.out.println(String.format(
+                            "Query %s allocated %.1f MB, over the budget of %.1f MB" +
+                                    " (largest inverted list:  %d postings, results:  %d)",
+                            qid, allocated / 1048576.0, allocationBudget / 1048576.0,
+                            peakInvList, (r == null) ? 0 : r.size()));
+                }
 
                 if (r != null) {
                     printResults(qid, r, trecEvalOutputLength);
                     writeResults(qid, r, trecEvalOutputPath, trecEvalOutputLength);
+
+                    if (features != null) {
+                        writeFeatures(qid, query, r);
+                    }
                     System.out.println();
                 }
             }
@@ -248,7 +886,7 @@ public class QryEval {
             System.out.println("\tNo results.");
         } else {
             for (int i = 0; i < Math.min(trecEvalOutputLength, result.size()); i++) {
-                System.out.println("\t" + i + ":  " + Idx.getExternalDocid(result.getDocid(i)) + ", "
+                System.out.println("\t" + i + ":  " + result.getExternalDocid(i) + ", "
                         + result.getDocidScore(i));
             }
         }
@@ -278,7 +916,7 @@ public class QryEval {
             filewriter = new FileWriter(file, true);
             bufferedwriter = new BufferedWriter(filewriter);
             for (int i = 0; i < Math.min(trecEvalOutputLength, result.size()); i++) {
-                bufferedwriter.write(queryName + " " + "Q0" + " " + Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1)
+                bufferedwriter.write(queryName + " " + "Q0" + " " + result.getExternalDocid(i) + " " + (i + 1)
                         + " " + result.getDocidScore(i) + " " + "hanko");
                 bufferedwriter.newLine();
             }
@@ -301,6 +939,37 @@ public class QryEval {
         }
     }
 
+    /**
+     * Extract the features of a query's top rerankDepth results, and
+     * append them to the feature vector file in SVMlight format.  Every
+     * document is labeled 0.
+     *
+     * @param qid     The query id.
+     * @param qString The query string.
+     * @param result  The query's results, sorted.
+     * @throws IOException Error accessing the index or the file.
+     */
+    static void writeFeatures(String qid, String qString, ScoreList result) throws IOException {
+
+        int n = Math.min(rerankDepth, result.size());
+        int[] docids = new int[n];
+        String[] externalIds = new String[n];
+
+        for (int i = 0; i < n; i++) {
+            docids[i] = result.getDocid(i);
+            externalIds[i] = result.getExternalDocid(i);
+        }
+
+        float[][] vectors = features.extract(QryFeatures.getTerms(qString), docids);
+        Writer output = new BufferedWriter(new FileWriter(featureVectorsPath, true));
+
+        try {
+            QryFeatures.writeSvmLight(output, qid, new int[n], vectors, externalIds);
+        } finally {
+            output.close();
+        }
+    }
+
     /**
      * Read the specified parameter file, and confirm that the required
      * parameters are present.  The parameters are returned in a
@@ -0,0 +1,347 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ * Indri-style pseudo-relevance feedback.  The top fbDocs documents of
+ * the original ranking are assumed to be relevant; the terms in their
+ * body fields are scored, and the best fbTerms terms form an expansion
+ * query that is combined with the original query:
+ * <pre>
+ *    #wand (fbOrigWeight #and (original) (1 - fbOrigWeight) #wand (w1 t1 w2 t2 ...))
+ * </pre>
+ * The score of a term t is
+ * <pre>
+ *    sum over top documents d of p(t|d) * score(d) * log (1 / p(t|C))
+ *    p(t|d) = (tf(t,d) + fbMu * p(t|C)) / (|d| + fbMu)
+ * </pre>
+ * where p(t|C) is ctf / |C|.  The sum is over every top document,
+ * including documents that do not contain t, so it is computed as
+ * p(t|C) times a constant that is shared by all terms, plus a sum over
+ * the documents that do contain t.  Terms that contain '.' or ',' are
+ * not candidates.
+ * <p>
+ * Feedback adds a second query to every query, so it is designed to
+ * add little latency:  the top documents' terms are read in parallel,
+ * without positions, and the ctf of candidate terms is cached across
+ * queries, keyed by reader (see Idx.getCacheKey).
+ * </p><p>
+ * Building the expanded query costs less than 20% of the original
+ * query's latency only if the index has a forward index (see
+ * IdxForwardIndex).  Without one, the terms are read from Lucene's
+ * term vectors, which decompress a block of documents per read, and
+ * expansion costs about a quarter of the original query's latency.
+ * Either way, the expanded query is evaluated as well, which costs
+ * about as much as the original query.
+ * </p><p>
+ * The calling thread must hold a reference to the index reader (see
+ * Idx.setThreadIndex); pool threads read term vectors from the
+ * segments of the same reader, so the feedback documents match the
+ * ranking even if the index is reopened meanwhile.
+ * </p>
+ */
+public class QryExpansion {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String FIELD = "body";
+
+    private int fbDocs;
+    private int fbTerms;
+    private double fbMu;
+    private double fbOrigWeight;
+    private ExecutorService executor;
+
+    /**
+     * The ctf of candidate terms, keyed by reader and term.
+     */
+    private BoundedCache<String, Long> ctfs;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The body terms of a document and their frequencies.
+     */
+    private static class DocTerms {
+        private String[] terms;
+        private int[] tfs;
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param fbDocs       The number of feedback documents.
+     * @param fbTerms      The number of expansion terms.
+     * @param fbMu         The Dirichlet smoothing of p(t|d).
+     * @param fbOrigWeight The weight of the original query.
+     * @param threads      The number of term vectors that are read at once.
+     * @param cacheSize    The number of term ctfs that are cached.
+     */
+    public QryExpansion(int fbDocs, int fbTerms, double fbMu, double fbOrigWeight,
+                        int threads, int cacheSize) {
+
+        if ((fbDocs < 1) || (fbTerms < 1) || (fbMu < 0) ||
+                (fbOrigWeight < 0) || (fbOrigWeight > 1) || (threads < 1) || (cacheSize < 1)) {
+            throw new IllegalArgumentException
+                    ("Feedback needs positive fbDocs, fbTerms, threads, and cache size, " +
+                            "fbMu >= 0, and 0 <= fbOrigWeight <= 1.");
+        }
+
+        this.fbDocs = fbDocs;
+        this.fbTerms = fbTerms;
+        this.fbMu = fbMu;
+        this.fbOrigWeight = fbOrigWeight;
+        this.ctfs = new BoundedCache<String, Long>(cacheSize);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QryExpansion term vectors");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        QryMetrics.registerCache("feedbackTermCtf", this.ctfs);
+    }
+
+    /**
+     * Read the body terms of documents in parallel.  Each document is
+     * read from its segment of the calling thread's reader.
+     *
+     * @param docids Internal docids in the calling thread's index.
+     * @return The documents' terms, in the order of docids.
+     * @throws IOException Error accessing the index.
+     */
+    private DocTerms[] getDocTerms(int[] docids) throws IOException {
+
+        final List<AtomicReaderContext> leaves = Idx.getIndexReader().leaves();
+        final boolean forward = (Idx.getForwardIndex() != null) &&
+                Idx.getForwardIndex().hasField(FIELD);
+        List<Future<DocTerms>> futures = new ArrayList<Future<DocTerms>>();
+        final QryMetrics.QueryResources resources = QryMetrics.getQueryResources();
+
+        for (final int docid : docids) {
+            futures.add(this.executor.submit(new Callable<DocTerms>() {
+                @Override
+                public DocTerms call() throws IOException {
+                    AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docid, leaves));
+                    QryMetrics.joinQuery(resources);
+                    try {
+                        return forward ? readForwardIndex(leaf, docid - leaf.docBase) :
+                                readTermVector(leaf, docid - leaf.docBase);
+                    } finally {
+                        QryMetrics.leaveQuery();
+                    }
+                }
+            }));
+        }
+
+        DocTerms[] docTerms = new DocTerms[docids.length];
+
+        try {
+            for (int i = 0; i < docTerms.length; i++) {
+                docTerms[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading term vectors was interrupted.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        return docTerms;
+    }
+
+    /**
+     * Read a document's body terms from the forward index (see
+     * TermVector).
+     *
+     * @param leaf  The document's segment.
+     * @param docid The document's docid in the segment.
+     * @return The document's terms.
+     * @throws IOException Error accessing the index.
+     */
+    private static DocTerms readForwardIndex(AtomicReaderContext leaf, int docid)
+            throws IOException {
+
+        Idx.setThreadSegment(leaf);
+
+        try {
+            TermVector v = new TermVector(docid, FIELD);
+            int n = Math.max(v.stemsLength() - 1, 0);
+            DocTerms d = new DocTerms();
+            d.terms = new String[n];
+            d.tfs = new int[n];
+
+            for (int s = 0; s < n; s++) {
+                d.terms[s] = v.stemString(s + 1);
+                d.tfs[s] = v.stemFreq(s + 1);
+            }
+
+            return d;
+        } finally {
+            Idx.setThreadIndex(null);
+        }
+    }
+
+    /**
+     * Read a document's body terms from its Lucene term vector.  Unlike
+     * TermVector, this does not read positions, which feedback does not
+     * need, and which are most of the term vector.
+     *
+     * @param leaf  The document's segment.
+     * @param docid The document's docid in the segment.
+     * @return The document's terms.
+     * @throws IOException Error accessing the index.
+     */
+    private static DocTerms readTermVector(AtomicReaderContext leaf, int docid)
+            throws IOException {
+
+        DocTerms d = new DocTerms();
+        Terms vector = leaf.reader().getTermVector(docid, FIELD);
+        int n = (vector == null) ? 0 : (int) vector.size();
+
+        d.terms = new String[n];
+        d.tfs = new int[n];
+
+        if (n > 0) {
+            TermsEnum e = vector.iterator(null);
+
+            for (int s = 0; (s < n) && (e.next() != null); s++) {
+                d.terms[s] = e.term().utf8ToString();
+                d.tfs[s] = (int) e.totalTermFreq();
+            }
+        }
+
+        return d;
+    }
+
+    /**
+     * Get the ctf of a term in the calling thread's index.
+     *
+     * @param term A term.
+     * @return The ctf of the term.
+     * @throws IOException Error accessing the index.
+     */
+    private long getCtf(String term) throws IOException {
+
+        String key = Idx.getCacheKey() + "\t" + term;
+        Long ctf = this.ctfs.get(key);
+
+        if (ctf == null) {
+            ctf = Idx.getTotalTermFreq(FIELD, term);
+            this.ctfs.put(key, ctf);
+        }
+
+        return ctf;
+    }
+
+    /**
+     * Create the expanded query of a query.
+     *
+     * @param qString The original query string.
+     * @param ranking The original query's ranking, sorted.
+     * @param model   The retrieval model, which must be Indri.
+     * @return The expanded query string, or null if no expansion terms
+     * were found.
+     * @throws IOException Error accessing the index.
+     */
+    public String expand(String qString, ScoreList ranking, RetrievalModel model)
+            throws IOException {
+
+        int n = Math.min(this.fbDocs, ranking.size());
+
+        if (n == 0) {
+            return null;
+        }
+
+        int[] docids = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            docids[i] = ranking.getDocid(i);
+        }
+
+        DocTerms[] docTerms = this.getDocTerms(docids);
+
+        //  Each document contributes tf * score(d) / (|d| + mu) to the
+        //  terms that it contains, and mu * score(d) / (|d| + mu) times
+        //  p(t|C) to every term.
+
+        double lengthC = Idx.getSumOfFieldLengths(FIELD);
+        double shared = 0.0;
+        Map<String, Double> contained = new HashMap<String, Double>();
+
+        for (int i = 0; i < n; i++) {
+            double score = ranking.getDocidScore(i);
+            double norm = score / (Idx.getFieldLength(FIELD, docids[i]) + this.fbMu);
+            DocTerms d = docTerms[i];
+
+            shared += this.fbMu * norm;
+
+            for (int s = 0; s < d.terms.length; s++) {
+                String term = d.terms[s];
+
+                if ((term.indexOf('.') >= 0) || (term.indexOf(',') >= 0)) {
+                    continue;
+                }
+
+                Double sum = contained.get(term);
+                contained.put(term, ((sum == null) ? 0.0 : sum) + d.tfs[s] * norm);
+            }
+        }
+
+        //  Score the candidates, and keep the best fbTerms in a min-heap.
+
+        PriorityQueue<Map.Entry<String, Double>> best =
+                new PriorityQueue<Map.Entry<String, Double>>(this.fbTerms + 1,
+                        new Comparator<Map.Entry<String, Double>>() {
+                            @Override
+                            public int compare(Map.Entry<String, Double> a,
+                                               Map.Entry<String, Double> b) {
+                                int c = Double.compare(a.getValue(), b.getValue());
+                                return (c != 0) ? c : b.getKey().compareTo(a.getKey());
+                            }
+                        });
+
+        for (Map.Entry<String, Double> e : contained.entrySet()) {
+            double pC = this.getCtf(e.getKey()) / lengthC;
+
+            if (pC <= 0) {
+                continue;
+            }
+
+            double score = (e.getValue() + pC * shared) * Math.log(1.0 / pC);
+            best.add(new AbstractMap.SimpleEntry<String, Double>(e.getKey(), score));
+
+            if (best.size() > this.fbTerms) {
+                best.poll();
+            }
+        }
+
+        if (best.isEmpty()) {
+            return null;
+        }
+
+        //  Best terms first.
+
+        List<Map.Entry<String, Double>> terms = new ArrayList<Map.Entry<String, Double>>(best);
+        Collections.sort(terms, Collections.reverseOrder(best.comparator()));
+
+        StringBuilder expansion = new StringBuilder("#wand (");
+
+        for (Map.Entry<String, Double> e : terms) {
+            expansion.append(String.format(" %.4f %s", e.getValue(), e.getKey()));
+        }
+
+        expansion.append(" )");
+
+        return String.format("#wand ( %s %s(%s) %s %s )",
+                this.fbOrigWeight, model.defaultQrySopName(), qString,
+                1.0 - this.fbOrigWeight, expansion);
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Batch feature extraction for learning-to-rank reranking.
+ * <p>
+ * Each candidate document gets FEATURES_PER_FIELD features for each of
+ * the FIELDS:
+ * </p>
+ * <ul>
+ * <li>BM25:  the BM25 score of the query terms (as #SUM);</li>
+ * <li>INDRI:  the Indri score of the query terms (as #AND);</li>
+ * <li>OVERLAP:  the fraction of the query terms that occur;</li>
+ * <li>PROXIMITY:  the number of query terms divided by the length of
+ *     the shortest span that contains all of them, or 0 if some term
+ *     does not occur; and</li>
+ * <li>LENGTH:  the length of the field.</li>
+ * </ul>
+ * Feature f of field i is column i * FEATURES_PER_FIELD + f of the
+ * feature matrix.
+ * <p>
+ * Scoring each candidate with its own query tree would read every
+ * term's inverted list once per field per model.  extract instead
+ * visits the candidates in docid order and walks each term's compressed
+ * inverted list (see CompressedInvList) once per field with a cursor,
+ * skipping the blocks that contain no candidates, and fills the dense
+ * feature matrix of all candidates in that one pass.  The scores use
+ * QrySopScore's formulas and the same statistics, so the BM25 and Indri
+ * features of a field equal the scores of the corresponding queries.
+ * </p><p>
+ * Candidates are documents of the current thread's index (see
+ * Idx.setThreadIndex).
+ * </p>
+ */
+public class QryFeatures {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The fields whose features are extracted.
+     */
+    public static final String[] FIELDS = {"body", "title", "url", "inlink"};
+
+    /**
+     * The features of each field.
+     */
+    public static final int BM25 = 0;
+    public static final int INDRI = 1;
+    public static final int OVERLAP = 2;
+    public static final int PROXIMITY = 3;
+    public static final int LENGTH = 4;
+    public static final int FEATURES_PER_FIELD = 5;
+
+    /**
+     * The number of features of each document.
+     */
+    public static final int NUM_FEATURES = FIELDS.length * FEATURES_PER_FIELD;
+
+    private RetrievalModelBM25 bm25;
+    private RetrievalModelIndri indri;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param bm25  The parameters of the BM25 features.
+     * @param indri The parameters of the Indri features.
+     */
+    public QryFeatures(RetrievalModelBM25 bm25, RetrievalModelIndri indri) {
+        this.bm25 = bm25;
+        this.indri = indri;
+    }
+
+    /**
+     * Get the distinct terms of a query.  Query operators and fields are
+     * ignored; features are extracted for every term in every field.
+     *
+     * @param qString A query string.
+     * @return The query's processed terms, in query order.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public static String[] getTerms(String qString) throws IOException {
+
+        Set<String> terms = new LinkedHashSet<String>();
+        Qry q = QryParser.getQuery("#and(" + qString + ")");
+
+        if (q != null) {
+            addTerms(q, terms);
+        }
+
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    /**
+     * @param q     A query.
+     * @param terms The terms found so far.
+     */
+    private static void addTerms(Qry q, Set<String> terms) {
+
+        if (q instanceof QryIopTerm) {
+            terms.add(((QryIopTerm) q).getTerm());
+            return;
+        }
+
+        for (Qry q_i : q.args) {
+            addTerms(q_i, terms);
+        }
+    }
+
+    /**
+     * Extract the features of candidate documents.
+     *
+     * @param terms  The query terms (see getTerms).
+     * @param docids The candidates' internal docids, in any order.
+     * @return The feature matrix:  row i has the NUM_FEATURES features
+     * of docids[i].
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public float[][] extract(String[] terms, int[] docids) throws IOException {
+
+        int n = docids.length;
+        float[][] features = new float[n][NUM_FEATURES];
+
+        if ((n == 0) || (terms.length == 0)) {
+            return features;
+        }
+
+        //  Visit the candidates in docid order, so that each inverted
+        //  list is read forward only.
+
+        Integer[] boxed = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            boxed[i] = i;
+        }
+
+        final int[] ids = docids;
+
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(ids[a], ids[b]);
+            }
+        });
+
+        int[] order = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            order[i] = boxed[i];
+        }
+
+        long numDocs = Idx.getNumDocs();
+        int m = terms.length;
+        int[][] tfs = new int[m][n];
+        int[][][] positions = new int[m][n][];
+        long[] lengths = new long[n];
+
+        for (int f = 0; f < FIELDS.length; f++) {
+            String field = FIELDS[f];
+            int base = f * FEATURES_PER_FIELD;
+            long sumOfFieldLengths = Idx.getSumOfFieldLengths(field);
+
+            if (sumOfFieldLengths <= 0) {
+                continue;                       // No document has the field
+            }
+
+            float avgFieldLength = sumOfFieldLengths / (float) Idx.getDocCount(field);
+
+            for (int i = 0; i < n; i++) {
+                lengths[i] = Idx.getFieldLength(field, docids[i]);
+                features[i][base + LENGTH] = lengths[i];
+            }
+
+            //  Read each term's postings of the candidates in one pass.
+
+            double[] rsjWeights = new double[m];
+            double[] collectionProbabilities = new double[m];
+
+            for (int t = 0; t < m; t++) {
+                CompressedInvList list =
+                        CompressedInvList.getCompressedInvList(terms[t], field);
+                CompressedInvList.Cursor c = list.cursor();
+
+                rsjWeights[t] = QrySopScore.rsjWeight(numDocs, list.getDf());
+                collectionProbabilities[t] = (double) list.getCtf() / sumOfFieldLengths;
+                Arrays.fill(tfs[t], 0);
+
+                for (int i : order) {
+                    c.advanceTo(docids[i]);
+
+                    if (!c.hasMatch()) {
+                        break;
+                    }
+
+                    if (c.getDocid() == docids[i]) {
+                        tfs[t][i] = c.getTf();
+                        positions[t][i] = c.getPositions();
+                    }
+                }
+            }
+
+            //  Score the candidates.
+
+            for (int i = 0; i < n; i++) {
+                double bm25Score = 0.0;
+                double indriScore = 1.0;
+                int matched = 0;
+
+                for (int t = 0; t < m; t++) {
+                    int tf = tfs[t][i];
+
+                    if (tf > 0) {
+                        bm25Score += QrySopScore.scoreBM25(this.bm25, rsjWeights[t],
+                                avgFieldLength, tf, lengths[i]);
+                        matched++;
+                    }
+
+                    indriScore *= Math.pow(QrySopScore.scoreIndri(this.indri,
+                            collectionProbabilities[t], tf, lengths[i]), 1.0 / m);
+                }
+
+                features[i][base + BM25] = (float) bm25Score;
+                features[i][base + INDRI] = (float) indriScore;
+                features[i][base + OVERLAP] = (float) matched / m;
+
+                if (matched == m) {
+                    features[i][base + PROXIMITY] = (float) m / getMinSpan(positions, i);
+                }
+            }
+        }
+
+        return features;
+    }
+
+    /**
+     * Find the shortest span of a document that contains every term.
+     *
+     * @param positions The terms' positions in each document.
+     * @param i         The document, which must contain every term.
+     * @return The length of the shortest span.
+     */
+    private static int getMinSpan(int[][][] positions, int i) {
+
+        int m = positions.length;
+
+        if (m == 1) {
+            return 1;
+        }
+
+        //  Slide a window over the terms' positions in position order,
+        //  and keep the shortest window that contains every term.
+
+        int[] next = new int[m];
+        int best = Integer.MAX_VALUE;
+
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            int minTerm = 0;
+
+            for (int t = 0; t < m; t++) {
+                int p = positions[t][i][next[t]];
+
+                if (p < min) {
+                    min = p;
+                    minTerm = t;
+                }
+                max = Math.max(max, p);
+            }
+
+            best = Math.min(best, max - min + 1);
+
+            if (++next[minTerm] >= positions[minTerm][i].length) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Write feature vectors in SVMlight format, one line per document:
+     * <pre>
+     *    label qid:qid 1:value 2:value ... # externalId
+     * </pre>
+     * Features are numbered from 1, and features whose value is 0 are
+     * omitted.
+     *
+     * @param out         The output.
+     * @param qid         The query id.
+     * @param labels      The documents' relevance labels (e.g., 0 for
+     *                    documents that are only reranked).
+     * @param features    The documents' features (see extract).
+     * @param externalIds The documents' external ids.
+     * @throws IOException Error writing the output.
+     */
+    public static void writeSvmLight(Writer out, String qid, int[] labels,
+                                     float[][] features, String[] externalIds)
+            throws IOException {
+
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < features.length; i++) {
+            line.setLength(0);
+            line.append(labels[i]).append(" qid:").append(qid);
+
+            for (int j = 0; j < features[i].length; j++) {
+                if (features[i][j] != 0) {
+                    line.append(' ').append(j + 1).append(':').append(features[i][j]);
+                }
+            }
+
+            line.append(" # ").append(externalIds[i]).append('\n');
+            out.write(line.toString());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Federated search:  a query is evaluated against every open index
+ * (shard) concurrently, and the shards' top-k results are merged into
+ * one ranking.  QryEval uses it when the parameter file has
+ * searchMode=federated and indexPath lists the shards, separated by
+ * commas.
+ * <p>
+ * Each shard is searched by a pool thread that uses Idx.setThreadIndex
+ * to direct all index access (inverted lists, field lengths, statistics,
+ * external ids) to its shard, so the usual query evaluation code runs
+ * unchanged.  Internal docids are only unique within a shard, so the
+ * merged ScoreList records each document's shard and external id.
+ * </p><p>
+ * By default, a statistics pre-pass gathers the statistics of the
+ * query's terms and derived lists from every shard (see IdxStatistics),
+ * and every shard scores the query with the global values, so that
+ * scores are comparable across shards.
+ * With federation:statistics=local, each shard uses its own statistics,
+ * which saves the pre-pass but makes scores comparable only to the
+ * extent that the shards have similar statistics.
+ * </p>
+ */
+public class QryFederation {
+
+    //  --------------- Constants and variables ---------------------
+
+    private List<String> shards;
+    private int topK;
+    private ExecutorService executor;
+
+    /**
+     * Gathers global statistics, or null if shards use their own.
+     */
+    private IdxStatistics statistics = null;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param shards  The paths of the shards, which must be open.
+     * @param topK    The number of results to keep from each shard and
+     *                in the merged ranking.
+     * @param threads The number of shards that are searched at once.
+     * @param statisticsCacheSize The number of global term statistics
+     *                that are cached, or 0 if each shard scores with
+     *                its own statistics.
+     */
+    public QryFederation(List<String> shards, int topK, int threads, int statisticsCacheSize) {
+
+        if (shards.isEmpty() || (topK < 1) || (threads < 1)) {
+            throw new IllegalArgumentException
+                    ("Federated search needs at least one shard, topK, and thread.");
+        }
+
+        this.shards = new ArrayList<String>(shards);
+        this.topK = topK;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QryFederation shard search");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (statisticsCacheSize > 0) {
+            this.statistics = new IdxStatistics(this.shards, this.executor, statisticsCacheSize);
+            QryMetrics.registerCache("globalTermStatistics", this.statistics.getTermCache());
+        }
+    }
+
+    /**
+     * Merge the top-k lists of several shards (or segments).  Each list
+     * is sorted already, so this is a k-way merge that stops after topK
+     * results.  Entries keep their shards, docids, and external ids.
+     *
+     * @param results The shards' sorted results.
+     * @param topK    The number of results to keep.
+     * @return The merged results.
+     */
+    static ScoreList merge(List<ScoreList> results, int topK) {
+
+        ScoreList merged = new ScoreList();
+        int[] next = new int[results.size()];
+
+        while (merged.size() < topK) {
+
+            //  Choose the best head among the shards, with the same
+            //  ordering as ScoreList.sort:  score, then external id.
+
+            int best = -1;
+
+            for (int s = 0; s < results.size(); s++) {
+                ScoreList r = results.get(s);
+
+                if (next[s] >= r.size()) {
+                    continue;
+                }
+
+                if (best < 0) {
+                    best = s;
+                    continue;
+                }
+
+                ScoreList b = results.get(best);
+                double score = r.getDocidScore(next[s]);
+                double bestScore = b.getDocidScore(next[best]);
+
+                if ((score > bestScore) ||
+                        ((score == bestScore) &&
+                                (r.getExternalDocid(next[s]).compareTo(
+                                        b.getExternalDocid(next[best])) < 0))) {
+                    best = s;
+                }
+            }
+
+            if (best < 0) {
+                break;                // All shards are exhausted
+            }
+
+            ScoreList b = results.get(best);
+            int n = next[best]++;
+            merged.add(b.getShard(n), b.getDocid(n), b.getExternalDocid(n), b.getDocidScore(n));
+        }
+
+        return merged;
+    }
+
+    /**
+     * Copy the top-k results of a shard or segment, labelled with their
+     * shard.
+     *
+     * @param r       Sorted results.
+     * @param topK    The number of results to keep.
+     * @param shard   The shard that the results are from.
+     * @param docBase Added to each docid, e.g., to map segment docids to
+     *                index docids.
+     * @return The top-k results.
+     */
+    static ScoreList copyTopK(ScoreList r, int topK, int shard, int docBase) {
+
+        ScoreList top = new ScoreList();
+
+        for (int i = 0; i < Math.min(topK, r.size()); i++) {
+            top.add(shard, docBase + r.getDocid(i), r.getExternalDocid(i), r.getDocidScore(i));
+        }
+
+        return top;
+    }
+
+    /**
+     * Evaluate a query against every shard and merge the results.
+     *
+     * @param qString A query string.
+     * @param model   The retrieval model.
+     * @return The merged top-k results, or null if there is no query.
+     * @throws IOException Error accessing a shard.
+     */
+    public ScoreList search(final String qString, final RetrievalModel model)
+            throws IOException {
+
+        //  Gather the global statistics of the query's scored lists.
+
+        IdxStatistics global = null;
+
+        if (this.statistics != null) {
+            String query = model.defaultQrySopName() + "(" + qString + ")";
+            Qry q = QryParser.getQuery(query);
+
+            if (q != null) {
+                global = this.statistics.gather(q, query);
+            }
+        }
+
+        final IdxStatistics queryStatistics = global;
+        List<Future<ScoreList>> futures = new ArrayList<Future<ScoreList>>();
+
+        final QryMetrics.QueryResources resources = QryMetrics.getQueryResources();
+
+        for (int s = 0; s < this.shards.size(); s++) {
+            final String shard = this.shards.get(s);
+            final int shardNumber = s;
+
+            futures.add(this.executor.submit(new Callable<ScoreList>() {
+                @Override
+                public ScoreList call() throws IOException {
+                    Idx.setThreadIndex(shard);
+                    IdxStatistics.setThreadStatistics(queryStatistics);
+                    QryMetrics.joinQuery(resources);
+                    try {
+                        ScoreList r = QryEval.evaluateQuery(qString, model, false);
+                        return (r != null) ? copyTopK(r, topK, shardNumber, 0) : null;
+                    } finally {
+                        QryMetrics.leaveQuery();
+                        IdxStatistics.setThreadStatistics(null);
+                        Idx.setThreadIndex(null);
+                    }
+                }
+            }));
+        }
+
+        List<ScoreList> results = new ArrayList<ScoreList>();
+        boolean parsed = false;
+
+        try {
+            for (Future<ScoreList> f : futures) {
+                ScoreList r = f.get();
+                parsed |= (r != null);
+                results.add((r != null) ? r : new ScoreList());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Federated search was interrupted.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        //  Like QryEval.evaluateQuery, return null if the query string
+        //  has no query (e.g., it contains only stopwords).
+
+        return parsed ? merge(results, this.topK) : null;
+    }
+}
@@ -54,6 +54,15 @@ public abstract class QryIop extends Qry {
      */
     protected InvList invertedList = null;
 
+    /**
+     *  Query operators that produce the same inverted list (e.g., the
+     *  same term in two parts of a query) may share one holder, so
+     *  that the list is fetched and evaluated once.  Each operator still
+     *  has its own docIterator and locIterator.  Null if the inverted
+     *  list is not shared.
+     */
+    protected SharedInvList sharedInvList = null;
+
     /**
      *  The index of the document that the docIterator points to now.
      */
@@ -64,6 +73,19 @@ public abstract class QryIop extends Qry {
      */
     private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  An inverted list that is shared by equivalent query operators.
+     *  The first operator to be initialized evaluates the list; the
+     *  others reuse it.
+     */
+    static class SharedInvList {
+        InvList invertedList = null;
+    }
+
+    //  --------------- Methods ---------------------------------------
+
     /**
      *  Advance the query operator's internal iterator beyond the
      *  specified document.
@@ -71,11 +93,14 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
+        int start = this.docIteratorIndex;
+
         while ((this.docIteratorIndex < this.invertedList.df) &&
                 (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
             this.docIteratorIndex++;
         }
 
+        this.profilePostings(start);
         this.locIteratorIndex = 0;
     }
 
@@ -86,11 +111,14 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
+        int start = this.docIteratorIndex;
+
         while ((this.docIteratorIndex < this.invertedList.df) &&
                 (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
             this.docIteratorIndex++;
         }
 
+        this.profilePostings(start);
         this.locIteratorIndex = 0;
     }
 
@@ -128,6 +156,9 @@ public abstract class QryIop extends Qry {
      *  @return True if the query matches a document, otherwise false.
      */
     public boolean docIteratorHasMatch(RetrievalModel r) {
+        if (this.profile != null) {
+            this.profile.hasMatchCalls++;
+        }
         return (this.docIteratorIndex < this.invertedList.df);
     }
 
@@ -174,20 +205,51 @@ public abstract class QryIop extends Qry {
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        //  Initialize the query arguments (if any).
+        long start = this.profileStart();
 
-        for (Qry q_i : this.args) {
-            ((QryIop) q_i).initialize(r);
-        }
+        if ((this.sharedInvList != null) &&
+            (this.sharedInvList.invertedList != null)) {
+
+            //  An equivalent query operator was evaluated already, so
+            //  its arguments don't need to be initialized.
+
+            this.invertedList = this.sharedInvList.invertedList;
+
+            if (this.profile != null) {
+                this.profile.shared = true;
+            }
+        } else {
+
+            //  Initialize the query arguments (if any).
 
-        //  Evaluate the operator.
+            for (Qry q_i : this.args) {
+                ((QryIop) q_i).initialize(r);
+            }
 
-        this.evaluate();
+            //  Evaluate the operator.
+
+            long evaluateStart = this.profileStart();
+            this.evaluate();
+
+            if (this.profile != null) {
+                this.profile.evaluateNanos += System.nanoTime() - evaluateStart;
+            }
+
+            QryMetrics.recordInvList(this.invertedList.df);
+
+            if (this.sharedInvList != null) {
+                this.sharedInvList.invertedList = this.invertedList;
+            }
+        }
 
         //  Initialize the internal iterators.
 
         this.docIteratorIndex = 0;
         this.locIteratorIndex = 0;
+
+        if (this.profile != null) {
+            this.profile.initializeNanos += System.nanoTime() - start;
+        }
     }
 
     /**
@@ -196,6 +258,10 @@ public abstract class QryIop extends Qry {
      */
     public void locIteratorAdvance() {
         this.locIteratorIndex++;
+
+        if (this.profile != null) {
+            this.profile.positions++;
+        }
     }
 
     /**
@@ -206,11 +272,16 @@ public abstract class QryIop extends Qry {
     public void locIteratorAdvancePast(int loc) {
         int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
         Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+        int start = this.locIteratorIndex;
 
         while ((this.locIteratorIndex < tf) &&
                 (positions.get(this.locIteratorIndex) <= loc)) {
             locIteratorIndex++;
         }
+
+        if (this.profile != null) {
+            this.profile.positions += this.locIteratorIndex - start;
+        }
     }
 
     /**
@@ -234,6 +305,16 @@ public abstract class QryIop extends Qry {
         return locations.get(this.locIteratorIndex);
     }
 
+    /**
+     *  Record the postings that the docIterator visited in the profile.
+     *  @param start The docIterator index before it was advanced.
+     */
+    private void profilePostings(int start) {
+        if (this.profile != null) {
+            this.profile.postings += this.docIteratorIndex - start;
+        }
+    }
+
     /**
      *  Returns true if the query operator's internal iterator currently
      *  points to a location.
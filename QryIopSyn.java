@@ -70,6 +70,11 @@ public class QryIopSyn extends QryIop {
                     Vector<Integer> locations_i =
                             ((QryIop) q_i).docIteratorGetMatchPosting().positions;
                     positions.addAll(locations_i);
+
+                    if (q_i.profile != null) {
+                        q_i.profile.positions += locations_i.size();
+                    }
+
                     q_i.docIteratorAdvancePast(minDocid);
                 }
             }
@@ -53,17 +53,25 @@ public class QryIopTerm extends QryIop {
 
     /**
      * Evaluate the query operator; the result is an internal inverted
-     * list that may be accessed via the internal iterators.
+     * list that may be accessed via the internal iterators.  The list
+     * may come from the inverted list cache (see CompressedInvList).
      *
      * @throws IOException Error accessing the Lucene index.
      */
     protected void evaluate() throws IOException {
-        this.invertedList = new InvList(this.term, this.field);
+        this.invertedList = CompressedInvList.getInvList(this.term, this.field);
 //        System.out.println(this.term);
 //        for(InvList.DocPosting post: this.invertedList.postings)
 //            System.out.println(Idx.getExternalDocid(post.docid) + " ");
     }
 
+    /**
+     * @return The term string.
+     */
+    public String getTerm() {
+        return this.term;
+    }
+
     /**
      * Get a string version of this query operator.
      *
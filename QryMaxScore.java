@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Top-k evaluation of ranked Boolean queries with MaxScore pruning.
+ * <p>
+ * In the ranked Boolean model, #SCORE is the term frequency, #AND is
+ * the minimum of its arguments' scores, and #OR is the maximum.  These
+ * combiners are monotone, so every query operator has an upper bound
+ * on its score:  the largest tf in a #SCORE argument's inverted list,
+ * the minimum of an #AND's argument bounds, and the maximum of an
+ * #OR's argument bounds.
+ * </p><p>
+ * The evaluator keeps the k best scores seen so far; the smallest of
+ * them is the threshold.  The score of a top-level #OR is the maximum
+ * of its arguments' scores, so once an argument's bound is below the
+ * threshold, documents that match only that argument (or other such
+ * arguments) cannot reach the top k.  Those arguments stop driving the
+ * iteration and are not scored, so the documents that only they match
+ * are skipped.  Other query shapes are evaluated document-at-a-time as
+ * usual.
+ * </p><p>
+ * Either way, a document enters the results only if its score is at
+ * least the threshold.  Documents that have the same score are ordered
+ * by external id, so every document that ties the threshold is kept,
+ * and the results after ScoreList.sort and truncation to k are the
+ * same as without pruning.  Documents that are not kept do not need
+ * their external ids, which are a stored field read per document.
+ * </p>
+ */
+public class QryMaxScore {
+
+    //  --------------- Constants and variables ---------------------
+
+    private int topK;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * Collects the documents that may be in the top k, and maintains
+     * the threshold.
+     */
+    private static class Collector {
+
+        private final int k;
+
+        /**
+         * A min-heap of the k best scores.
+         */
+        private final PriorityQueue<Double> best = new PriorityQueue<Double>();
+
+        private int[] docids = new int[64];
+        private double[] scores = new double[64];
+        private int size = 0;
+
+        private Collector(int k) {
+            this.k = k;
+        }
+
+        /**
+         * @return The smallest score that can enter the top k.
+         */
+        private double threshold() {
+            return (this.best.size() < this.k) ? Double.NEGATIVE_INFINITY : this.best.peek();
+        }
+
+        /**
+         * Offer a document.
+         *
+         * @param docid The document's internal id.
+         * @param score The document's score.
+         */
+        private void offer(int docid, double score) {
+
+            if (score < this.threshold()) {
+                return;
+            }
+
+            if (this.best.size() < this.k) {
+                this.best.add(score);
+            } else if (score > this.best.peek()) {
+                this.best.poll();
+                this.best.add(score);
+            }
+
+            if (this.size == this.docids.length) {
+                this.docids = Arrays.copyOf(this.docids, 2 * this.size);
+                this.scores = Arrays.copyOf(this.scores, 2 * this.size);
+            }
+
+            this.docids[this.size] = docid;
+            this.scores[this.size] = score;
+            this.size++;
+        }
+
+        /**
+         * @return The documents whose scores are at least the final
+         * threshold.
+         */
+        private ScoreList getResults() {
+
+            ScoreList r = new ScoreList();
+            double threshold = this.threshold();
+
+            for (int i = 0; i < this.size; i++) {
+                if (this.scores[i] >= threshold) {
+                    r.add(this.docids[i], this.scores[i]);
+                }
+            }
+
+            return r;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param topK The number of results that are needed.
+     */
+    public QryMaxScore(int topK) {
+
+        if (topK < 1) {
+            throw new IllegalArgumentException("MaxScore pruning needs a positive topK.");
+        }
+
+        this.topK = topK;
+    }
+
+    /**
+     * Decide whether a query can be evaluated with score bounds.
+     *
+     * @param q A query.
+     * @param r The retrieval model.
+     * @return True if the model is ranked Boolean, and the query's score
+     * operators are #AND, #OR, and #SCORE.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+        return (r instanceof RetrievalModelRankedBoolean) && isSupported(q);
+    }
+
+    /**
+     * @param q A query.
+     * @return True if the query's score operators are supported.
+     */
+    private static boolean isSupported(Qry q) {
+
+        if (q instanceof QrySopScore) {
+            return true;
+        }
+
+        if (!((q instanceof QrySopAnd) || (q instanceof QrySopOr))) {
+            return false;
+        }
+
+        for (Qry q_i : q.args) {
+            if (!isSupported(q_i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the upper bound of an initialized query operator's score.
+     *
+     * @param q An initialized query operator that canEvaluate accepts.
+     * @return The largest score that the operator can give a document.
+     */
+    static double getMaxScore(Qry q) {
+
+        if (q instanceof QrySopScore) {
+            InvList list = ((QryIop) q.args.get(0)).invertedList;
+            int maxTf = 0;
+
+            for (int i = 0; i < list.df; i++) {
+                maxTf = Math.max(maxTf, list.getTf(i));
+            }
+
+            return maxTf;
+        }
+
+        double bound = (q instanceof QrySopAnd) ? Double.MAX_VALUE : 0.0;
+
+        for (Qry q_i : q.args) {
+            double b = getMaxScore(q_i);
+            bound = (q instanceof QrySopAnd) ? Math.min(bound, b) : Math.max(bound, b);
+        }
+
+        return bound;
+    }
+
+    /**
+     * Evaluate an initialized query.
+     *
+     * @param q An initialized query that canEvaluate accepts.
+     * @param r The retrieval model.
+     * @return The documents that may be in the top k and their scores
+     * (unsorted).
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public ScoreList evaluate(Qry q, RetrievalModel r) throws IOException {
+
+        Collector results = new Collector(this.topK);
+
+        if (!(q instanceof QrySopOr)) {
+            while (q.docIteratorHasMatch(r)) {
+                int docid = q.docIteratorGetMatch();
+                results.offer(docid, ((QrySop) q).getScore(r));
+                q.docIteratorAdvancePast(docid);
+            }
+
+            return results.getResults();
+        }
+
+        //  Sort the arguments by decreasing bound.  The essential
+        //  arguments are a prefix of this order that shrinks as the
+        //  threshold rises.
+
+        final Map<Qry, Double> bounds = new IdentityHashMap<Qry, Double>();
+
+        for (Qry q_i : q.args) {
+            bounds.put(q_i, getMaxScore(q_i));
+        }
+
+        List<Qry> args = new ArrayList<Qry>(q.args);
+
+        Collections.sort(args, new Comparator<Qry>() {
+            @Override
+            public int compare(Qry a, Qry b) {
+                return Double.compare(bounds.get(b), bounds.get(a));
+            }
+        });
+
+        int essential = args.size();
+
+        while (essential > 0) {
+
+            //  Find the next document that an essential argument matches.
+
+            int docid = Qry.INVALID_DOCID;
+
+            for (int i = 0; i < essential; i++) {
+                Qry q_i = args.get(i);
+
+                if (q_i.docIteratorHasMatch(r)) {
+                    int d = q_i.docIteratorGetMatch();
+
+                    if ((docid == Qry.INVALID_DOCID) || (d < docid)) {
+                        docid = d;
+                    }
+                }
+            }
+
+            if (docid == Qry.INVALID_DOCID) {
+                break;
+            }
+
+            //  Score it with the essential arguments.  The others
+            //  cannot raise its score to the threshold.
+
+            double score = 0.0;
+
+            for (int i = 0; i < essential; i++) {
+                Qry q_i = args.get(i);
+
+                if (q_i.docIteratorHasMatchCache() && (q_i.docIteratorGetMatch() == docid)) {
+                    score = Math.max(score, ((QrySop) q_i).getScore(r));
+                    q_i.docIteratorAdvancePast(docid);
+                }
+            }
+
+            results.offer(docid, score);
+
+            //  Drop the arguments whose bounds are below the threshold.
+
+            double threshold = results.threshold();
+
+            while ((essential > 0) && (bounds.get(args.get(essential - 1)) < threshold)) {
+                essential--;
+            }
+        }
+
+        return results.getResults();
+    }
+}
@@ -0,0 +1,554 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Process-wide metrics for capacity planning:  a query latency
+ * histogram, work counters, and the hit rates of registered caches.
+ * The metrics can be written as JSON or in the Prometheus text
+ * exposition format, at the end of a run and periodically during long
+ * runs.  QryEval configures metrics from the parameter file:
+ * <pre>
+ *    metricsPath=PATH                 (no metrics are written if absent)
+ *    metricsFormat=json|prometheus    (default json)
+ *    metricsInterval=SECONDS          (default 0:  only at the end)
+ * </pre>
+ * <p>
+ * The counters are:
+ * </p>
+ * <ul>
+ * <li>postingsDecoded:  postings copied from Lucene into InvLists;
+ * <li>postingBytesDecoded:  the size of those postings in a vInt
+ * delta encoding, which estimates the compressed bytes read (Lucene
+ * does not report the bytes that it actually reads);
+ * <li>documentsScored:  documents that received a score; and
+ * <li>storedFieldReads:  documents whose stored fields were read
+ * (e.g., to look up external ids); and
+ * <li>queriesOverAllocationBudget:  queries that allocated more than
+ * the allocation budget.
+ * </ul>
+ * <p>
+ * Each query's allocated bytes (from the JVM's per-thread allocation
+ * counter) are recorded in a second histogram, and the largest
+ * inverted list and ScoreList of any query are recorded as peaks.
+ * A query's resources are accumulated in a QueryResources that every
+ * thread working on the query joins (see beginQuery and joinQuery), so
+ * queries whose work runs on thread pools are measured in full.
+ * </p>
+ * <p>
+ * Counters and the histogram are updated with atomic operations, so
+ * they may be used by concurrent queries.  Files are written to a
+ * temporary file and renamed, so readers never see a partial file.
+ * </p>
+ */
+public class QryMetrics {
+
+    //  --------------- Constants and variables ---------------------
+
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+
+    static final LatencyHistogram QUERY_LATENCY = new LatencyHistogram();
+
+    static final AtomicLong POSTINGS_DECODED = new AtomicLong();
+    static final AtomicLong POSTING_BYTES_DECODED = new AtomicLong();
+    static final AtomicLong DOCUMENTS_SCORED = new AtomicLong();
+    static final AtomicLong STORED_FIELD_READS = new AtomicLong();
+
+    static final LatencyHistogram QUERY_ALLOCATED_BYTES = new LatencyHistogram();
+    static final AtomicLong QUERIES_OVER_ALLOCATION_BUDGET = new AtomicLong();
+    static final AtomicLong PEAK_INVLIST_POSTINGS = new AtomicLong();
+    static final AtomicLong PEAK_SCORELIST_SIZE = new AtomicLong();
+
+    /**
+     * The JVM's per-thread allocation counters, or null if this JVM
+     * does not provide them.
+     */
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            getThreadMXBean();
+
+    /**
+     * The query that the thread is working on now, or null.
+     */
+    private static final ThreadLocal<Participation> currentQuery =
+            new ThreadLocal<Participation>();
+
+    private static final long START_MILLIS = System.currentTimeMillis();
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final String[] QUANTILE_NAMES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final Map<String, BoundedCache<?, ?>> caches =
+            new ConcurrentSkipListMap<String, BoundedCache<?, ?>>();
+
+    private static ScheduledExecutorService exporter = null;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The resources that one query used, summed over the threads that
+     * worked on it.
+     */
+    public static class QueryResources {
+
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final AtomicLong peakInvList = new AtomicLong();
+
+        /**
+         * @return The bytes that the query allocated, or -1 if the JVM
+         * does not count them.
+         */
+        public long getAllocatedBytes() {
+            return (THREAD_MX_BEAN == null) ? -1 : this.allocatedBytes.get();
+        }
+
+        /**
+         * @return The number of postings in the query's largest
+         * inverted list.
+         */
+        public long getPeakInvList() {
+            return this.peakInvList.get();
+        }
+    }
+
+    /**
+     * A thread's part in a query:  the query's resources, the thread's
+     * allocation counter when it joined, and the query that the thread
+     * was working on before.
+     */
+    private static class Participation {
+        private QueryResources resources;
+        private long allocatedStart;
+        private Participation previous;
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Format the metrics as a JSON object.
+     *
+     * @return The metrics.
+     */
+    public static String formatJson() {
+
+        StringBuilder json = new StringBuilder();
+        long now = System.currentTimeMillis();
+
+        json.append("{\n");
+        json.append("  \"timestamp\": ").append(now).append(",\n");
+        json.append("  \"uptimeSeconds\": ").append((now - START_MILLIS) / 1000.0).append(",\n");
+        json.append("  \"queries\": ").append(QUERY_LATENCY.getCount()).append(",\n");
+
+        json.append("  \"latencyMillis\": {");
+        json.append("\"mean\": ").append(QUERY_LATENCY.getMean() / 1e6);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            json.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ")
+                    .append(QUERY_LATENCY.getValueAtPercentile(PERCENTILES[i]) / 1e6);
+        }
+        json.append(", \"max\": ").append(QUERY_LATENCY.getMax() / 1e6).append("},\n");
+
+        json.append("  \"allocatedBytesPerQuery\": {");
+        json.append("\"mean\": ").append(QUERY_ALLOCATED_BYTES.getMean());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            json.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ")
+                    .append(QUERY_ALLOCATED_BYTES.getValueAtPercentile(PERCENTILES[i]));
+        }
+        json.append(", \"max\": ").append(QUERY_ALLOCATED_BYTES.getMax()).append("},\n");
+
+        json.append("  \"peaks\": {");
+        json.append("\"invListPostings\": ").append(PEAK_INVLIST_POSTINGS.get());
+        json.append(", \"scoreListSize\": ").append(PEAK_SCORELIST_SIZE.get());
+        json.append("},\n");
+
+        json.append("  \"counters\": {");
+        json.append("\"postingsDecoded\": ").append(POSTINGS_DECODED.get());
+        json.append(", \"postingBytesDecoded\": ").append(POSTING_BYTES_DECODED.get());
+        json.append(", \"documentsScored\": ").append(DOCUMENTS_SCORED.get());
+        json.append(", \"storedFieldReads\": ").append(STORED_FIELD_READS.get());
+        json.append(", \"queriesOverAllocationBudget\": ")
+                .append(QUERIES_OVER_ALLOCATION_BUDGET.get());
+        json.append("},\n");
+
+        json.append("  \"caches\": {");
+        String separator = "";
+        for (Map.Entry<String, BoundedCache<?, ?>> e : caches.entrySet()) {
+            BoundedCache<?, ?> c = e.getValue();
+            json.append(separator).append("\"").append(e.getKey()).append("\": {");
+            json.append("\"hits\": ").append(c.getHits());
+            json.append(", \"misses\": ").append(c.getMisses());
+            json.append(", \"size\": ").append(c.size()).append("}");
+            separator = ", ";
+        }
+        json.append("}\n");
+
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Format the metrics in the Prometheus text exposition format.
+     *
+     * @return The metrics.
+     */
+    public static String formatPrometheus() {
+
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP qryeval_query_latency_seconds Query latency.\n");
+        text.append("# TYPE qryeval_query_latency_seconds summary\n");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            text.append("qryeval_query_latency_seconds{quantile=\"").append(QUANTILE_NAMES[i]).append("\"} ")
+                    .append(QUERY_LATENCY.getValueAtPercentile(PERCENTILES[i]) / 1e9).append('\n');
+        }
+        text.append("qryeval_query_latency_seconds{quantile=\"1.0\"} ")
+                .append(QUERY_LATENCY.getMax() / 1e9).append('\n');
+        text.append("qryeval_query_latency_seconds_sum ")
+                .append(QUERY_LATENCY.getSum() / 1e9).append('\n');
+        text.append("qryeval_query_latency_seconds_count ")
+                .append(QUERY_LATENCY.getCount()).append('\n');
+
+        text.append("# HELP qryeval_query_allocated_bytes Bytes allocated by each query.\n");
+        text.append("# TYPE qryeval_query_allocated_bytes summary\n");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            text.append("qryeval_query_allocated_bytes{quantile=\"").append(QUANTILE_NAMES[i]).append("\"} ")
+                    .append(QUERY_ALLOCATED_BYTES.getValueAtPercentile(PERCENTILES[i])).append('\n');
+        }
+        text.append("qryeval_query_allocated_bytes{quantile=\"1.0\"} ")
+                .append(QUERY_ALLOCATED_BYTES.getMax()).append('\n');
+        text.append("qryeval_query_allocated_bytes_sum ")
+                .append(QUERY_ALLOCATED_BYTES.getSum()).append('\n');
+        text.append("qryeval_query_allocated_bytes_count ")
+                .append(QUERY_ALLOCATED_BYTES.getCount()).append('\n');
+
+        text.append("# HELP qryeval_peak_invlist_postings The largest inverted list of any query.\n");
+        text.append("# TYPE qryeval_peak_invlist_postings gauge\n");
+        text.append("qryeval_peak_invlist_postings ").append(PEAK_INVLIST_POSTINGS.get()).append('\n');
+        text.append("# HELP qryeval_peak_scorelist_size The largest ScoreList of any query.\n");
+        text.append("# TYPE qryeval_peak_scorelist_size gauge\n");
+        text.append("qryeval_peak_scorelist_size ").append(PEAK_SCORELIST_SIZE.get()).append('\n');
+
+        formatPrometheusCounter(text, "qryeval_postings_decoded_total",
+                "Postings copied from the index into inverted lists.", POSTINGS_DECODED.get());
+        formatPrometheusCounter(text, "qryeval_posting_bytes_decoded_total",
+                "Estimated vInt-encoded size of the decoded postings.", POSTING_BYTES_DECODED.get());
+        formatPrometheusCounter(text, "qryeval_documents_scored_total",
+                "Documents that received a score.", DOCUMENTS_SCORED.get());
+        formatPrometheusCounter(text, "qryeval_stored_field_reads_total",
+                "Documents whose stored fields were read.", STORED_FIELD_READS.get());
+        formatPrometheusCounter(text, "qryeval_queries_over_allocation_budget_total",
+                "Queries that allocated more than the allocation budget.",
+                QUERIES_OVER_ALLOCATION_BUDGET.get());
+
+        text.append("# HELP qryeval_cache_hits_total Cache lookups that found a value.\n");
+        text.append("# TYPE qryeval_cache_hits_total counter\n");
+        for (Map.Entry<String, BoundedCache<?, ?>> e : caches.entrySet()) {
+            text.append("qryeval_cache_hits_total{cache=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().getHits()).append('\n');
+        }
+
+        text.append("# HELP qryeval_cache_misses_total Cache lookups that did not find a value.\n");
+        text.append("# TYPE qryeval_cache_misses_total counter\n");
+        for (Map.Entry<String, BoundedCache<?, ?>> e : caches.entrySet()) {
+            text.append("qryeval_cache_misses_total{cache=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().getMisses()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Append a counter in the Prometheus text exposition format.
+     *
+     * @param text  The formatted metrics.
+     * @param name  The counter name.
+     * @param help  A description of the counter.
+     * @param value The counter value.
+     */
+    private static void formatPrometheusCounter(StringBuilder text, String name,
+                                                String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Get the number of bytes that the current thread has allocated
+     * since it started.  The difference between two calls is the
+     * allocation of the code in between.
+     *
+     * @return The allocated bytes, or -1 if the JVM does not count them.
+     */
+    public static long getThreadAllocatedBytes() {
+
+        if (THREAD_MX_BEAN == null) {
+            return -1;
+        }
+
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return The JVM's thread allocation counters, enabled, or null if
+     * the JVM does not provide them.
+     */
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+
+        java.lang.management.ThreadMXBean bean =
+                java.lang.management.ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    /**
+     * Record the number of postings in an inverted list that the
+     * current query produced.
+     *
+     * @param postings The number of postings.
+     */
+    public static void recordInvList(long postings) {
+
+        Participation p = currentQuery.get();
+
+        if ((p != null) && (p.resources != null)) {
+            updateMax(p.resources.peakInvList, postings);
+        }
+
+        updateMax(PEAK_INVLIST_POSTINGS, postings);
+    }
+
+    /**
+     * Start measuring a new query on the current thread.  The caller
+     * must call leaveQuery when the query is done.
+     *
+     * @return The query's resources, which threads that work on the
+     * query join (see joinQuery).
+     */
+    public static QueryResources beginQuery() {
+        QueryResources resources = new QueryResources();
+        joinQuery(resources);
+        return resources;
+    }
+
+    /**
+     * @return The resources of the query that the current thread is
+     * working on, or null.
+     */
+    public static QueryResources getQueryResources() {
+        Participation p = currentQuery.get();
+        return (p == null) ? null : p.resources;
+    }
+
+    /**
+     * Make the current thread work on a query until it calls leaveQuery,
+     * so that its allocations and inverted lists are added to the
+     * query's resources.
+     *
+     * @param resources The query's resources, or null if the query is
+     *                  not measured.
+     */
+    public static void joinQuery(QueryResources resources) {
+
+        Participation p = new Participation();
+        p.previous = currentQuery.get();
+        p.resources = resources;
+
+        //  A thread that already works on the query counts its
+        //  allocations once, in its outer participation.
+
+        boolean counted = (resources != null) &&
+                ((p.previous == null) || (p.previous.resources != resources));
+        p.allocatedStart = counted ? getThreadAllocatedBytes() : -1;
+
+        currentQuery.set(p);
+    }
+
+    /**
+     * Stop working on the query that the current thread joined last,
+     * and add the thread's allocations to the query's resources.
+     */
+    public static void leaveQuery() {
+
+        Participation p = currentQuery.get();
+
+        if (p == null) {
+            return;
+        }
+
+        if (p.allocatedStart >= 0) {
+            p.resources.allocatedBytes.addAndGet(getThreadAllocatedBytes() - p.allocatedStart);
+        }
+
+        if (p.previous == null) {
+            currentQuery.remove();
+        } else {
+            currentQuery.set(p.previous);
+        }
+    }
+
+    /**
+     * Record the resources that one query used.  Every thread that
+     * worked on the query must have left it (see leaveQuery).
+     *
+     * @param resources     The query's resources.
+     * @param scoreListSize The size of the query's ScoreList.
+     * @param budget        The allocation budget in bytes, or 0 if
+     *                      there is no budget.
+     */
+    public static void recordQueryResources(QueryResources resources, int scoreListSize,
+                                            long budget) {
+
+        long allocatedBytes = resources.getAllocatedBytes();
+
+        if (allocatedBytes >= 0) {
+            QUERY_ALLOCATED_BYTES.record(allocatedBytes);
+
+            if ((budget > 0) && (allocatedBytes > budget)) {
+                QUERIES_OVER_ALLOCATION_BUDGET.incrementAndGet();
+            }
+        }
+
+        updateMax(PEAK_SCORELIST_SIZE, scoreListSize);
+    }
+
+    /**
+     * Record the latency of one query.
+     *
+     * @param nanos The query latency in nanoseconds.
+     */
+    public static void recordQuery(long nanos) {
+        QUERY_LATENCY.record(nanos);
+    }
+
+    /**
+     * Register a cache, so that its hits and misses are reported.
+     *
+     * @param name  The name of the cache in the metrics.
+     * @param cache The cache.
+     */
+    public static void registerCache(String name, BoundedCache<?, ?> cache) {
+        caches.put(name, cache);
+    }
+
+    /**
+     * Write the metrics periodically until stopPeriodicExport is called.
+     *
+     * @param path    The metrics file.
+     * @param format  FORMAT_JSON or FORMAT_PROMETHEUS.
+     * @param seconds The time between exports.
+     */
+    public static synchronized void startPeriodicExport(final String path, final String format,
+                                                        long seconds) {
+
+        stopPeriodicExport();
+
+        exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QryMetrics exporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        exporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(path, format);
+                } catch (IOException ex) {
+                    System.err.println("Unable to write metrics to " + path + ":  " + ex);
+                }
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop writing the metrics periodically.
+     */
+    public static synchronized void stopPeriodicExport() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+
+    /**
+     * Raise a maximum to a value.
+     *
+     * @param max   The maximum.
+     * @param value The value.
+     */
+    private static void updateMax(AtomicLong max, long value) {
+        long m = max.get();
+        while ((value > m) && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Get the size of an integer in a vInt encoding, which stores 7 bits
+     * per byte.
+     *
+     * @param value A non-negative integer.
+     * @return The number of bytes.
+     */
+    static int vIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write the metrics to a file.
+     *
+     * @param path   The metrics file.
+     * @param format FORMAT_JSON or FORMAT_PROMETHEUS.
+     * @throws IOException Error writing the file.
+     * @throws IllegalArgumentException Unknown format.
+     */
+    public static synchronized void write(String path, String format) throws IOException {
+
+        String text;
+
+        if (format.equals(FORMAT_JSON)) {
+            text = formatJson();
+        } else if (format.equals(FORMAT_PROMETHEUS)) {
+            text = formatPrometheus();
+        } else {
+            throw new IllegalArgumentException("Unknown metrics format " + format);
+        }
+
+        File file = new File(path);
+        File temp = new File(path + ".tmp");
+        Writer output = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+
+        try {
+            output.write(text);
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.util.Version;
@@ -25,12 +24,16 @@ import org.apache.lucene.util.Version;
  * <li>createOperator: Use a string (e.g., #and) to create a node
  * (e.g., QrySopAnd).
  * <p>
- * <li>parseString:  If the operator supports term weights
+ * <li>parseOperator:  If the operator supports term weights
  * (e.g., #wsum (0.5 apple 1 pie)), you must modify this method.
- * For these operators, two substrings (weight and term) are
- * popped from the query string at each step, instead of one.
+ * For these operators, two tokens (weight and term) are scanned
+ * from the query string at each step, instead of one.
  * </ul>
  * <p>
+ * The parser scans the query string once, left to right.  Syntax
+ * errors report the offset in the query string where they were found.
+ * </p>
+ * <p>
  * Add new document fields to the parser by modifying createTerms.
  * </p>
  */
@@ -42,6 +45,21 @@ public class QryParser {
     private static final EnglishAnalyzerConfigurable ANALYZER =
             new EnglishAnalyzerConfigurable(Version.LUCENE_43);
 
+    /**
+     * The maximum number of raw tokens whose analysis is cached.
+     */
+    private static final int TOKEN_CACHE_SIZE = 100000;
+
+    /**
+     * Raw query tokens and the terms that the analyzer produced.
+     */
+    private static final BoundedCache<String, String[]> TOKEN_CACHE =
+            new BoundedCache<String, String[]>(TOKEN_CACHE_SIZE);
+
+    static {
+        QryMetrics.registerCache("queryTokens", TOKEN_CACHE);
+    }
+
     //  -------------------- Initialization -------------------------
 
     static {
@@ -50,35 +68,117 @@ public class QryParser {
         ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
     }
 
-    //  ----------- Methods, in alphabetical order ------------------
+    //  --------------- Nested classes --------------------------------
 
     /**
-     * Count the number of occurrences of character c in string s.
-     *
-     * @param c A character.
-     * @param s A string.
+     * The query string and the offset of the next character to parse.
      */
-    private static int countChars(String s, char c) {
+    private static class ParseState {
+
+        private final String query;
+        private int offset = 0;
+
+        /**
+         * The number of parentheses that terms of the current operator
+         * opened and did not close.  The operator's closing ')' is the
+         * first ')' when this is 0.
+         */
+        private int depth = 0;
 
-        int count = 0;
+        private ParseState(String query) {
+            this.query = query;
+        }
+
+        /**
+         * @return True if the whole query string has been consumed.
+         */
+        private boolean atEnd() {
+            return this.offset >= this.query.length();
+        }
+
+        /**
+         * @return The next character, which is not consumed.
+         */
+        private char peek() {
+            return this.query.charAt(this.offset);
+        }
+
+        /**
+         * Consume a token (e.g., "#near/3", "0.5", or "apple.title").
+         * A token ends at whitespace, a parenthesis, or the end of the
+         * query string.
+         *
+         * @return The token, which is empty if there isn't one.
+         */
+        private String scanToken() {
+            int start = this.offset;
 
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) == c) {
-                count++;
+            while (!atEnd()) {
+                char c = peek();
+
+                if (Character.isWhitespace(c) || (c == '(') || (c == ')')) {
+                    break;
+                }
+
+                this.offset++;
             }
+
+            return this.query.substring(start, this.offset);
         }
 
-        return count;
+        /**
+         * Consume a term (e.g., "apple.title", "f(x)", or "(cardiac").
+         * A term ends at whitespace, a ')' that closes the current
+         * operator, or the end of the query string.  Parentheses that
+         * do not follow an operator name are term text, which the
+         * tokenizer removes, so "(cardiac arrest)" is the terms
+         * "(cardiac" and "arrest)".  They are counted in depth, so that
+         * they are not mistaken for the operator's closing ')'.
+         *
+         * @return The term, which is empty if there isn't one.
+         */
+        private String scanTerm() {
+            int start = this.offset;
+
+            while (!atEnd()) {
+                char c = peek();
+
+                if (Character.isWhitespace(c) || ((c == ')') && (this.depth == 0))) {
+                    break;
+                }
+
+                if (c == '(') {
+                    this.depth++;
+                } else if (c == ')') {
+                    this.depth--;
+                }
+
+                this.offset++;
+            }
+
+            return this.query.substring(start, this.offset);
+        }
+
+        /**
+         * Consume whitespace.
+         */
+        private void skipWhitespace() {
+            while (!atEnd() && Character.isWhitespace(peek())) {
+                this.offset++;
+            }
+        }
     }
 
+    //  ----------- Methods, in alphabetical order ------------------
 
     /**
      * Create the desired query operator.
      *
      * @param operatorName The operator name.
      * @param weight       The operator weight.
+     * @param offset       The offset of the operator in the query string.
      */
-    private static Qry createOperator(String operatorName, double weight) {
+    private static Qry createOperator(String operatorName, double weight, int offset) {
 
         Qry operator = null;
         int operatorDistance = 0;
@@ -91,7 +191,11 @@ public class QryParser {
 
         //  Create the query operator.
         if (operatorNameLowerCase.contains("/")) {
-            operatorDistance = Integer.parseInt(operatorNameLowerCase.split("/")[1]);
+            try {
+                operatorDistance = Integer.parseInt(operatorNameLowerCase.split("/")[1]);
+            } catch (RuntimeException ex) {
+                syntaxError("Invalid distance in " + operatorName, offset);
+            }
             switch (operatorNameLowerCase.split("/")[0]) {
                 case "#near":
                     operator = new QryIopNear(operatorDistance, weight);
@@ -100,7 +204,7 @@ public class QryParser {
                     operator = new QryIopWindow(operatorDistance, weight);
                     break;
                 default:
-                    syntaxError("Unknown query operator " + operatorName);
+                    syntaxError("Unknown query operator " + operatorName, offset);
             }
         } else {
             switch (operatorNameLowerCase) {
@@ -123,7 +227,7 @@ public class QryParser {
                     operator = new QrySopWsum(weight);
                     break;
                 default:
-                    syntaxError("Unknown query operator " + operatorName);
+                    syntaxError("Unknown query operator " + operatorName, offset);
             }
         }
         operator.setDisplayName(operatorName);
@@ -138,9 +242,10 @@ public class QryParser {
      *
      * @param token  The token consumed from the query string.
      * @param weight The token weight.
+     * @param offset The offset of the token in the query string.
      * @throws IOException Error accessing the Lucene index.
      */
-    private static Qry[] createTerms(String token, double weight) throws IOException {
+    private static Qry[] createTerms(String token, double weight, int offset) throws IOException {
 
         //  Split the token into a term and a field.
 
@@ -163,7 +268,7 @@ public class QryParser {
                 (field.compareTo("title") != 0) &&
                 (field.compareTo("body") != 0) &&
                 (field.compareTo("inlink") != 0)) {
-            syntaxError("Unknown field " + token);
+            syntaxError("Unknown field " + token, offset);
         }
 
         //  Lexical processing, stopwords, stemming.  A loop is used
@@ -196,35 +301,40 @@ public class QryParser {
         // In the outer query, it must not have weight, so set it as -1.
         Qry q = parseString(queryString, -1);        // An exact parse
         q = optimizeQuery(q);            // An optimized parse
+
+        if (q != null) {
+            shareInvertedLists(q);
+        }
+
         return q;
     }
 
     /**
-     * Get the index of the right parenenthesis that balances the
-     * left-most parenthesis.  Return -1 if it doesn't exist.
+     * Find all of the inverted list operators (QryIop) in a query tree,
+     * in depth-first order, and group them by their string form.
      *
-     * @param s A string containing a query.
+     * @param q      A query tree.
+     * @param groups Inverted list operators, grouped by their string form.
      */
-    private static int indexOfBalencingParen(String s) {
+    private static void groupInvListOperators(Qry q, Map<String, List<QryIop>> groups) {
 
-        int depth = 0;
+        if (q instanceof QryIop) {
+            String key = q.toString().toLowerCase();
+            List<QryIop> group = groups.get(key);
 
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) == '(') {
-                depth++;
-            } else if (s.charAt(i) == ')') {
-                depth--;
-
-                if (depth == 0) {
-                    return i;
-                }
+            if (group == null) {
+                group = new ArrayList<QryIop>();
+                groups.put(key, group);
             }
+
+            group.add((QryIop) q);
         }
 
-        return -1;
+        for (Qry q_i : q.args) {
+            groupInvListOperators(q_i, groups);
+        }
     }
 
-
     /**
      * Optimize the query by removing degenerate nodes produced during
      * query parsing, for example '#NEAR/1 (of the)' which turns into
@@ -278,162 +388,169 @@ public class QryParser {
 
 
     /**
-     * Parse a query string into a query tree.
+     * Parse a query operator and its arguments, starting at the current
+     * offset of the parse state.  Subqueries are handled via recursion.
+     * When this method returns, the operator's closing ')' has been
+     * consumed.
      *
-     * @param queryString The query string, in an Indri-style query
-     *                    language.
-     * @param op_weight   The operator weight.
-     * @return Qry The query tree for the parsed query.
+     * @param s         The parse state.
+     * @param op_weight The operator weight.
+     * @return Qry The query tree for the parsed operator.
      * @throws IOException              Error accessing the Lucene index.
      * @throws IllegalArgumentException Query syntax error.
      */
-    private static Qry parseString(String queryString, double op_weight)
+    private static Qry parseOperator(ParseState s, double op_weight)
             throws IOException, IllegalArgumentException {
 
-        //  This simple parser is sensitive to parenthesis placement, so
-        //  check for basic errors first.
+        //  The query language is prefix-oriented, so the operator name
+        //  comes first, e.g., "#near/3 (a b)".
 
-        queryString = queryString.trim();    // The last character should be ')'
+        int operatorOffset = s.offset;
+        String operatorName = s.scanToken();
 
-        if ((countChars(queryString, '(') == 0) ||
-                (countChars(queryString, '(') != countChars(queryString, ')')) ||
-                (indexOfBalencingParen(queryString) != (queryString.length() - 1))) {
-            syntaxError("Missing, unbalanced, or misplaced parentheses");
+        if (operatorName.length() == 0) {
+            syntaxError("Missing query operator", operatorOffset);
         }
 
-        //  The query language is prefix-oriented, so the query string can
-        //  be processed left to right.  At each step, a substring is
-        //  popped from the head (left) of the string, and is converted to
-        //  a Qry object that is added to the query tree.  Subqueries are
-        //  handled via recursion.
+        s.skipWhitespace();
 
-        //  Find the left-most query operator and start the query tree.
+        if (s.atEnd() || (s.peek() != '(')) {
+            syntaxError("Missing '(' after " + operatorName, s.offset);
+        }
 
-        String[] substrings = queryString.split("[(]", 2);
-        Qry queryTree = createOperator(substrings[0].trim(), op_weight);
+        s.offset++;        // Consume the '('
 
-        //  Start consuming queryString by removing the query operator and
-        //  its terminating ')'.  queryString is always the part of the
-        //  query that hasn't been processed yet.
+        int outerDepth = s.depth;
+        s.depth = 0;
 
-        queryString = substrings[1];
-        queryString = queryString.substring(0, queryString.lastIndexOf(")")).trim();
+        Qry queryTree = createOperator(operatorName, op_weight, operatorOffset);
+        boolean weighted = (queryTree instanceof QrySopWsum) ||
+                (queryTree instanceof QrySopWand);
 
         //  Each pass below handles one argument to the query operator.
         //  Note: An argument can be a token that produces multiple terms
         //  (e.g., "near-death") or a subquery (e.g., "#and (a b c)").
-        //  Recurse on subqueries.
 
-        while (queryString.length() > 0) {
+        while (true) {
 
-            //  If the operator uses weighted query arguments, each pass of
-            //  this loop must handle "weight arg".  Handle the weight first.
-
-            //  STUDENT HW2 CODE GOES HERE
+            s.skipWhitespace();
 
+            if (s.atEnd()) {
+                syntaxError("Missing ')' for the " + operatorName + " operator",
+                        operatorOffset);
+            }
 
-            //  Now handle the argument (which could be a subquery).
+            if ((s.peek() == ')') && (s.depth == 0)) {
+                s.offset++;    // Consume the ')'
+                break;
+            }
 
-            Qry[] qargs = null;
-            PopData<String, String> p;
+            //  If the operator uses weighted query arguments, the weight
+            //  precedes the argument.  The default weight is -1.
 
-            // The default weight for each term is -1.
             double arg_weight = -1;
 
-            // If the operator is weighted
-            if (substrings[0].trim().toLowerCase().equals("#wsum") || substrings[0].trim().toLowerCase().equals("#wand")) {
-                // Calculate the weight for each argument.
-                if (queryString.charAt(0) <= '9' && queryString.charAt(0) >= '0') {    // Weight
-                    p = popWeight(queryString);
-                    arg_weight = Double.parseDouble(p.getPopped());
-                    queryString = p.getRemaining().trim();      // Consume the weight
+            if (weighted && (s.peek() >= '0') && (s.peek() <= '9')) {
+                int weightOffset = s.offset;
+                String weight = s.scanToken();
+
+                try {
+                    arg_weight = Double.parseDouble(weight);
+                } catch (NumberFormatException ex) {
+                    syntaxError("Invalid weight " + weight, weightOffset);
+                }
+
+                s.skipWhitespace();
+
+                if (s.atEnd() || ((s.peek() == ')') && (s.depth == 0))) {
+                    syntaxError("Missing argument after weight " + weight, s.offset);
                 }
             }
-            if (queryString.charAt(0) == '#') {    // Subquery
-                p = popSubquery(queryString);
+
+            //  Now handle the argument (which could be a subquery).
+
+            Qry[] qargs = null;
+            int argOffset = s.offset;
+
+            if (s.peek() == '#') {        // Subquery
                 qargs = new Qry[1];
-                qargs[0] = parseString(p.getPopped(), arg_weight);
-            } else {    // Term
-                p = popTerm(queryString);
-                qargs = createTerms(p.getPopped(), arg_weight);
+                qargs[0] = parseOperator(s, arg_weight);
+            } else {                    // Term
+                qargs = createTerms(s.scanTerm(), arg_weight, argOffset);
             }
 
-            queryString = p.getRemaining().trim();    // Consume the arg
-
             //  Add the argument(s) to the query tree.
 
             for (int i = 0; i < qargs.length; i++) {
-
-                //  STUDENTS WILL NEED TO ADJUST THIS BLOCK TO HANDLE WEIGHTS IN HW2
-
                 queryTree.appendArg(qargs[i]);
             }
         }
 
+        s.depth = outerDepth;
+
         return queryTree;
     }
 
 
     /**
-     * Remove a subQuery from an argument string.  Return the subquery
-     * and the modified argument string.
+     * Parse a query string into a query tree.  The query string is
+     * scanned once, left to right, by a recursive-descent parser.
      *
-     * @param argString A partial query argument string, e.g., "#and(a b)
-     *                  c d".
-     * @return PopData<String,String> The subquery string and the
-     * modified argString (e.g., "#and(a b)" and "c d".
+     * @param queryString The query string, in an Indri-style query
+     *                    language.
+     * @param op_weight   The operator weight.
+     * @return Qry The query tree for the parsed query.
+     * @throws IOException              Error accessing the Lucene index.
+     * @throws IllegalArgumentException Query syntax error.
      */
-    static private PopData<String, String> popSubquery(String argString) {
-
-        int i = indexOfBalencingParen(argString);
-
-        if (i < 0) {        // Query syntax error.  The parser
-            i = argString.length();    // handles it.  Here, just don't fail.
-        }
+    private static Qry parseString(String queryString, double op_weight)
+            throws IOException, IllegalArgumentException {
 
-        String subquery = argString.substring(0, i + 1);
-        argString = argString.substring(i + 1);
+        ParseState s = new ParseState(queryString);
 
-        return new PopData<String, String>(subquery, argString);
-    }
+        s.skipWhitespace();
 
+        if (s.atEnd()) {
+            syntaxError("Empty query", s.offset);
+        }
 
-    /**
-     * Remove a term from an argument string.  Return the term and
-     * the modified argument string.
-     *
-     * @param argString A partial query argument string, e.g., "a b c d".
-     * @return PopData<String,String>
-     * The term string and the modified argString (e.g., "a" and
-     * "b c d".
-     */
-    static private PopData<String, String> popTerm(String argString) {
+        Qry queryTree = parseOperator(s, op_weight);
 
-        String[] substrings = argString.split("[ \t\n\r]+", 2);
-        String token = substrings[0];
+        s.skipWhitespace();
 
-        if (substrings.length < 2) {    //  Is this the last argument?
-            argString = "";
-        } else {
-            argString = substrings[1];
+        if (!s.atEnd()) {
+            syntaxError("Unexpected text after the query", s.offset);
         }
 
-        return new PopData<String, String>(token, argString);
+        return queryTree;
     }
 
+
     /**
-     * Remove a weight from an argument string.  Return the weight and
-     * the remaining argument string.
+     * Eliminate common subexpressions by letting equivalent inverted
+     * list operators share one inverted list.  Query rewriters often
+     * repeat terms or subqueries, e.g., the same term inside #AND and
+     * inside #NEAR/1.  Equivalent operators (operators with the same
+     * string form) remain separate query nodes, because each parent
+     * needs its own docIterator and locIterator, but the inverted list
+     * is fetched from the index and evaluated only once.
      *
-     * @param argString A partial query string, contains weight
-     * @return PopData<String,String>
+     * @param q A query tree.
      */
-    static private PopData<String, String> popWeight(String argString) {
+    private static void shareInvertedLists(Qry q) {
+
+        Map<String, List<QryIop>> groups = new HashMap<String, List<QryIop>>();
+        groupInvListOperators(q, groups);
 
-        String[] substrings = argString.split("[ \t\n\r]+", 2);
-        String weight = substrings[0];
+        for (List<QryIop> group : groups.values()) {
+            if (group.size() > 1) {
+                QryIop.SharedInvList shared = new QryIop.SharedInvList();
 
-        return new PopData<String, String>(weight, substrings[1]);
+                for (QryIop q_i : group) {
+                    q_i.sharedInvList = shared;
+                }
+            }
+        }
     }
 
 
@@ -449,10 +566,30 @@ public class QryParser {
     }
 
 
+    /**
+     * Throw an error specialized for query parsing syntax errors that
+     * reports where in the query string the error was found.
+     *
+     * @param errorString A description of the error.
+     * @param offset      The offset of the error in the query string.
+     * @throws IllegalArgumentException The query contained a syntax
+     *                                  error
+     */
+    static private void syntaxError(String errorString, int offset)
+            throws IllegalArgumentException {
+        syntaxError(errorString + " at offset " + offset);
+    }
+
+
     /**
      * Given part of a query string, returns an array of terms with
      * stopwords removed and the terms stemmed using the Krovetz
      * stemmer.  Use this method to process raw query terms.
+     * <p>
+     * Query logs analyze the same words over and over, and KStem is
+     * expensive, so results are cached.  The caller gets its own copy
+     * of the array.
+     * </p>
      *
      * @param query String containing query.
      * @return Array of query tokens
@@ -460,19 +597,45 @@ public class QryParser {
      */
     public static String[] tokenizeString(String query) throws IOException {
 
-        TokenStreamComponents comp =
-                ANALYZER.createComponents("dummy", new StringReader(query));
-        TokenStream tokenStream = comp.getTokenStream();
+        String[] tokens = TOKEN_CACHE.get(query);
 
-        CharTermAttribute charTermAttribute =
-                tokenStream.addAttribute(CharTermAttribute.class);
-        tokenStream.reset();
+        if (tokens == null) {
+            tokens = tokenizeStringUncached(query);
+            TOKEN_CACHE.put(query, tokens);
+        }
+
+        return tokens.clone();
+    }
+
+
+    /**
+     * Analyze part of a query string with the query analyzer.  The
+     * analyzer reuses one token stream (StandardTokenizer, filters,
+     * and KStemFilter) per thread, so the stream must be ended and
+     * closed before the next call.
+     *
+     * @param query String containing query.
+     * @return Array of query tokens
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static String[] tokenizeStringUncached(String query) throws IOException {
 
+        TokenStream tokenStream = ANALYZER.tokenStream("dummy", new StringReader(query));
         List<String> tokens = new ArrayList<String>();
 
-        while (tokenStream.incrementToken()) {
-            String term = charTermAttribute.toString();
-            tokens.add(term);
+        try {
+            CharTermAttribute charTermAttribute =
+                    tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+
+            while (tokenStream.incrementToken()) {
+                String term = charTermAttribute.toString();
+                tokens.add(term);
+            }
+
+            tokenStream.end();
+        } finally {
+            tokenStream.close();
         }
 
         return tokens.toArray(new String[tokens.size()]);
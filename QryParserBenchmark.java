@@ -0,0 +1,194 @@
+import java.util.*;
+
+/**
+ * A parse-throughput benchmark for QryParser.getQuery on synthetic
+ * queries.  It does not need an index.  Two kinds of queries are
+ * generated:
+ * <ul>
+ * <li>wide:  #wand and #sum queries with thousands of (weighted)
+ * terms, similar to the output of query expansion; and
+ * <li>deep:  operators nested hundreds of levels deep, e.g.,
+ * #and (a #or (b #and (c ...))).
+ * </ul>
+ * <pre>
+ *    java QryParserBenchmark [queryTerms] [queryDepth] [seconds]
+ * </pre>
+ * Each benchmark is run for a warmup period, so that the JIT compiler
+ * has optimized the parser, and then for a measurement period.  The
+ * results are reported in queries/second and characters/second.
+ */
+public class QryParserBenchmark {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String USAGE =
+            "Usage:  java QryParserBenchmark [queryTerms] [queryDepth] [seconds]\n\n";
+
+    private static final String[] OPERATORS = {"#and", "#or", "#sum"};
+
+    /**
+     * Prevents the JIT compiler from discarding the parsed queries.
+     */
+    private static long sink = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args Optional:  the number of terms in wide queries, the
+     *             nesting depth of deep queries, and the number of
+     *             seconds to measure each benchmark.
+     * @throws Exception Error parsing a query.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 3) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        int queryTerms = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int queryDepth = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(1);
+        String[] vocabulary = createVocabulary(random, 5000);
+
+        run("wide #sum (" + queryTerms + " terms)",
+                createWideQuery(random, vocabulary, queryTerms, false), seconds);
+        run("wide #wand (" + queryTerms + " weighted terms)",
+                createWideQuery(random, vocabulary, queryTerms, true), seconds);
+        run("deep (" + queryDepth + " levels)",
+                createDeepQuery(random, vocabulary, queryDepth), seconds);
+
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * Create a deeply nested query.  Each level has a term and a
+     * subquery, and the innermost level has two terms.
+     *
+     * @param random     A source of random numbers.
+     * @param vocabulary The words to choose terms from.
+     * @param depth      The number of nested operators.
+     * @return The query string.
+     */
+    static String createDeepQuery(Random random, String[] vocabulary, int depth) {
+
+        StringBuilder query = new StringBuilder();
+
+        for (int i = 0; i < depth; i++) {
+            query.append(OPERATORS[i % OPERATORS.length]);
+            query.append(" (");
+            query.append(vocabulary[random.nextInt(vocabulary.length)]);
+            query.append(' ');
+        }
+
+        query.append(vocabulary[random.nextInt(vocabulary.length)]);
+
+        for (int i = 0; i < depth; i++) {
+            query.append(')');
+        }
+
+        return query.toString();
+    }
+
+    /**
+     * Create words of 3-10 random letters.
+     *
+     * @param random A source of random numbers.
+     * @param size   The number of words.
+     * @return The words.
+     */
+    static String[] createVocabulary(Random random, int size) {
+
+        String[] vocabulary = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            char[] word = new char[3 + random.nextInt(8)];
+
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+
+            vocabulary[i] = new String(word);
+        }
+
+        return vocabulary;
+    }
+
+    /**
+     * Create a query with many arguments, in the style of an expanded
+     * query.  Some terms are restricted to the title field.
+     *
+     * @param random     A source of random numbers.
+     * @param vocabulary The words to choose terms from.
+     * @param terms      The number of terms.
+     * @param weighted   If true, create a weighted #wand query,
+     *                   otherwise create a #sum query.
+     * @return The query string.
+     */
+    static String createWideQuery(Random random, String[] vocabulary, int terms,
+                                  boolean weighted) {
+
+        StringBuilder query = new StringBuilder(weighted ? "#wand (" : "#sum (");
+
+        for (int i = 0; i < terms; i++) {
+            if (weighted) {
+                query.append(String.format("%.4f ", random.nextDouble()));
+            }
+
+            query.append(vocabulary[random.nextInt(vocabulary.length)]);
+
+            if (i % 10 == 0) {
+                query.append(".title");
+            }
+
+            query.append(' ');
+        }
+
+        query.append(')');
+        return query.toString();
+    }
+
+    /**
+     * Parse a query repeatedly for a warmup period and then for a
+     * measurement period, and report the throughput.
+     *
+     * @param name    The name of the benchmark.
+     * @param query   The query string.
+     * @param seconds The length of the measurement period.
+     * @throws Exception Error parsing the query.
+     */
+    private static void run(String name, String query, int seconds) throws Exception {
+
+        parseFor(query, Math.max(1, seconds / 2) * 1000000000L);    // Warmup
+
+        long start = System.nanoTime();
+        long count = parseFor(query, seconds * 1000000000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%-40s %10.1f queries/s %12.0f chars/s",
+                name, count / elapsed, count * (double) query.length() / elapsed));
+    }
+
+    /**
+     * Parse a query repeatedly for a period of time.
+     *
+     * @param query A query string.
+     * @param nanos The length of the period.
+     * @return The number of times that the query was parsed.
+     * @throws Exception Error parsing the query.
+     */
+    private static long parseFor(String query, long nanos) throws Exception {
+
+        long count = 0;
+        long stop = System.nanoTime() + nanos;
+
+        while (System.nanoTime() < stop) {
+            Qry q = QryParser.getQuery(query);
+            sink += q.args.size();
+            count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * QryPlanner reorders the arguments of query operators so that
+ * conjunctive evaluation is driven by the rarest inverted list.
+ * <p>
+ * Qry.docIteratorHasMatchAll leads with the first query argument and
+ * advances the other arguments to its matches, so #AND (the apple)
+ * walks the long inverted list for 'the'.  The planner runs before the
+ * query is initialized.  It estimates the document frequency of every
+ * node in the query tree from index statistics, and sorts the arguments
+ * of operators whose result does not depend on argument order, rarest
+ * first.  The estimates are:
+ * </p>
+ * <ul>
+ * <li>TERM: The df (ties are broken by ctf).
+ * <li>NEAR, WINDOW, and Boolean AND: The smallest argument estimate.
+ * <li>SYN, OR, SUM, WAND, WSUM, and Indri AND: The sum of the argument
+ * estimates, but no more than the number of documents.
+ * </ul>
+ * <p>
+ * Only Boolean AND and WINDOW are reordered.  NEAR is ordered by
+ * definition, and the other operators visit every argument anyway;
+ * reordering them would only change the order of floating point
+ * operations, and thus the low bits of document scores.
+ * </p><p>
+ * plan returns a description of the chosen plan, one line per query
+ * node, with its estimate and any argument permutation.
+ * </p>
+ */
+public class QryPlanner {
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The estimated cost of a query node and the plan of its subtree.
+     */
+    private static class Estimate {
+        private double df;
+        private double ctf;
+        private String plan;
+
+        private Estimate(double df, double ctf, String plan) {
+            this.df = df;
+            this.ctf = ctf;
+            this.plan = plan;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Reorder the query tree's commutative operator arguments so that
+     * the rarest argument drives conjunctive evaluation.  The query
+     * must not be initialized yet.
+     *
+     * @param q A query tree produced by QryParser.getQuery.
+     * @param r The retrieval model the query will be evaluated with.
+     * @return A description of the chosen plan.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public static String plan(Qry q, RetrievalModel r) throws IOException {
+        return estimate(q, r, Idx.getNumDocs(), "    ").plan;
+    }
+
+    /**
+     * Estimate the cost of a query node, reordering its arguments if
+     * the operator allows it.
+     *
+     * @param q       A query node.
+     * @param r       The retrieval model.
+     * @param numDocs The number of documents in the index.
+     * @param indent  The indentation of this node in the plan.
+     * @return The node's estimate and the plan of its subtree.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static Estimate estimate(Qry q, RetrievalModel r, long numDocs, String indent)
+            throws IOException {
+
+        if (q instanceof QryIopTerm) {
+            QryIopTerm t = (QryIopTerm) q;
+            int df = Idx.getDocFreq(t.getField(), t.getTerm());
+            long ctf = Idx.getTotalTermFreq(t.getField(), t.getTerm());
+            return new Estimate(df, ctf,
+                    indent + t + "  df=" + df + " ctf=" + ctf + "\n");
+        }
+
+        //  Estimate the arguments first.
+
+        final IdentityHashMap<Qry, Estimate> estimates = new IdentityHashMap<Qry, Estimate>();
+
+        for (Qry q_i : q.args) {
+            estimates.put(q_i, estimate(q_i, r, numDocs, indent + "  "));
+        }
+
+        //  Sort the arguments of operators that are led by their first
+        //  argument.  The sort is stable, so equal estimates keep the
+        //  order that the user wrote.
+
+        boolean conjunctive = (q instanceof QryIopNear) || (q instanceof QryIopWindow) ||
+                ((q instanceof QrySopAnd) && !(r instanceof RetrievalModelIndri));
+        String permutation = "";
+
+        if (conjunctive && !(q instanceof QryIopNear)) {
+
+            ArrayList<Qry> before = new ArrayList<Qry>(q.args);
+
+            Collections.sort(q.args, new Comparator<Qry>() {
+                @Override
+                public int compare(Qry q1, Qry q2) {
+                    Estimate e1 = estimates.get(q1);
+                    Estimate e2 = estimates.get(q2);
+                    int c = Double.compare(e1.df, e2.df);
+                    return (c != 0) ? c : Double.compare(e1.ctf, e2.ctf);
+                }
+            });
+
+            for (int i = 0; i < q.args.size(); i++) {
+                if (q.args.get(i) != before.get(i)) {
+                    permutation = "  reordered from argument order";
+                    for (Qry q_i : q.args) {
+                        permutation += " " + indexOf(before, q_i);
+                    }
+                    break;
+                }
+            }
+        }
+
+        //  Combine the argument estimates.
+
+        double df = conjunctive ? Double.MAX_VALUE : 0;
+        double ctf = conjunctive ? Double.MAX_VALUE : 0;
+        StringBuilder plan = new StringBuilder();
+
+        for (Qry q_i : q.args) {
+            Estimate e = estimates.get(q_i);
+            if (conjunctive) {
+                df = Math.min(df, e.df);
+                ctf = Math.min(ctf, e.ctf);
+            } else {
+                df = Math.min(df + e.df, numDocs);
+                ctf += e.ctf;
+            }
+            plan.append(e.plan);
+        }
+
+        if (q.args.size() == 0) {
+            df = 0;
+            ctf = 0;
+        }
+
+        return new Estimate(df, ctf,
+                indent + q.getDisplayName() + "  est.df=" + (long) df + permutation + "\n" + plan);
+    }
+
+    /**
+     * Find a query node in a list by identity.
+     *
+     * @param list A list of query nodes.
+     * @param q    The query node to find.
+     * @return The index of q in the list, or -1.
+     */
+    private static int indexOf(List<Qry> list, Qry q) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == q) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * Per-operator profile counters.  When profiling is enabled, each node
+ * of a query tree has a QryProfile that records where the node spent
+ * its time and how much work it did:
+ * <ul>
+ * <li>initialize:  time in initialize, including the node's arguments;
+ * <li>evaluate:  for QryIop nodes, time in evaluate, which produces the
+ * inverted list; for QrySop nodes, time in docIteratorHasMatch,
+ * including the node's arguments;
+ * <li>hasMatch:  the number of docIteratorHasMatch calls;
+ * <li>postings:  the number of postings that the docIterator visited;
+ * <li>positions:  the number of positions that were scanned; and
+ * <li>scores:  the number of scores that were computed.
+ * </ul>
+ * <p>
+ * Profiling is off unless enable is called, in which case the only
+ * overhead is a null check in the instrumented methods.  format prints
+ * the profile as an indented tree with one line per query node.
+ * </p>
+ */
+public class QryProfile {
+
+    //  --------------- Constants and variables ---------------------
+
+    long initializeNanos = 0;
+    long evaluateNanos = 0;
+    long hasMatchCalls = 0;
+    long postings = 0;
+    long positions = 0;
+    long scores = 0;
+
+    /**
+     * True if the node reused an inverted list that an equivalent node
+     * had evaluated.
+     */
+    boolean shared = false;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Enable profiling for every node of a query tree.  The query must
+     * not be initialized yet.
+     *
+     * @param q A query tree.
+     */
+    public static void enable(Qry q) {
+
+        q.profile = new QryProfile();
+
+        for (Qry q_i : q.args) {
+            enable(q_i);
+        }
+    }
+
+    /**
+     * Format the profile of a query tree, one line per node.  Child
+     * nodes are indented below their parents.
+     *
+     * @param q      A query tree that was profiled.
+     * @param indent The indentation of the root node.
+     * @return The formatted profile.
+     */
+    public static String format(Qry q, String indent) {
+        StringBuilder result = new StringBuilder();
+        format(q, indent, result);
+        return result.toString();
+    }
+
+    /**
+     * Format the profile of a query node and its arguments.
+     *
+     * @param q      A query node.
+     * @param indent The indentation of the node.
+     * @param result The formatted profile.
+     */
+    private static void format(Qry q, String indent, StringBuilder result) {
+
+        String name = (q instanceof QryIopTerm) ? q.toString() : q.getDisplayName();
+        QryProfile p = q.profile;
+
+        if (p == null) {
+            result.append(String.format("%-40s (not profiled)%n", indent + name));
+            return;
+        }
+
+        result.append(String.format(
+                "%-40s init %9.3f ms  eval %9.3f ms  hasMatch %9d  postings %9d" +
+                        "  positions %9d  scores %9d%s%n",
+                indent + name, p.initializeNanos / 1e6, p.evaluateNanos / 1e6,
+                p.hasMatchCalls, p.postings, p.positions, p.scores,
+                p.shared ? "  (shared list)" : ""));
+
+        for (Qry q_i : q.args) {
+            format(q_i, indent + "  ", result);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A query tree compiled into a flat program.
+ * <p>
+ * Document-at-a-time evaluation of a Qry tree walks the tree
+ * recursively for every document, through virtual docIteratorHasMatch
+ * and getScore calls and repeated casts to QrySop and QryIop.  A
+ * QryProgram is produced from an initialized query tree.  It stores
+ * the tree as arrays:  one opcode per query node, in post-order (so
+ * arguments come before the operators that use them), argument lists
+ * with precomputed argument weights, and one cursor per SCORE
+ * operator over a copy of its inverted list's docids and tfs.  The
+ * document-independent parts of the BM25 and Indri term scores are
+ * precomputed too.  evaluate then runs one small loop per document
+ * that the JIT compiler can optimize well.
+ * </p><p>
+ * Candidate documents are the union of the SCORE operators' inverted
+ * lists.  Each candidate is evaluated bottom-up:  every node computes
+ * whether it matches the document and its score (for Indri, the
+ * default score if it doesn't match).  The Qry tree remains the
+ * reference implementation; a compiled program produces the same
+ * matches and scores, because it combines scores in the same order
+ * and computes term scores with the same QrySopScore methods.
+ * </p>
+ */
+public class QryProgram {
+
+    //  --------------- Constants and variables ---------------------
+
+    //  Opcodes.  SCORE opcodes are leaves; the others combine the
+    //  results of their arguments.
+
+    private static final int OP_SCORE_UNRANKED_BOOLEAN = 0;
+    private static final int OP_SCORE_RANKED_BOOLEAN = 1;
+    private static final int OP_SCORE_BM25 = 2;
+    private static final int OP_SCORE_INDRI = 3;
+    private static final int OP_AND_UNRANKED_BOOLEAN = 4;
+    private static final int OP_AND_RANKED_BOOLEAN = 5;
+    private static final int OP_AND_INDRI = 6;
+    private static final int OP_OR_UNRANKED_BOOLEAN = 7;
+    private static final int OP_OR_RANKED_BOOLEAN = 8;
+    private static final int OP_SUM_BM25 = 9;
+    private static final int OP_WAND_INDRI = 10;
+    private static final int OP_WSUM_INDRI = 11;
+
+    //  The program.  Node i's arguments are args[argStart[i]] to
+    //  args[argStart[i+1]-1], and their weights are in argWeights.
+
+    private RetrievalModel model;
+    private int[] opcodes;
+    private int[] argStart;
+    private int[] args;
+    private double[] argWeights;
+    private int[] leafOf;        // The leaf index of a SCORE node, or -1
+
+    //  One cursor per leaf (SCORE node).
+
+    private int[][] leafDocids;
+    private int[][] leafTfs;
+    private int[] leafCursors;
+    private int[] leafFields;
+
+    //  Document-independent values of each leaf.
+
+    private double[] leafRSJWeights;
+    private float[] leafAvgFieldLengths;
+    private double[] leafCollectionProbabilities;
+
+    //  Field lengths are fetched at most once per field and document.
+
+    private String[] fields;
+    private long[] fieldLengths;
+    private int[] fieldLengthDocids;
+
+    //  The state of each node for the current document.
+
+    private boolean[] matched;
+    private double[] scores;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Use compile to create a program.
+     */
+    private QryProgram() {
+    }
+
+    /**
+     * Compile an initialized query tree.
+     *
+     * @param q An initialized query tree.
+     * @param r The retrieval model that determines what is a match and
+     *          how scores are calculated.
+     * @return The compiled program, or null if the query tree has an
+     * operator that the retrieval model does not support.
+     */
+    public static QryProgram compile(Qry q, RetrievalModel r) {
+
+        QryProgram p = new QryProgram();
+
+        List<Integer> opcodes = new ArrayList<Integer>();
+        List<Integer> argStart = new ArrayList<Integer>();
+        List<Integer> args = new ArrayList<Integer>();
+        List<Double> argWeights = new ArrayList<Double>();
+        List<QrySopScore> leaves = new ArrayList<QrySopScore>();
+
+        if (compileNode(q, r, opcodes, argStart, args, argWeights, leaves) < 0) {
+            return null;
+        }
+
+        int nodes = opcodes.size();
+
+        p.model = r;
+        p.opcodes = new int[nodes];
+        p.argStart = new int[nodes + 1];
+        p.leafOf = new int[nodes];
+        p.matched = new boolean[nodes];
+        p.scores = new double[nodes];
+
+        for (int i = 0; i < nodes; i++) {
+            p.opcodes[i] = opcodes.get(i);
+            p.argStart[i] = argStart.get(i);
+            p.leafOf[i] = -1;
+        }
+        p.argStart[nodes] = args.size();
+
+        p.args = new int[args.size()];
+        p.argWeights = new double[args.size()];
+
+        for (int i = 0; i < p.args.length; i++) {
+            p.args[i] = args.get(i);
+            p.argWeights[i] = argWeights.get(i);
+        }
+
+        //  Copy each leaf's inverted list into flat arrays and precompute
+        //  the document-independent parts of its score.
+
+        int n = leaves.size();
+        List<String> fields = new ArrayList<String>();
+
+        p.leafDocids = new int[n][];
+        p.leafTfs = new int[n][];
+        p.leafCursors = new int[n];
+        p.leafFields = new int[n];
+        p.leafRSJWeights = new double[n];
+        p.leafAvgFieldLengths = new float[n];
+        p.leafCollectionProbabilities = new double[n];
+
+        for (int i = 0, leaf = 0; i < nodes; i++) {
+            if (p.opcodes[i] <= OP_SCORE_INDRI) {
+                p.leafOf[i] = leaf++;
+            }
+        }
+
+        for (int l = 0; l < n; l++) {
+            QrySopScore s = leaves.get(l);
+            InvList invertedList = s.getArg(0).invertedList;
+
+            p.leafDocids[l] = new int[invertedList.df];
+            p.leafTfs[l] = new int[invertedList.df];
+
+            for (int j = 0; j < invertedList.df; j++) {
+                InvList.DocPosting posting = invertedList.postings.get(j);
+                p.leafDocids[l][j] = posting.docid;
+                p.leafTfs[l][j] = posting.tf;
+            }
+
+            if (!fields.contains(s.getField())) {
+                fields.add(s.getField());
+            }
+
+            p.leafFields[l] = fields.indexOf(s.getField());
+
+            if (r instanceof RetrievalModelBM25) {
+                p.leafRSJWeights[l] = s.getRSJWeight();
+                p.leafAvgFieldLengths[l] = s.getAvgFieldLength();
+            } else if (r instanceof RetrievalModelIndri) {
+                p.leafCollectionProbabilities[l] = s.getCollectionProbability();
+            }
+        }
+
+        p.fields = fields.toArray(new String[fields.size()]);
+        p.fieldLengths = new long[p.fields.length];
+        p.fieldLengthDocids = new int[p.fields.length];
+        Arrays.fill(p.fieldLengthDocids, Qry.INVALID_DOCID);
+
+        return p;
+    }
+
+    /**
+     * Compile a query node and its arguments, in post-order.
+     *
+     * @param q          A query node.
+     * @param r          The retrieval model.
+     * @param opcodes    The opcodes of the nodes compiled so far.
+     * @param argStart   Where each node's arguments start in args.
+     * @param args       The arguments of the nodes compiled so far.
+     * @param argWeights The weights of the arguments compiled so far.
+     * @param leaves     The SCORE operators compiled so far.
+     * @return The index of the compiled node, or -1 if the retrieval
+     * model does not support an operator.
+     */
+    private static int compileNode(Qry q, RetrievalModel r,
+                                   List<Integer> opcodes, List<Integer> argStart,
+                                   List<Integer> args, List<Double> argWeights,
+                                   List<QrySopScore> leaves) {
+
+        int opcode = getOpcode(q, r);
+
+        if (opcode < 0) {
+            return -1;
+        }
+
+        //  Compile the arguments first.  SCORE operators are leaves; their
+        //  QryIop arguments were evaluated when the query was initialized.
+
+        int[] argNodes = new int[0];
+
+        if (q instanceof QrySopScore) {
+            leaves.add((QrySopScore) q);
+        } else {
+            argNodes = new int[q.args.size()];
+
+            for (int i = 0; i < argNodes.length; i++) {
+                argNodes[i] = compileNode(q.args.get(i), r, opcodes, argStart,
+                        args, argWeights, leaves);
+
+                if (argNodes[i] < 0) {
+                    return -1;
+                }
+            }
+        }
+
+        //  Argument weights are used by the Indri operators.
+
+        double sum_weight = 0;
+
+        for (Qry q_i : q.args) {
+            sum_weight += q_i.getWeight();
+        }
+
+        argStart.add(args.size());
+
+        for (int i = 0; i < argNodes.length; i++) {
+            args.add(argNodes[i]);
+
+            if (opcode == OP_AND_INDRI) {
+                argWeights.add(1.0 / argNodes.length);
+            } else if ((opcode == OP_WAND_INDRI) || (opcode == OP_WSUM_INDRI)) {
+                argWeights.add(q.args.get(i).getWeight() / sum_weight);
+            } else {
+                argWeights.add(1.0);
+            }
+        }
+
+        opcodes.add(opcode);
+        return opcodes.size() - 1;
+    }
+
+    /**
+     * Evaluate the program.  A program can be evaluated only once,
+     * because evaluation consumes its cursors.
+     *
+     * @return The documents that match the query and their scores (unsorted).
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public ScoreList evaluate() throws IOException {
+
+        ScoreList result = new ScoreList();
+        int root = this.opcodes.length - 1;
+        RetrievalModelBM25 bm25 =
+                (this.model instanceof RetrievalModelBM25) ? (RetrievalModelBM25) this.model : null;
+        RetrievalModelIndri indri =
+                (this.model instanceof RetrievalModelIndri) ? (RetrievalModelIndri) this.model : null;
+
+        //  Each pass of the loop evaluates the next candidate document.
+
+        while (true) {
+
+            int docid = Integer.MAX_VALUE;
+
+            for (int l = 0; l < this.leafCursors.length; l++) {
+                int c = this.leafCursors[l];
+
+                if ((c < this.leafDocids[l].length) && (this.leafDocids[l][c] < docid)) {
+                    docid = this.leafDocids[l][c];
+                }
+            }
+
+            if (docid == Integer.MAX_VALUE) {
+                break;                // All candidates have been processed.  Done.
+            }
+
+            for (int n = 0; n <= root; n++) {
+
+                int opcode = this.opcodes[n];
+
+                if (opcode <= OP_SCORE_INDRI) {
+
+                    int l = this.leafOf[n];
+                    int c = this.leafCursors[l];
+                    boolean match = (c < this.leafDocids[l].length) &&
+                            (this.leafDocids[l][c] == docid);
+                    int tf = match ? this.leafTfs[l][c] : 0;
+
+                    this.matched[n] = match;
+
+                    switch (opcode) {
+                        case OP_SCORE_UNRANKED_BOOLEAN:
+                            this.scores[n] = match ? 1.0 : 0.0;
+                            break;
+                        case OP_SCORE_RANKED_BOOLEAN:
+                            this.scores[n] = tf;
+                            break;
+                        case OP_SCORE_BM25:
+                            this.scores[n] = match ?
+                                    QrySopScore.scoreBM25(bm25, this.leafRSJWeights[l],
+                                            this.leafAvgFieldLengths[l], tf,
+                                            getFieldLength(this.leafFields[l], docid)) :
+                                    0.0;
+                            break;
+                        default:
+                            this.scores[n] = QrySopScore.scoreIndri(indri,
+                                    this.leafCollectionProbabilities[l], tf,
+                                    getFieldLength(this.leafFields[l], docid));
+                            break;
+                    }
+                    continue;
+                }
+
+                int start = this.argStart[n];
+                int end = this.argStart[n + 1];
+                boolean any = false;
+                boolean all = true;
+
+                for (int i = start; i < end; i++) {
+                    any |= this.matched[this.args[i]];
+                    all &= this.matched[this.args[i]];
+                }
+
+                double score = 0.0;
+
+                switch (opcode) {
+                    case OP_AND_UNRANKED_BOOLEAN:
+                        any = all;
+                        score = 1.0;
+                        break;
+
+                    case OP_AND_RANKED_BOOLEAN:
+                        any = all;
+                        score = Double.MAX_VALUE;
+                        for (int i = start; i < end; i++) {
+                            score = Math.min(score, this.scores[this.args[i]]);
+                        }
+                        break;
+
+                    case OP_OR_UNRANKED_BOOLEAN:
+                        score = 1.0;
+                        break;
+
+                    case OP_OR_RANKED_BOOLEAN:
+                        score = Double.MIN_VALUE;
+                        for (int i = start; i < end; i++) {
+                            if (this.matched[this.args[i]]) {
+                                score = Math.max(score, this.scores[this.args[i]]);
+                            }
+                        }
+                        break;
+
+                    case OP_SUM_BM25:
+                        for (int i = start; i < end; i++) {
+                            if (this.matched[this.args[i]]) {
+                                score += this.scores[this.args[i]];
+                            }
+                        }
+                        break;
+
+                    case OP_AND_INDRI:
+                    case OP_WAND_INDRI:
+                        score = 1.0;
+                        for (int i = start; i < end; i++) {
+                            score *= Math.pow(this.scores[this.args[i]], this.argWeights[i]);
+                        }
+                        break;
+
+                    default:        // OP_WSUM_INDRI
+                        for (int i = start; i < end; i++) {
+                            score += this.scores[this.args[i]] * this.argWeights[i];
+                        }
+                        break;
+                }
+
+                this.matched[n] = any;
+                this.scores[n] = score;
+            }
+
+            if (this.matched[root]) {
+                result.add(docid, this.scores[root]);
+            }
+
+            //  Advance the cursors that matched this document.
+
+            for (int l = 0; l < this.leafCursors.length; l++) {
+                int c = this.leafCursors[l];
+
+                if ((c < this.leafDocids[l].length) && (this.leafDocids[l][c] == docid)) {
+                    this.leafCursors[l]++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the length of a field in a document, fetching it from the
+     * index only once per document.
+     *
+     * @param field The index of the field in the fields array.
+     * @param docid An internal document id.
+     * @return The length of the field.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private long getFieldLength(int field, int docid) throws IOException {
+
+        if (this.fieldLengthDocids[field] != docid) {
+            this.fieldLengths[field] = Idx.getFieldLength(this.fields[field], docid);
+            this.fieldLengthDocids[field] = docid;
+        }
+
+        return this.fieldLengths[field];
+    }
+
+    /**
+     * Get the opcode of a query node.
+     *
+     * @param q A query node.
+     * @param r The retrieval model.
+     * @return The opcode, or -1 if the retrieval model does not support
+     * the query operator.
+     */
+    private static int getOpcode(Qry q, RetrievalModel r) {
+
+        boolean unranked = (r instanceof RetrievalModelUnrankedBoolean);
+        boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+        boolean bm25 = (r instanceof RetrievalModelBM25);
+        boolean indri = (r instanceof RetrievalModelIndri);
+
+        if (q instanceof QrySopScore) {
+            return unranked ? OP_SCORE_UNRANKED_BOOLEAN :
+                    ranked ? OP_SCORE_RANKED_BOOLEAN :
+                            bm25 ? OP_SCORE_BM25 :
+                                    indri ? OP_SCORE_INDRI : -1;
+        } else if (q instanceof QrySopAnd) {
+            return unranked ? OP_AND_UNRANKED_BOOLEAN :
+                    ranked ? OP_AND_RANKED_BOOLEAN :
+                            indri ? OP_AND_INDRI : -1;
+        } else if (q instanceof QrySopOr) {
+            return unranked ? OP_OR_UNRANKED_BOOLEAN :
+                    ranked ? OP_OR_RANKED_BOOLEAN : -1;
+        } else if (q instanceof QrySopSum) {
+            return bm25 ? OP_SUM_BM25 : -1;
+        } else if (q instanceof QrySopWand) {
+            return indri ? OP_WAND_INDRI : -1;
+        } else if (q instanceof QrySopWsum) {
+            return indri ? OP_WSUM_INDRI : -1;
+        } else {
+            return -1;
+        }
+    }
+}
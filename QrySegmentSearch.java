@@ -0,0 +1,196 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ * Per-segment evaluation:  a query is evaluated independently against
+ * each segment (leaf) of the current index, and the segments' top-k
+ * results are merged.  QryEval uses it when the parameter file has
+ * searchMode=segments.
+ * <p>
+ * Each segment is searched by a pool thread that uses
+ * Idx.setThreadSegment, so InvList reads segment-local postings and
+ * field lengths come from the segment's norms, instead of going through
+ * the composite MultiFields and MultiDocValues views that remap docids
+ * across segments.  Segment docids are mapped to index docids by adding
+ * the segment's docBase.
+ * </p><p>
+ * The calling thread should hold a reference to the index reader (see
+ * Idx.setThreadIndex), so that the segments stay open if the index is
+ * reopened during the search.
+ * </p><p>
+ * Scores must not depend on how the index is segmented, so the corpus
+ * statistics of the query's terms are gathered from the whole index
+ * first (see IdxStatistics).  Derived inverted lists (e.g., #NEAR, #SYN)
+ * have statistics only after they are evaluated, so queries that score
+ * them with BM25 or Indri, and indexes that have one segment, are
+ * evaluated against the whole index as usual.
+ * </p>
+ */
+public class QrySegmentSearch {
+
+    //  --------------- Constants and variables ---------------------
+
+    private int topK;
+    private int statisticsCacheSize;
+    private ExecutorService executor;
+
+    /**
+     * Gathers the statistics of each index, by index path.
+     */
+    private ConcurrentHashMap<String, IdxStatistics> statistics =
+            new ConcurrentHashMap<String, IdxStatistics>();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param topK    The number of results to keep from each segment and
+     *                in the merged ranking.
+     * @param threads The number of segments that are searched at once.
+     * @param statisticsCacheSize The number of term statistics that are
+     *                cached.
+     */
+    public QrySegmentSearch(int topK, int threads, int statisticsCacheSize) {
+
+        if ((topK < 1) || (threads < 1) || (statisticsCacheSize < 1)) {
+            throw new IllegalArgumentException
+                    ("Segment search needs a positive topK, thread count, and cache size.");
+        }
+
+        this.topK = topK;
+        this.statisticsCacheSize = statisticsCacheSize;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QrySegmentSearch segment search");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Get the statistics gatherer of an index.
+     *
+     * @param indexPath The index path.
+     * @return The statistics gatherer.
+     */
+    private IdxStatistics getStatistics(String indexPath) {
+
+        IdxStatistics s = this.statistics.get(indexPath);
+
+        if (s == null) {
+            s = new IdxStatistics(Collections.singletonList(indexPath),
+                    null, this.statisticsCacheSize);
+
+            IdxStatistics existing = this.statistics.putIfAbsent(indexPath, s);
+
+            if (existing != null) {
+                s = existing;
+            } else {
+                QryMetrics.registerCache("segmentTermStatistics", s.getTermCache());
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * Whether the scores of a query depend on the statistics of derived
+     * inverted lists, which are known only after evaluation.
+     *
+     * @param q A query.
+     * @param r The retrieval model.
+     * @return True if the query must be evaluated against the whole index.
+     */
+    private static boolean hasScoredDerivedLists(Qry q, RetrievalModel r) {
+
+        if (!((r instanceof RetrievalModelBM25) || (r instanceof RetrievalModelIndri))) {
+            return false;
+        }
+
+        if ((q instanceof QryIop) && !(q instanceof QryIopTerm)) {
+            return true;
+        }
+
+        for (Qry q_i : q.args) {
+            if (hasScoredDerivedLists(q_i, r)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Evaluate a query against every segment of the current index and
+     * merge the results.
+     *
+     * @param qString A query string.
+     * @param model   The retrieval model.
+     * @return The merged top-k results, or null if there is no query.
+     * @throws IOException Error accessing the index.
+     */
+    public ScoreList search(final String qString, final RetrievalModel model)
+            throws IOException {
+
+        final String indexPath = Idx.getIndexPath();
+        List<AtomicReaderContext> leaves = Idx.getIndexReader().leaves();
+        String query = model.defaultQrySopName() + "(" + qString + ")";
+        Qry q = QryParser.getQuery(query);
+
+        if ((q == null) || (leaves.size() < 2) ||
+                hasScoredDerivedLists(q, model)) {
+            return QryEval.evaluateQuery(qString, model, false);
+        }
+
+        //  Gather the statistics of the query's terms in the whole index.
+        //  The calling thread's reader is used, so the statistics match
+        //  the segments even if the index is reopened meanwhile.
+
+        final IdxStatistics global = getStatistics(indexPath).gather(q, query);
+        List<Future<ScoreList>> futures = new ArrayList<Future<ScoreList>>();
+        final QryMetrics.QueryResources resources = QryMetrics.getQueryResources();
+
+        for (final AtomicReaderContext leaf : leaves) {
+            futures.add(this.executor.submit(new Callable<ScoreList>() {
+                @Override
+                public ScoreList call() throws IOException {
+                    Idx.setThreadSegment(leaf);
+                    IdxStatistics.setThreadStatistics(global);
+                    QryMetrics.joinQuery(resources);
+                    try {
+                        ScoreList r = QryEval.evaluateQuery(qString, model, false);
+                        return (r != null) ?
+                                QryFederation.copyTopK(r, topK, 0, leaf.docBase) :
+                                new ScoreList();
+                    } finally {
+                        QryMetrics.leaveQuery();
+                        IdxStatistics.setThreadStatistics(null);
+                        Idx.setThreadIndex(null);
+                    }
+                }
+            }));
+        }
+
+        List<ScoreList> results = new ArrayList<ScoreList>();
+
+        try {
+            for (Future<ScoreList> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segment search was interrupted.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        return QryFederation.merge(results, this.topK);
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * QryServer answers queries over a line-oriented TCP protocol, so that
+ * interactive tools and replay harnesses use an engine that has opened
+ * the index and warmed up already, instead of paying for JVM startup,
+ * Idx.open, and JIT compilation on every batch.  It is started by
+ * QryEval with mode=server in the parameter file; the index, retrieval
+ * model, and evaluation parameters are the same as in batch mode.
+ * <pre>
+ *    server:port=PORT               (default 4860)
+ *    server:threads=N               (default:  the number of processors)
+ *    server:queueSize=N             (default 64)
+ *    server:maxConnections=N        (default 64)
+ *    server:reopenInterval=SECONDS  (default 0:  never)
+ *    trecEvalOutputLength=N         (results per query, default 100)
+ * </pre>
+ * The server listens on the loopback interface only.  Each request is
+ * one line in the query file format, "qid:query"; the qid is optional.
+ * The response to a request is a header line followed by one line per
+ * result:
+ * <pre>
+ *    OK qid numResults
+ *    rank externalId score
+ *    ...
+ * </pre>
+ * or a single "ERROR message" line.  Requests on one connection are
+ * answered in order.
+ * <p>
+ * Queries are evaluated concurrently by a fixed pool of threads.  The
+ * queue of waiting queries is bounded; when it is full, a request is
+ * answered with "ERROR busy" immediately, so that an overloaded server
+ * sheds load instead of accumulating latency.
+ * </p><p>
+ * With a reopen interval, the server checks the open indexes for
+ * changes periodically and reopens them (see Idx.reopen), so it picks
+ * up index updates without a restart.  Queries that are running when
+ * an index is reopened finish on the old reader.
+ * </p>
+ */
+public class QryServer {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final int DEFAULT_PORT = 4860;
+
+    private RetrievalModel model;
+    private int port = DEFAULT_PORT;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 64;
+    private int resultLength = 100;
+    private long reopenInterval = 0;
+
+    /**
+     * Limits the number of open client connections.
+     */
+    private Semaphore connections;
+
+    /**
+     * Evaluates queries.
+     */
+    private ThreadPoolExecutor executor;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param parameters The parameters from the parameter file.
+     * @param model      The retrieval model.
+     */
+    public QryServer(Map<String, String> parameters, RetrievalModel model) {
+
+        this.model = model;
+
+        int maxConnections = 64;
+
+        if (parameters.containsKey("server:port")) {
+            this.port = Integer.parseInt(parameters.get("server:port"));
+        }
+        if (parameters.containsKey("server:threads")) {
+            this.threads = Integer.parseInt(parameters.get("server:threads"));
+        }
+        if (parameters.containsKey("server:queueSize")) {
+            this.queueSize = Integer.parseInt(parameters.get("server:queueSize"));
+        }
+        if (parameters.containsKey("server:maxConnections")) {
+            maxConnections = Integer.parseInt(parameters.get("server:maxConnections"));
+        }
+        if (parameters.containsKey("trecEvalOutputLength")) {
+            this.resultLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        }
+        if (parameters.containsKey("server:reopenInterval")) {
+            this.reopenInterval = Long.parseLong(parameters.get("server:reopenInterval"));
+        }
+
+        if ((this.threads < 1) || (this.queueSize < 1) || (maxConnections < 1) ||
+                (this.reopenInterval < 0)) {
+            throw new IllegalArgumentException
+                    ("server:threads, server:queueSize, and server:maxConnections must be" +
+                            " positive, and server:reopenInterval must not be negative.");
+        }
+
+        this.connections = new Semaphore(maxConnections);
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(this.queueSize),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Evaluate one request and format the response.
+     *
+     * @param line The request.
+     * @return The response.
+     */
+    private String evaluate(String line) {
+
+        int d = line.indexOf(':');
+        String qid = (d < 0) ? "-" : line.substring(0, d).trim();
+        String query = line.substring(d + 1);
+
+        try {
+            long start = System.nanoTime();
+            QryMetrics.QueryResources resources = QryMetrics.beginQuery();
+            ScoreList r;
+
+            try {
+                r = QryEval.processQuery(query, this.model, false);
+            } finally {
+                QryMetrics.leaveQuery();
+            }
+
+            int n = (r == null) ? 0 : Math.min(this.resultLength, r.size());
+
+            StringBuilder response = new StringBuilder();
+            response.append("OK ").append(qid).append(' ').append(n).append('\n');
+
+            for (int i = 0; i < n; i++) {
+                response.append(i + 1).append(' ')
+                        .append(r.getExternalDocid(i)).append(' ')
+                        .append(r.getDocidScore(i)).append('\n');
+            }
+
+            QryMetrics.recordQuery(System.nanoTime() - start);
+            QryMetrics.recordQueryResources(resources, (r == null) ? 0 : r.size(),
+                    QryEval.getAllocationBudget());
+            QryMetrics.DOCUMENTS_SCORED.addAndGet((r == null) ? 0 : r.size());
+            return response.toString();
+        } catch (Exception ex) {
+            return error(ex.getMessage());
+        }
+    }
+
+    /**
+     * Format an error response.  Messages are reduced to one line.
+     *
+     * @param message The error message.
+     * @return The response.
+     */
+    private static String error(String message) {
+        if (message == null) {
+            message = "internal error";
+        }
+        return "ERROR " + message.replace('\n', ' ').replace('\r', ' ') + "\n";
+    }
+
+    /**
+     * Read requests from a client and answer them, until the client
+     * closes the connection.
+     *
+     * @param socket The client connection.
+     */
+    private void handle(Socket socket) {
+
+        try {
+            BufferedReader input = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer output = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            String line;
+
+            while ((line = input.readLine()) != null) {
+
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+
+                final String request = line;
+                String response;
+
+                try {
+                    Future<String> result = this.executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return evaluate(request);
+                        }
+                    });
+                    response = result.get();
+                } catch (RejectedExecutionException ex) {
+                    response = error("busy");
+                } catch (ExecutionException ex) {
+                    response = error(String.valueOf(ex.getCause()));
+                }
+
+                output.write(response);
+                output.flush();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            //  The client went away.  Nothing to do.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //  Ignore.
+            }
+            this.connections.release();
+        }
+    }
+
+    /**
+     * Reopen the open indexes that have changed.  Errors are reported,
+     * and the old readers stay in use.
+     */
+    private static void reopen() {
+
+        for (String indexPath : Idx.getOpenIndexPaths()) {
+            try {
+                if (Idx.reopen(indexPath)) {
+                    System.out.println("QryServer reopened " + indexPath +
+                            " (generation " + Idx.getGeneration(indexPath) + ")");
+                }
+            } catch (IOException ex) {
+                System.err.println("QryServer was unable to reopen " + indexPath + ":  " + ex);
+            }
+        }
+    }
+
+    /**
+     * Accept client connections until the process is stopped.  Each
+     * connection has its own thread, which reads requests and waits
+     * for their results; queries are evaluated by the thread pool.
+     *
+     * @throws IOException Unable to listen on the port.
+     */
+    public void run() throws IOException {
+
+        ServerSocket server = new ServerSocket(this.port, 50, InetAddress.getByName(null));
+
+        System.out.println("QryServer listening on " + server.getLocalSocketAddress() +
+                " (" + this.threads + " threads, queue size " + this.queueSize + ")");
+
+        ScheduledExecutorService reopener = null;
+
+        if (this.reopenInterval > 0) {
+            reopener = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "QryServer reopen");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reopener.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reopen();
+                }
+            }, this.reopenInterval, this.reopenInterval, TimeUnit.SECONDS);
+        }
+
+        try {
+            while (true) {
+                this.connections.acquireUninterruptibly();
+
+                final Socket socket;
+
+                try {
+                    socket = server.accept();
+                } catch (IOException ex) {
+                    this.connections.release();
+                    throw ex;
+                }
+
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "QryServer " + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            }
+        } finally {
+            server.close();
+            this.executor.shutdown();
+
+            if (reopener != null) {
+                reopener.shutdown();
+            }
+        }
+    }
+}
@@ -47,8 +47,32 @@ public abstract class QrySop extends Qry {
      * @throws IOException Error accessing the Lucene index.
      */
     public void initialize(RetrievalModel r) throws IOException {
+        long start = this.profileStart();
+
         for (Qry q_i : this.args) {
             q_i.initialize(r);
         }
+
+        this.profileInitialize(start);
+    }
+
+    /**
+     * Record the time spent in initialize in the profile.
+     *
+     * @param start The value of profileStart when initialize began.
+     */
+    protected void profileInitialize(long start) {
+        if (this.profile != null) {
+            this.profile.initializeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Record a getScore call in the profile.
+     */
+    protected void profileScore() {
+        if (this.profile != null) {
+            this.profile.scores++;
+        }
     }
 }
@@ -45,6 +45,8 @@ public class QrySopAnd extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
+        this.profileScore();
+
         if (r instanceof RetrievalModelUnrankedBoolean) {
             return this.getScoreUnrankedBoolean(r);
         } else if (r instanceof RetrievalModelRankedBoolean) {
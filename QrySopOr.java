@@ -36,6 +36,8 @@ public class QrySopOr extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
+        this.profileScore();
+
         if (r instanceof RetrievalModelUnrankedBoolean) {
             return this.getScoreUnrankedBoolean(r);
         } else if (r instanceof RetrievalModelRankedBoolean) {
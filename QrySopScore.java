@@ -22,6 +22,11 @@ public class QrySopScore extends QrySop {
      *  Document-independent values that should be determined just once.
      *  Some retrieval models have these, some don't.
      */
+    private long numDocs;
+    private int df;
+    private int ctf;
+    private long sumOfFieldLengths;
+    private int docCount;
 
     /**
      * Indicates whether the query has a match.
@@ -43,6 +48,8 @@ public class QrySopScore extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
+        this.profileScore();
+
         if (r instanceof RetrievalModelUnrankedBoolean) {
             return this.getScoreUnrankedBoolean(r);
         } else if (r instanceof RetrievalModelRankedBoolean) {
@@ -98,23 +105,82 @@ public class QrySopScore extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            String field = ((QryIop) this.args.get(0)).getField();
-            double k_1 = ((RetrievalModelBM25) r).k_1;
-            double b = ((RetrievalModelBM25) r).b;
-            double k_3 = ((RetrievalModelBM25) r).k_3;
-            long N = Idx.getNumDocs();
+            int docid = this.docIteratorGetMatch();
             int tf = ((QryIop) this.args.get(0)).docIteratorGetMatchPosting().tf;
-            int df = ((QryIop) this.args.get(0)).getDf();
-            int qtf = 1;
-            long doclen = Idx.getFieldLength(field, this.docIteratorGetMatch());
-            float avg_doclen = Idx.getSumOfFieldLengths(field) / (float) Idx.getDocCount(field);
-            double RSJ_weight = Math.log((N - df + 0.5) / (df + 0.5));
-            double tf_weight = tf / (tf + k_1 * (1 - b + b * (doclen / avg_doclen)));
-            double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
-            return RSJ_weight * tf_weight * user_weight;
+            long doclen = Idx.getFieldLength(this.getField(), docid);
+            return this.getScoreBM25((RetrievalModelBM25) r, tf, doclen);
         }
     }
 
+    /**
+     * The BM25 score of a document that contains the argument tf times.
+     *
+     * @param r      The BM25 retrieval model.
+     * @param tf     The term frequency in the document.
+     * @param doclen The length of the field in the document.
+     * @return The document score under BM25 retrieval model.
+     */
+    double getScoreBM25(RetrievalModelBM25 r, int tf, long doclen) {
+        return scoreBM25(r, this.getRSJWeight(), this.getAvgFieldLength(), tf, doclen);
+    }
+
+    /**
+     * The BM25 score of a document, given the document-independent
+     * values of the term.  All evaluation strategies (document-at-a-time,
+     * term-at-a-time, compiled) use this method, so that they produce
+     * the same scores.
+     *
+     * @param r          The BM25 retrieval model.
+     * @param RSJ_weight The term's RSJ weight (see getRSJWeight).
+     * @param avg_doclen The average field length (see getAvgFieldLength).
+     * @param tf         The term frequency in the document.
+     * @param doclen     The length of the field in the document.
+     * @return The document score under BM25 retrieval model.
+     */
+    static double scoreBM25(RetrievalModelBM25 r, double RSJ_weight, float avg_doclen,
+                            int tf, long doclen) {
+        double k_1 = r.k_1;
+        double b = r.b;
+        double k_3 = r.k_3;
+        int qtf = 1;
+        double tf_weight = tf / (tf + k_1 * (1 - b + b * (doclen / avg_doclen)));
+        double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
+        return RSJ_weight * tf_weight * user_weight;
+    }
+
+    /**
+     * @return The average length of the field that this operator scores.
+     */
+    float getAvgFieldLength() {
+        return this.sumOfFieldLengths / (float) this.docCount;
+    }
+
+    /**
+     * @return The maximum likelihood estimate of the probability of the
+     * argument in the collection, p(q|C), which Indri uses to smooth scores.
+     */
+    double getCollectionProbability() {
+        return (double) this.ctf / this.sumOfFieldLengths;
+    }
+
+    /**
+     * @return The RSJ (idf) weight of the argument, which BM25 uses.
+     */
+    double getRSJWeight() {
+        return rsjWeight(this.numDocs, this.df);
+    }
+
+    /**
+     * The RSJ (idf) weight of a term.
+     *
+     * @param N  The number of documents in the index.
+     * @param df The document frequency of the term.
+     * @return The RSJ weight.
+     */
+    static double rsjWeight(long N, int df) {
+        return Math.log((N - df + 0.5) / (df + 0.5));
+    }
+
     /**
      * getScore for the Indri retrieval model.
      *
@@ -123,14 +189,38 @@ public class QrySopScore extends QrySop {
      * @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException {
-        String field = ((QryIop) this.args.get(0)).getField();
-        double mu = ((RetrievalModelIndri) r).mu;
-        double lambda = ((RetrievalModelIndri) r).lambda;
         int tf = ((QryIop) this.args.get(0)).docIteratorGetMatchPosting().tf;
-        int ctf = ((QryIop) this.args.get(0)).getCtf();
-        long tokens_length = Idx.getSumOfFieldLengths(field);
-        long doclen = Idx.getFieldLength(field, this.docIteratorGetMatch());
-        double q_c_MLE = (double) ctf / tokens_length;
+        long doclen = Idx.getFieldLength(this.getField(), this.docIteratorGetMatch());
+        return this.getScoreIndri((RetrievalModelIndri) r, tf, doclen);
+    }
+
+    /**
+     * The Indri score of a document that contains the argument tf
+     * times.  A tf of 0 gives the default score.
+     *
+     * @param r      The Indri retrieval model.
+     * @param tf     The term frequency in the document.
+     * @param doclen The length of the field in the document.
+     * @return The document score under Indri retrieval model.
+     */
+    double getScoreIndri(RetrievalModelIndri r, int tf, long doclen) {
+        return scoreIndri(r, this.getCollectionProbability(), tf, doclen);
+    }
+
+    /**
+     * The Indri score of a document, given the document-independent
+     * values of the term.  All evaluation strategies use this method,
+     * so that they produce the same scores.
+     *
+     * @param r       The Indri retrieval model.
+     * @param q_c_MLE p(q|C) (see getCollectionProbability).
+     * @param tf      The term frequency in the document.
+     * @param doclen  The length of the field in the document.
+     * @return The document score under Indri retrieval model.
+     */
+    static double scoreIndri(RetrievalModelIndri r, double q_c_MLE, int tf, long doclen) {
+        double mu = r.mu;
+        double lambda = r.lambda;
         double score = (1 - lambda) * (tf + mu * q_c_MLE) / (doclen + mu) + lambda * q_c_MLE;
         return score;
     }
@@ -157,16 +247,8 @@ public class QrySopScore extends QrySop {
      * @throws IOException Error accessing the Lucene index
      */
     public double getDefaultScoreIndri(RetrievalModel r, long docid) throws IOException {
-        String field = ((QryIop) this.args.get(0)).getField();
-        double mu = ((RetrievalModelIndri) r).mu;
-        double lambda = ((RetrievalModelIndri) r).lambda;
-        int tf = 0;
-        int ctf = ((QryIop) this.args.get(0)).getCtf();
-        long tokens_length = Idx.getSumOfFieldLengths(field);
-        long doclen = Idx.getFieldLength(field, (int) docid);
-        double q_c_MLE = (double) ctf / tokens_length;
-        double score = (1 - lambda) * (tf + mu * q_c_MLE) / (doclen + mu) + lambda * q_c_MLE;
-        return score;
+        long doclen = Idx.getFieldLength(this.getField(), (int) docid);
+        return this.getScoreIndri((RetrievalModelIndri) r, 0, doclen);
     }
 
     /**
@@ -180,8 +262,44 @@ public class QrySopScore extends QrySop {
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        Qry q = this.args.get(0);
+        long start = this.profileStart();
+        QryIop q = (QryIop) this.args.get(0);
         q.initialize(r);
+
+        //  The corpus statistics do not change while the query is
+        //  evaluated, so look them up once instead of once per document.
+
+        String field = q.getField();
+        this.numDocs = Idx.getNumDocs();
+        this.df = q.getDf();
+        this.ctf = q.getCtf();
+        this.sumOfFieldLengths = Idx.getSumOfFieldLengths(field);
+        this.docCount = Idx.getDocCount(field);
+
+        //  In a federated search, lists are scored with the statistics
+        //  of all of the shards (see IdxStatistics).  A list without
+        //  global statistics keeps all of its local statistics, so that
+        //  they are consistent.
+
+        IdxStatistics global = IdxStatistics.getThreadStatistics();
+        long[] stats = (global == null) ? null : global.getListStatistics(q);
+
+        if (stats != null) {
+            this.numDocs = global.getNumDocs();
+            this.df = (int) stats[0];
+            this.ctf = (int) stats[1];
+            this.sumOfFieldLengths = global.getSumOfFieldLengths(field);
+            this.docCount = (int) global.getDocCount(field);
+        }
+
+        this.profileInitialize(start);
+    }
+
+    /**
+     * @return The field of the inverted list that this operator scores.
+     */
+    public String getField() {
+        return ((QryIop) this.args.get(0)).getField();
     }
 
     @Override
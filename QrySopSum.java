@@ -31,6 +31,9 @@ public class QrySopSum extends QrySop {
      * @throws IOException Error accessing the Lucene index
      */
     public double getScore(RetrievalModel r) throws IOException {
+
+        this.profileScore();
+
         if (r instanceof RetrievalModelBM25) {
             return this.getScoreBM25(r);
         } else {
@@ -31,6 +31,9 @@ public class QrySopWand extends QrySop {
      * @throws IOException Error accessing the Lucene index
      */
     public double getScore(RetrievalModel r) throws IOException {
+
+        this.profileScore();
+
         if (r instanceof RetrievalModelIndri) {
             return this.getScoreIndri(r);
         } else {
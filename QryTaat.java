@@ -0,0 +1,453 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Term-at-a-time (TAAT) evaluation of flat bag-of-words queries.
+ * <p>
+ * The Qry hierarchy evaluates queries document-at-a-time, advancing
+ * every query argument in lock step.  QryTaat instead processes one
+ * inverted list at a time, adding the contribution of each posting
+ * to a score accumulator for its document.  Reading each list
+ * sequentially is much more cache-friendly than jumping between lists,
+ * which matters most for short queries over long inverted lists.
+ * Two query shapes are supported:
+ * </p>
+ * <ul>
+ * <li>BM25 #SUM (a b c):  The document score is the sum of the term
+ * scores of the terms that match the document.
+ * <li>Indri #AND (a b c):  The document score is the geometric mean
+ * of the term scores.  Terms that do not match the document contribute
+ * their default score, so accumulators store the difference between
+ * the log score and the log default score, and the default scores are
+ * added when the accumulators are converted to a ScoreList.  QrySopAnd
+ * multiplies the terms' scores instead, so the two can differ in the
+ * last bits, and documents whose scores are equal or nearly equal may
+ * be ranked in a different order than document-at-a-time.
+ * </ul>
+ * <p>
+ * Accumulators are either dense (arrays indexed by internal docid) or
+ * hashed (an open-addressing table that only stores documents that
+ * matched).  The number of accumulators can be limited with the
+ * <i>quit</i> strategy, which stops evaluation when the limit is
+ * reached, or the <i>continue</i> strategy, which stops creating new
+ * accumulators but continues to update existing ones.  When pruning
+ * is enabled, inverted lists are processed in order of increasing df,
+ * so that the most informative terms create the accumulators.
+ * </p>
+ */
+public class QryTaat {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * No accumulator limit.
+     */
+    public static final String PRUNING_NONE = "none";
+
+    /**
+     * Stop evaluation when the accumulator limit is reached.
+     */
+    public static final String PRUNING_QUIT = "quit";
+
+    /**
+     * Stop creating accumulators when the limit is reached, but keep
+     * updating the accumulators that exist.
+     */
+    public static final String PRUNING_CONTINUE = "continue";
+
+    /**
+     * Hashed accumulators are used when the query's inverted lists
+     * contain fewer than maxDoc / HASHED_ACCUMULATOR_RATIO postings.
+     */
+    private static final int HASHED_ACCUMULATOR_RATIO = 32;
+
+    private String accumulatorType;    // dense, hashed, or auto
+    private String pruning;
+    private int maxAccumulators;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * Score accumulators, one per candidate document.
+     */
+    private static abstract class Accumulators {
+
+        /**
+         * @param docid An internal document id.
+         * @return True if the document has an accumulator.
+         */
+        abstract boolean contains(int docid);
+
+        /**
+         * Add a value to a document's accumulator, creating the
+         * accumulator if necessary.
+         *
+         * @param docid An internal document id.
+         * @param value The value to add.
+         */
+        abstract void add(int docid, double value);
+
+        /**
+         * @param docid An internal document id.
+         * @return The document's accumulated value.
+         */
+        abstract double get(int docid);
+
+        /**
+         * @return The documents that have accumulators, in docid order.
+         */
+        abstract int[] getDocids();
+
+        /**
+         * @return The number of accumulators.
+         */
+        abstract int size();
+    }
+
+    /**
+     * Accumulators stored in arrays indexed by internal docid.
+     */
+    private static class DenseAccumulators extends Accumulators {
+
+        private double[] values;
+        private boolean[] present;
+        private int[] docids = new int[64];
+        private int size = 0;
+
+        private DenseAccumulators(int maxDoc) {
+            this.values = new double[maxDoc];
+            this.present = new boolean[maxDoc];
+        }
+
+        boolean contains(int docid) {
+            return this.present[docid];
+        }
+
+        void add(int docid, double value) {
+            if (!this.present[docid]) {
+                if (this.size == this.docids.length) {
+                    this.docids = Arrays.copyOf(this.docids, this.size * 2);
+                }
+                this.docids[this.size++] = docid;
+                this.present[docid] = true;
+            }
+            this.values[docid] += value;
+        }
+
+        double get(int docid) {
+            return this.values[docid];
+        }
+
+        int[] getDocids() {
+            int[] result = Arrays.copyOf(this.docids, this.size);
+            Arrays.sort(result);
+            return result;
+        }
+
+        int size() {
+            return this.size;
+        }
+    }
+
+    /**
+     * Accumulators stored in an open-addressing hash table keyed by
+     * internal docid.  This avoids allocating arrays of size maxDoc
+     * when the query matches few documents.
+     */
+    private static class HashedAccumulators extends Accumulators {
+
+        private static final int EMPTY = -1;
+
+        private int[] keys;
+        private double[] values;
+        private int size = 0;
+
+        private HashedAccumulators(int expectedSize) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            this.keys = new int[capacity];
+            this.values = new double[capacity];
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        private int slot(int docid) {
+            int mask = this.keys.length - 1;
+            int i = (docid * 0x9E3779B9) >>> 1 & mask;
+
+            while ((this.keys[i] != EMPTY) && (this.keys[i] != docid)) {
+                i = (i + 1) & mask;
+            }
+
+            return i;
+        }
+
+        boolean contains(int docid) {
+            return this.keys[slot(docid)] == docid;
+        }
+
+        void add(int docid, double value) {
+            int i = slot(docid);
+
+            if (this.keys[i] == EMPTY) {
+                if ((this.size + 1) * 2 > this.keys.length) {
+                    rehash();
+                    i = slot(docid);
+                }
+                this.keys[i] = docid;
+                this.size++;
+            }
+            this.values[i] += value;
+        }
+
+        double get(int docid) {
+            int i = slot(docid);
+            return (this.keys[i] == docid) ? this.values[i] : 0.0;
+        }
+
+        int[] getDocids() {
+            int[] result = new int[this.size];
+            int n = 0;
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != EMPTY) {
+                    result[n++] = this.keys[i];
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        private void rehash() {
+            int[] oldKeys = this.keys;
+            double[] oldValues = this.values;
+
+            this.keys = new int[oldKeys.length * 2];
+            this.values = new double[oldValues.length * 2];
+            Arrays.fill(this.keys, EMPTY);
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int j = slot(oldKeys[i]);
+                    this.keys[j] = oldKeys[i];
+                    this.values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param accumulatorType dense, hashed, or auto.
+     * @param pruning         none, quit, or continue.
+     * @param maxAccumulators The accumulator limit used by pruning.
+     * @throws IllegalArgumentException An unknown accumulator type or
+     *                                  pruning strategy.
+     */
+    public QryTaat(String accumulatorType, String pruning, int maxAccumulators)
+            throws IllegalArgumentException {
+
+        if (!(accumulatorType.equals("dense") ||
+                accumulatorType.equals("hashed") ||
+                accumulatorType.equals("auto"))) {
+            throw new IllegalArgumentException
+                    ("Unknown accumulator type " + accumulatorType);
+        }
+
+        if (!(pruning.equals(PRUNING_NONE) ||
+                pruning.equals(PRUNING_QUIT) ||
+                pruning.equals(PRUNING_CONTINUE))) {
+            throw new IllegalArgumentException
+                    ("Unknown accumulator pruning strategy " + pruning);
+        }
+
+        if ((maxAccumulators < 1) && !pruning.equals(PRUNING_NONE)) {
+            throw new IllegalArgumentException
+                    ("The accumulator limit must be positive.");
+        }
+
+        this.accumulatorType = accumulatorType;
+        this.pruning = pruning;
+        this.maxAccumulators = maxAccumulators;
+    }
+
+    /**
+     * Indicates whether a query can be evaluated term-at-a-time: a
+     * SCORE operator, or a BM25 #SUM or Indri #AND operator whose
+     * arguments are all SCORE operators.
+     *
+     * @param q A query tree.
+     * @param r The retrieval model that the query will be evaluated with.
+     * @return True if the query can be evaluated term-at-a-time.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+
+        if (!((r instanceof RetrievalModelBM25) ||
+                (r instanceof RetrievalModelIndri))) {
+            return false;
+        }
+
+        if (q instanceof QrySopScore) {
+            return true;
+        }
+
+        if (!(((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+                ((q instanceof QrySopAnd) && (r instanceof RetrievalModelIndri)))) {
+            return false;
+        }
+
+        for (Qry q_i : q.args) {
+            if (!(q_i instanceof QrySopScore)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluate an initialized query term-at-a-time.  Use canEvaluate
+     * to determine whether the query has a supported shape.
+     *
+     * @param q An initialized query tree.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The documents that match the query and their scores (unsorted).
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public ScoreList evaluate(Qry q, RetrievalModel r) throws IOException {
+
+        QrySopScore[] terms = getTerms(q);
+        boolean indri = (r instanceof RetrievalModelIndri);
+
+        //  Pruning keeps the accumulators of the first lists processed,
+        //  so process the rarest terms first.
+
+        if (!this.pruning.equals(PRUNING_NONE)) {
+            Arrays.sort(terms, new Comparator<QrySopScore>() {
+                @Override
+                public int compare(QrySopScore t1, QrySopScore t2) {
+                    return Integer.compare(t1.getArg(0).getDf(), t2.getArg(0).getDf());
+                }
+            });
+        }
+
+        Accumulators accumulators = createAccumulators(terms);
+        boolean quit = false;
+
+        //  Each pass of the loop adds the contributions of one inverted list.
+
+        for (int i = 0; (i < terms.length) && !quit; i++) {
+
+            QrySopScore term = terms[i];
+            String field = term.getField();
+            InvList invertedList = term.getArg(0).invertedList;
+
+            for (int j = 0; j < invertedList.df; j++) {
+
+                InvList.DocPosting posting = invertedList.postings.get(j);
+                int docid = posting.docid;
+
+                if ((!this.pruning.equals(PRUNING_NONE)) &&
+                        (accumulators.size() >= this.maxAccumulators) &&
+                        (!accumulators.contains(docid))) {
+                    if (this.pruning.equals(PRUNING_QUIT)) {
+                        quit = true;
+                        break;
+                    }
+                    continue;
+                }
+
+                long doclen = Idx.getFieldLength(field, docid);
+
+                if (indri) {
+                    RetrievalModelIndri indriModel = (RetrievalModelIndri) r;
+                    accumulators.add(docid,
+                            (Math.log(term.getScoreIndri(indriModel, posting.tf, doclen)) -
+                                    Math.log(term.getScoreIndri(indriModel, 0, doclen))) / terms.length);
+                } else {
+                    accumulators.add(docid,
+                            term.getScoreBM25((RetrievalModelBM25) r, posting.tf, doclen));
+                }
+            }
+        }
+
+        //  Convert the accumulators to a score list.  Indri accumulators
+        //  do not include the default scores yet.
+
+        ScoreList result = new ScoreList();
+        int[] docids = accumulators.getDocids();
+
+        for (int docid : docids) {
+            double score = accumulators.get(docid);
+
+            if (indri) {
+                for (QrySopScore term : terms) {
+                    long doclen = Idx.getFieldLength(term.getField(), docid);
+                    score += Math.log(term.getScoreIndri((RetrievalModelIndri) r, 0, doclen)) / terms.length;
+                }
+                score = Math.exp(score);
+            }
+
+            result.add(docid, score);
+        }
+
+        return result;
+    }
+
+    /**
+     * Allocate accumulators for a query.  When the accumulator type is
+     * auto, hashed accumulators are used if the query's inverted lists
+     * are short compared to the number of documents in the index.
+     *
+     * @param terms The query's SCORE operators.
+     * @return Empty accumulators.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private Accumulators createAccumulators(QrySopScore[] terms) throws IOException {
+
+        int maxDoc = Idx.getMaxDoc();
+        long postings = 0;
+
+        for (QrySopScore term : terms) {
+            postings += term.getArg(0).getDf();
+        }
+
+        if (!this.pruning.equals(PRUNING_NONE)) {
+            postings = Math.min(postings, this.maxAccumulators);
+        }
+
+        if (this.accumulatorType.equals("dense") ||
+                (this.accumulatorType.equals("auto") &&
+                        (postings >= maxDoc / HASHED_ACCUMULATOR_RATIO))) {
+            return new DenseAccumulators(maxDoc);
+        } else {
+            return new HashedAccumulators((int) Math.min(postings, maxDoc));
+        }
+    }
+
+    /**
+     * Get the SCORE operators of a query that canEvaluate accepts.
+     *
+     * @param q A query tree.
+     * @return The query's SCORE operators.
+     */
+    private static QrySopScore[] getTerms(Qry q) {
+
+        if (q instanceof QrySopScore) {
+            return new QrySopScore[]{(QrySopScore) q};
+        }
+
+        QrySopScore[] terms = new QrySopScore[q.args.size()];
+
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = (QrySopScore) q.args.get(i);
+        }
+
+        return terms;
+    }
+}
@@ -15,6 +15,7 @@ public class ScoreList {
     //  object.
 
     private class ScoreListEntry {
+        private int shard = 0;
         private int docid;
         private String externalId;
         private double score;
@@ -29,6 +30,13 @@ public class ScoreList {
                 ex.printStackTrace();
             }
         }
+
+        private ScoreListEntry(int shard, int internalDocid, String externalId, double score) {
+            this.shard = shard;
+            this.docid = internalDocid;
+            this.externalId = externalId;
+            this.score = score;
+        }
     }
 
     /**
@@ -45,6 +53,38 @@ public class ScoreList {
         scores.add(new ScoreListEntry(docid, score));
     }
 
+    /**
+     *  Append a document score from one of several indexes (shards) to
+     *  a score list.  Internal docids are only unique within a shard,
+     *  so the external docid is supplied by the caller.
+     *  @param shard The shard that the document is in.
+     *  @param docid An internal document id in the shard.
+     *  @param externalId The document's external id.
+     *  @param score The document's score.
+     */
+    public void add(int shard, int docid, String externalId, double score) {
+        scores.add(new ScoreListEntry(shard, docid, externalId, score));
+    }
+
+    /**
+     *  Get the external docid of the n'th entry.
+     *  @param n The index of the requested document.
+     *  @return The external document id.
+     */
+    public String getExternalDocid(int n) {
+        return this.scores.get(n).externalId;
+    }
+
+    /**
+     *  Get the shard of the n'th entry.  Entries that were added
+     *  without a shard are in shard 0.
+     *  @param n The index of the requested document.
+     *  @return The shard.
+     */
+    public int getShard(int n) {
+        return this.scores.get(n).shard;
+    }
+
     /**
      *  Get the internal docid of the n'th entry.
      *  @param n The index of the requested document.
@@ -3,6 +3,7 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.Term;
@@ -18,6 +19,10 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  If the index has a forward index (see IdxForwardIndex), the
+ *  TermVector is read from it instead of from Lucene's term vectors:
+ *  stems are global term ids, which are converted to strings only when
+ *  stemString is called, and df and ctf come from the forward index.
  */
 public class TermVector {
 
@@ -39,6 +44,8 @@ public class TermVector {
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
   private Term[] terms;
+  private IdxForwardIndex forwardIndex = null;
+  private int[] termIds;	// Forward index term ids of stems 1..n
 
   //  --------------- Methods ---------------------------------------
 
@@ -52,9 +59,36 @@ public class TermVector {
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
+    //  Use the forward index, if there is one.
+
+    IdxForwardIndex forward = Idx.getForwardIndex ();
+
+    if ((forward != null) && forward.hasField (fieldName)) {
+      int indexDocid = Idx.getDocBase () + docId;
+      int[] ids = forward.getTermIds (fieldName, indexDocid);
+
+      if (ids.length == 0)
+        return;
+
+      int[] freqs = forward.getTermFreqs (fieldName, indexDocid);
+
+      this.forwardIndex = forward;
+      this.termIds = ids;
+      this.stems = new String[ids.length + 1];
+      this.stemsFreq = new int[ids.length + 1];
+
+      for (int i = 0; i < freqs.length; i++) {
+        this.stemsFreq[i + 1] = freqs[i];
+        this.fieldLength += freqs[i];
+      }
+
+      this.positions = forward.getPositions (fieldName, indexDocid);
+      return;
+    }
+
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = Idx.getIndexReader().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
 
@@ -121,6 +155,15 @@ public class TermVector {
    */
   public int indexOfStem (String stem) {
 
+    if (this.forwardIndex != null) {
+      int id = this.forwardIndex.getTermId (this.fieldName, stem);
+      int s = (id < 0) ? -1 : Arrays.binarySearch (this.termIds, id);
+      return (s < 0) ? -1 : s + 1;
+    }
+
+    if (this.stems == null)
+      return -1;
+
     for (int s=1; s<this.stems.length; s++)
       if (stem.equals (this.stems [s]))
         return s;
@@ -173,6 +216,10 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
+    if ((this.forwardIndex != null) && (i > 0) && (i < stems.length) &&
+        (stems[i] == null))
+      stems[i] = this.forwardIndex.getTerm (this.fieldName, this.termIds[i - 1]);
+
     if (i < stems.length)
       return stems[i];
     else
@@ -197,7 +244,10 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    if (this.forwardIndex != null)
+      return this.forwardIndex.getCtf (this.fieldName, this.termIds[i - 1]);
+
+    return Idx.getIndexReader().totalTermFreq(terms[i]);
   }
 
   /**
@@ -207,7 +257,10 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    if (this.forwardIndex != null)
+      return this.forwardIndex.getDf (this.fieldName, this.termIds[i - 1]);
+
+    return Idx.getIndexReader().docFreq(terms[i]);
   }
 
 }